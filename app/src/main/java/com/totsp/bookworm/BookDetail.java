@@ -21,6 +21,7 @@ import android.widget.TextView;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.RatingBar.OnRatingBarChangeListener;
 
+import com.totsp.bookworm.data.FullCoverImageRetriever;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.DateUtil;
 import com.totsp.bookworm.util.StringUtil;
@@ -50,6 +51,8 @@ public class BookDetail extends Activity {
    private EditText bookDetailNote;
    private Button bookDetailButton;
 
+   private FullCoverImageRetriever fullCoverImageRetriever;
+
    @Override
    public void onCreate(final Bundle savedInstanceState) {
       super.onCreate(savedInstanceState);
@@ -57,6 +60,15 @@ public class BookDetail extends Activity {
       application = (BookWormApplication) getApplication();
 
       bookCover = (ImageView) findViewById(R.id.bookcover);
+      fullCoverImageRetriever =
+               new FullCoverImageRetriever(this, application.imageManager, new FullCoverImageRetriever.Callback() {
+                  public void onFullCoverImage(final Book book, final Bitmap coverImage) {
+                     // book may have changed (or been cleared) while cover was retrieved
+                     if ((application.selectedBook != null) && (application.selectedBook.id == book.id)) {
+                        bookCover.setImageBitmap(coverImage);
+                     }
+                  }
+               });
       bookTitle = (TextView) findViewById(R.id.booktitle);
       bookSubTitle = (TextView) findViewById(R.id.booksubtitle);
       bookAuthors = (TextView) findViewById(R.id.bookauthors);
@@ -110,6 +122,7 @@ public class BookDetail extends Activity {
    @Override
    public void onPause() {
       bookTitle = null;
+      fullCoverImageRetriever.cancel();
       super.onPause();
    }
 
@@ -149,7 +162,14 @@ public class BookDetail extends Activity {
          if (coverImage != null) {
             bookCover.setImageBitmap(coverImage);
          } else {
-            bookCover.setImageResource(R.drawable.book_cover_missing);
+            // show the thumbnail (if present) until the full cover is retrieved
+            Bitmap coverThumb = application.imageManager.retrieveBitmap(book.title, book.id, true);
+            if (coverThumb != null) {
+               bookCover.setImageBitmap(coverThumb);
+            } else {
+               bookCover.setImageResource(R.drawable.book_cover_missing);
+            }
+            fullCoverImageRetriever.retrieve(book);
          }
 
          bookTitle.setText(book.title);
@@ -229,4 +249,4 @@ public class BookDetail extends Activity {
             return super.onOptionsItemSelected(item);
       }
    }
-}
\ No newline at end of file
+}
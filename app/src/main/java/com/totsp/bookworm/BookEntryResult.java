@@ -20,8 +20,11 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.totsp.bookworm.data.WorkQueue;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.BookUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.CoverImageUtil;
 import com.totsp.bookworm.util.NetworkUtil;
 import com.totsp.bookworm.util.StringUtil;
 
@@ -47,6 +50,8 @@ public class BookEntryResult extends Activity {
    //Book book;
 
    boolean fromSearch;
+   // cover could not be retrieved (no network), queue it when the book is added
+   boolean coverDeferred;
 
    private ProgressDialog progressDialog;
 
@@ -88,7 +93,7 @@ public class BookEntryResult extends Activity {
          new SetupBookResultTask(application.selectedBook).execute(null);
       } else {
          String isbn = getIntent().getStringExtra(Constants.ISBN);
-         if ((isbn == null) || (isbn.length() < 10) || (isbn.length() > 13)) {
+         if (!IsbnUtil.isValid(isbn)) {
             Log.e(Constants.LOG_TAG, "Invalid product code/ISBN passed "
                      + "to BookEntryResult (may not be an ISBN?) - " + isbn);
             BookMessageBean bean = new BookMessageBean();
@@ -146,8 +151,14 @@ public class BookEntryResult extends Activity {
          // (these are not unique - use a combination maybe?)
          // if book exists do not resave, or allow user to choose?
          long bookId = application.dataManager.insertBook(book);
-         if (book.coverImage != null) {
-            application.imageManager.storeBitmap(book.coverImage, book.title, bookId);
+         if ((book.coverImageData == null)
+                  || !application.imageManager.storeCoverImageData(book.coverImageData, book.title, bookId)) {
+            if (book.coverImage != null) {
+               application.imageManager.storeBitmap(book.coverImage, book.title, bookId);
+            }
+         }
+         if (coverDeferred) {
+            application.workQueue.enqueueCoverFetch(bookId, WorkQueue.PRIORITY_HIGH);
          }
       } else {
          Log.e(Constants.LOG_TAG, "BookEntryResult bookAddClick invoked on null book.");
@@ -224,11 +235,22 @@ public class BookEntryResult extends Activity {
          // handle cover image 
          if ((bean.book != null) && (bean.book.coverImage == null)) {
             if (NetworkUtil.connectionPresent(cMgr)) {
-               bean.book.coverImage = application.imageManager.getOrCreateCoverImage(bean.book);
+               // keep the encoded data too, stored as is (if small enough) when the book is added
+               bean.book.coverImageData = application.imageManager.getCoverImageData(bean.book,
+                        CoverImageUtil.COVER_IMAGE_SIZE_MEDIUM);
+               if (bean.book.coverImageData != null) {
+                  bean.book.coverImage = application.imageManager.decodeCoverImageData(bean.book.coverImageData);
+               }
+               if (bean.book.coverImage == null) {
+                  bean.book.coverImageData = null;
+                  bean.book.coverImage = application.imageManager.createCoverImage(bean.book.title);
+               }
             } else {
                bean.book.coverImage = application.imageManager.createCoverImage(bean.book.title);
+               // fetched later (queued when the book is added)
+               coverDeferred = true;
                Log.i(Constants.LOG_TAG, "Cover retrieval for book " + bean.book.title
-                        + " skipped because network was not available.");
+                        + " deferred because network was not available.");
             }
          }
          return bean;
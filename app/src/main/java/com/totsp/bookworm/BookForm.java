@@ -23,6 +23,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.TabHost.OnTabChangeListener;
 
+import com.totsp.bookworm.data.FullCoverImageRetriever;
 import com.totsp.bookworm.data.ImageManager;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.StringUtil;
@@ -59,6 +60,8 @@ public class BookForm extends TabActivity {
 
    private ProgressDialog progressDialog;
 
+   private FullCoverImageRetriever fullCoverImageRetriever;
+
    @Override
    public void onCreate(final Bundle savedInstanceState) {
       super.onCreate(savedInstanceState);
@@ -90,6 +93,15 @@ public class BookForm extends TabActivity {
 
       bookEnterEditLabel = (TextView) findViewById(R.id.bookentereditlabel);
       bookCover = (ImageView) findViewById(R.id.bookcover);
+      fullCoverImageRetriever =
+               new FullCoverImageRetriever(this, application.imageManager, new FullCoverImageRetriever.Callback() {
+                  public void onFullCoverImage(final Book book, final Bitmap coverImage) {
+                     // book may have changed (or been cleared) while cover was retrieved
+                     if ((application.selectedBook != null) && (application.selectedBook.id == book.id)) {
+                        bookCover.setImageBitmap(coverImage);
+                     }
+                  }
+               });
       bookTitleFormTab = (EditText) findViewById(R.id.booktitleform);
       bookTitleCoverTab = (TextView) findViewById(R.id.booktitlecover);
       bookSubTitle = (EditText) findViewById(R.id.booksubtitle);
@@ -130,6 +142,7 @@ public class BookForm extends TabActivity {
       retrieveCoverButton = (Button) findViewById(R.id.bookformretrievecoverbutton);
       retrieveCoverButton.setOnClickListener(new OnClickListener() {
          public void onClick(final View v) {
+            fullCoverImageRetriever.cancel();
             new RetrieveCoverImageTask().execute(application.selectedBook);
          }
       });
@@ -137,6 +150,7 @@ public class BookForm extends TabActivity {
       generateCoverButton = (Button) findViewById(R.id.bookformgeneratecoverbutton);
       generateCoverButton.setOnClickListener(new OnClickListener() {
          public void onClick(final View v) {
+            fullCoverImageRetriever.cancel();
             new GenerateCoverImageTask().execute(application.selectedBook);
          }
       });
@@ -163,6 +177,7 @@ public class BookForm extends TabActivity {
    @Override
    public void onPause() {
       bookTitleFormTab = null;
+      fullCoverImageRetriever.cancel();
       if (progressDialog.isShowing()) {
          progressDialog.dismiss();
       }
@@ -176,24 +191,15 @@ public class BookForm extends TabActivity {
          if (resultCode == Activity.RESULT_OK) {
             // intentionally do NOT use an AsyncTask (confusing for UI, returns onActResult too fast)
             Uri selectedImageUri = data.getData();
-            InputStream is = null;
             try {
-               is = getContentResolver().openInputStream(selectedImageUri);
-               Bitmap bitmap = BitmapFactory.decodeStream(is, null, ImageManager.options);
+               Bitmap bitmap = decodeSelectedImage(selectedImageUri);
                Book book = application.selectedBook;
                if ((bitmap != null) && (book != null)) {
                   application.imageManager.storeBitmap(bitmap, book.title, book.id);
+                  bitmap.recycle();
                }
             } catch (FileNotFoundException e) {
                Log.e(Constants.LOG_TAG, e.getMessage(), e);
-            } finally {
-               if (is != null) {
-                  try {
-                     is.close();
-                  } catch (IOException e) {
-                     // swallow
-                  }
-               }
             }
 
             Toast.makeText(BookForm.this, getString(R.string.msgBookUpdated), Toast.LENGTH_SHORT).show();
@@ -203,6 +209,43 @@ public class BookForm extends TabActivity {
       }
    }
 
+   // gallery images are often full resolution camera photos, decode bounds first, then decode subsampled
+   // (never the full size image, which can easily exceed the heap)
+   private Bitmap decodeSelectedImage(final Uri uri) throws FileNotFoundException {
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      InputStream is = getContentResolver().openInputStream(uri);
+      try {
+         BitmapFactory.decodeStream(is, null, bounds);
+      } finally {
+         closeQuietly(is);
+      }
+      if ((bounds.outWidth <= 0) || (bounds.outHeight <= 0)) {
+         return null;
+      }
+
+      BitmapFactory.Options opts = new BitmapFactory.Options();
+      opts.inSampleSize = ImageManager.calculateInSampleSize(bounds.outWidth, bounds.outHeight, 120, 150);
+      opts.inInputShareable = true;
+      opts.inPurgeable = true;
+      is = getContentResolver().openInputStream(uri);
+      try {
+         return BitmapFactory.decodeStream(is, null, opts);
+      } finally {
+         closeQuietly(is);
+      }
+   }
+
+   private void closeQuietly(final InputStream is) {
+      if (is != null) {
+         try {
+            is.close();
+         } catch (IOException e) {
+            // swallow
+         }
+      }
+   }
+
    @Override
    protected void onRestoreInstanceState(final Bundle savedInstanceState) {
       super.onRestoreInstanceState(savedInstanceState);
@@ -230,7 +273,14 @@ public class BookForm extends TabActivity {
          if (coverImage != null) {
             bookCover.setImageBitmap(coverImage);
          } else {
-            bookCover.setImageResource(R.drawable.book_cover_missing);
+            // show the thumbnail (if present) until the full cover is retrieved
+            Bitmap coverThumb = application.imageManager.retrieveBitmap(book.title, book.id, true);
+            if (coverThumb != null) {
+               bookCover.setImageBitmap(coverThumb);
+            } else {
+               bookCover.setImageResource(R.drawable.book_cover_missing);
+            }
+            fullCoverImageRetriever.retrieve(book);
          }
 
          bookTitleFormTab.setText(book.title);
@@ -369,7 +419,8 @@ public class BookForm extends TabActivity {
          Book book = args[0];
          publishProgress(new String[] { book.title });
          if (book.id > 0) {
-            application.imageManager.resetCoverImage(book);
+            // explicit retrieve from the form, get the full cover now
+            application.imageManager.resetCoverImage(book, true);
             return true;
          }
          return false;
@@ -440,4 +491,4 @@ public class BookForm extends TabActivity {
          }
       }
    }
-}
\ No newline at end of file
+}
@@ -1,9 +1,7 @@
 package com.totsp.bookworm;
 
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
@@ -17,7 +15,7 @@ import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.Toast;
+import android.widget.TextView;
 import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.OnItemClickListener;
 
@@ -27,29 +25,40 @@ import com.totsp.bookworm.util.StringUtil;
 
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 public class BookSearch extends Activity {
 
    public static final String FROM_SEARCH = "FROM_SEARCH";
 
+   private static final int PAGE_SIZE = 10;
+
    BookWormApplication application;
 
    EditText searchInput;
    Button searchButton;
    ListView searchResults;
+   TextView searchFooter;
 
    int selectorPosition;
    int searchPosition;
 
    String currSearchTerm = "";
-   String prevSearchTerm = "";
+   // incremented for each new search, so results still in flight for an earlier one can be told apart
+   int searchGeneration;
 
    BookListAdapter adapter;
 
    boolean allowSearchContinue;
-   boolean prevSearchResultCount;
-   
-   private ProgressDialog progressDialog;
+
+   // next page is requested (in the background) once the user scrolls to within this many rows of the end
+   int prefetchRows;
+   // pages (term and start index) requested this search, so each page is only ever requested once
+   private final HashSet<String> requestedPages = new HashSet<String>();
+   // row to select once results come in, when restoring a search whose retained books were released
+   private int pendingSelection = -1;
+   // identity keys of the books in the adapter (see BookUtil.addIdentityKeys), kept in step with it
+   private final HashSet<String> resultKeys = new HashSet<String>();
 
    @Override
    public void onCreate(final Bundle savedInstanceState) {
@@ -57,10 +66,13 @@ public class BookSearch extends Activity {
 
       setContentView(R.layout.booksearch);
       application = (BookWormApplication) getApplication();
-      
-      progressDialog = new ProgressDialog(this);
-      progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-      progressDialog.setCancelable(false);
+
+      prefetchRows = 5;
+      try {
+         prefetchRows = Integer.valueOf(application.prefs.getString("searchprefetchpref", "5"));
+      } catch (NumberFormatException e) {
+         Log.w(Constants.LOG_TAG, "Invalid search prefetch preference, using default.");
+      }
 
       adapter = new BookListAdapter(this, new ArrayList<Book>());
 
@@ -105,21 +117,24 @@ public class BookSearch extends Activity {
       });
       searchResults.setOnScrollListener(new OnScrollListener() {
          public void onScroll(AbsListView v, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-            String searchTerm = searchInput.getText().toString();
-            if (totalItemCount > 0 && (firstVisibleItem + visibleItemCount == totalItemCount)
-                     && (searchTerm != null && !searchTerm.equals("")) && allowSearchContinue) {
-               allowSearchContinue = false;
-               selectorPosition = totalItemCount - 5;
+            // total includes the footer
+            if ((totalItemCount > 1) && (firstVisibleItem + visibleItemCount >= totalItemCount - prefetchRows)
+                     && (currSearchTerm != null && !currSearchTerm.equals("")) && allowSearchContinue) {
                if (application.debugEnabled) {
-                  Log.d(Constants.LOG_TAG, "search for term " + searchTerm + " starting at position " + searchPosition);
+                  Log.d(Constants.LOG_TAG, "prefetch search for term " + currSearchTerm + " starting at position "
+                           + searchPosition);
                }
-               new SearchTask().execute(searchTerm, String.valueOf(searchPosition));
+               startSearch(currSearchTerm, searchPosition);
             }
          }
 
          public void onScrollStateChanged(AbsListView v, int scrollState) {
          }
       });
+      // footer shows search status (loading, no more results) without blocking the list (added before adapter is set)
+      searchFooter = (TextView) getLayoutInflater().inflate(R.layout.search_listview_footer, null);
+      searchFooter.setVisibility(View.GONE);
+      searchResults.addFooterView(searchFooter, null, false);
       searchResults.setAdapter(adapter);
 
       // do not enable the soft keyboard unless user explicitly selects textedit
@@ -136,13 +151,24 @@ public class BookSearch extends Activity {
    private void newSearch(final String searchTerm) {
       searchPosition = 0;
       selectorPosition = 0;
-      prevSearchTerm = "";
+      currSearchTerm = searchTerm;
+      searchGeneration++;
+      requestedPages.clear();
+      resultKeys.clear();
       adapter.clear();
       adapter.notifyDataSetChanged();
       if (application.debugEnabled) {
          Log.i(Constants.LOG_TAG, "new search for term " + searchTerm + " starting at pos 0");
       }
-      new SearchTask().execute(searchTerm, "0");
+      startSearch(searchTerm, 0);
+   }
+
+   // start search for page, unless that page was already requested (in flight, or done)
+   private void startSearch(final String searchTerm, final int startIndex) {
+      if (requestedPages.add(searchTerm + "|" + startIndex)) {
+         allowSearchContinue = false;
+         new SearchTask().execute(searchTerm, String.valueOf(startIndex));
+      }
    }
 
    @Override
@@ -152,9 +178,7 @@ public class BookSearch extends Activity {
 
    @Override
    public void onPause() {
-      if (progressDialog.isShowing()) {
-         progressDialog.dismiss();
-      }
+      selectorPosition = searchResults.getFirstVisiblePosition();
       application.bookSearchStateBean = createStateBean();
       super.onPause();
    }
@@ -192,8 +216,13 @@ public class BookSearch extends Activity {
    // onRetainNonConfigurationInstance, onSaveInstanceState/onRestoreInstanceState, createStateBean/restoreFromStateBean
 
    // restore from state bean (called from onRestoreInstanceState (using lastNonConfigurationInstance) and from onCreate (using application))
+   // (if the books were released under memory pressure, the search is re-run, which the lookup cache serves locally)
    private void restoreFromStateBean(BookSearchStateBean bean) {
-      if (bean != null) {
+      if ((bean != null) && (bean.books == null) && (bean.lastSearchTerm != null) && !bean.lastSearchTerm.equals("")) {
+         searchInput.setText(bean.lastSearchTerm);
+         newSearch(bean.lastSearchTerm);
+         pendingSelection = bean.lastSelectorPosition;
+      } else if (bean != null) {
          selectorPosition = bean.lastSelectorPosition;
          searchPosition = bean.lastSearchPosition;
          currSearchTerm = bean.lastSearchTerm;
@@ -201,22 +230,13 @@ public class BookSearch extends Activity {
 
          if (bean.books != null && !bean.books.isEmpty()) {
             for (Book b : bean.books) {
-               boolean dupe = false;
-               // this is very inefficient, but should be relatively small collections here, and must prevent dupes
-               for (int j = 0; j < adapter.getCount(); j++) {
-                  Book ab = adapter.getItem(j);
-                  if (BookUtil.areBooksEffectiveDupes(ab, b)) {
-                     if (application.debugEnabled) {
-                        Log.d(Constants.LOG_TAG,
-                                 "duplicate book detected on BookSearch restoreFromStateBean, it will not be added - "
-                                          + b.title + " " + StringUtil.contractAuthors(b.authors));
-                     }
-                     dupe = true;
-                     break;
-                  }
-               }
-               if (!dupe) {
+               // must prevent dupes (hashed, so restoring a long result list stays linear)
+               if (BookUtil.addIdentityKeys(resultKeys, b)) {
                   adapter.add(b);
+               } else if (application.debugEnabled) {
+                  Log.d(Constants.LOG_TAG,
+                           "duplicate book detected on BookSearch restoreFromStateBean, it will not be added - "
+                                    + b.title + " " + StringUtil.contractAuthors(b.authors));
                }
             }
 
@@ -236,57 +256,53 @@ public class BookSearch extends Activity {
       bean.lastSearchTerm = currSearchTerm;
       bean.lastSelectorPosition = selectorPosition;
 
-      // store the current adapter contents
-      ArrayList<Book> cacheList = new ArrayList<Book>();
-      // again, should be able to get/put all from adapter? (and not just brute local access)
-      for (int i = 0; i < adapter.getCount(); i++) {
-         cacheList.add(adapter.getItem(i));
+      // store the current adapter contents, up to a limit, and without cover images (those are not shown here,
+      // but books that were looked at in BookEntryResult have them, and the bean can outlive this activity)
+      int count = Math.min(adapter.getCount(), BookSearchStateBean.MAX_BOOKS);
+      ArrayList<Book> cacheList = new ArrayList<Book>(count);
+      for (int i = 0; i < count; i++) {
+         cacheList.add(BookUtil.copy(adapter.getItem(i), false));
       }
       bean.books = cacheList;
+      if (count < adapter.getCount()) {
+         // paging resumes after the retained books (the lookup cache has the pages that follow)
+         bean.lastSearchPosition = count + 1;
+         bean.lastSelectorPosition = Math.min(selectorPosition, count - 1);
+      }
       return bean;
    }  
 
    //
    // AsyncTasks
    //
-   private class SearchTask extends AsyncTask<String, String, ArrayList<Book>> {
+   // no modal dialog or orientation lock, results are appended to the list as they arrive (see footer)
+   private class SearchTask extends AsyncTask<String, Void, ArrayList<Book>> {
+
+      private final int generation = searchGeneration;
+      private String searchTerm;
 
       @Override
       protected void onPreExecute() {
-         if (progressDialog.isShowing()) {
-            progressDialog.dismiss();
-         }
-         // keep screen on, and prevent orientation change, during potentially long running task
-         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
+         searchFooter.setText(getString(R.string.msgSearching));
+         searchFooter.setVisibility(View.VISIBLE);
       }
 
       @Override
-      protected ArrayList<Book> doInBackground(final String... args) {         
-         String searchTerm = args[0];
-         publishProgress(new String[] { searchTerm });
-         prevSearchTerm = currSearchTerm;
-         currSearchTerm = searchTerm;
+      protected ArrayList<Book> doInBackground(final String... args) {
+         searchTerm = args[0];
          int startIndex = Integer.valueOf(args[1]);
          if (searchTerm != null) {
-            searchTerm = URLEncoder.encode(searchTerm);
-            return application.bookDataSource.getBooks(searchTerm, startIndex, 10);
+            return application.bookDataSource.getBooks(URLEncoder.encode(searchTerm), startIndex,
+                     BookSearch.PAGE_SIZE);
          }
          return null;
       }
-      
-      @Override
-      protected void onProgressUpdate(String... progress) {
-         progressDialog.setMessage(getString(R.string.msgSearching) + " " + progress[0]);
-         if (!progressDialog.isShowing()) {
-            progressDialog.show();
-         }
-      }
 
       @Override
       protected void onPostExecute(final ArrayList<Book> searchBooks) {
-         if (!prevSearchTerm.equals(currSearchTerm)) {
-            adapter.clear();
+         // results for a previous search (user started a new search meanwhile) are dropped
+         if (generation != searchGeneration) {
+            return;
          }
 
          int dupeCount = 0;
@@ -297,22 +313,15 @@ public class BookSearch extends Activity {
             }
             for (int i = 0; i < searchBooks.size(); i++) {
                Book b = searchBooks.get(i);
-               boolean dupe = false;
-               // this is very inefficient, need to figure out logical error (why dupes to begin with at this point)
-               for (int j = 0; j < adapter.getCount(); j++) {
-                  Book ab = adapter.getItem(j);
-                  if (BookUtil.areBooksEffectiveDupes(ab, b)) {
-                     if (application.debugEnabled) {
-                        Log.i(Constants.LOG_TAG,
-                                 "duplicate book detected on BookSearch searchTask, it will not be added - " + b.title
-                                          + " " + StringUtil.contractAuthors(b.authors));
-                     }
-                     dupe = true;
-                     dupeCount++;
-                     break;
+               // pages from different providers (and pages that shift as results change) can overlap
+               boolean dupe = !BookUtil.addIdentityKeys(resultKeys, b);
+               if (dupe) {
+                  if (application.debugEnabled) {
+                     Log.i(Constants.LOG_TAG, "duplicate book detected on BookSearch searchTask, it will not be added - "
+                              + b.title + " " + StringUtil.contractAuthors(b.authors));
                   }
-               }
-               if (!dupe) {
+                  dupeCount++;
+               } else {
                   addCount++;
                   adapter.add(b);
                   if (application.debugEnabled) {
@@ -324,30 +333,34 @@ public class BookSearch extends Activity {
          }
 
          searchPosition = adapter.getCount() + 1;
-         //searchPosition += 10;         
 
          adapter.notifyDataSetChanged();
+         if ((pendingSelection >= 0) && (adapter.getCount() > 0)) {
+            searchResults.setSelection(Math.min(pendingSelection, adapter.getCount() - 1));
+            pendingSelection = -1;
+         }
          if (addCount > 0) {
             allowSearchContinue = true;
+            searchFooter.setVisibility(View.GONE);
          } else {
-            Toast.makeText(BookSearch.this, "No more results found for this term, please try another search term.",
-                     Toast.LENGTH_LONG).show();
-         }
-         
-         if (progressDialog.isShowing()) {
-            progressDialog.dismiss();
+            searchFooter.setText(getString(R.string.msgNoMoreResults));
          }
-         // reset screen and orientation params
-         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
       }
    }
 
    // state bean
-   class BookSearchStateBean {
+   // (bounded, at most MAX_BOOKS are retained, and the books can be released, see BookWormApplication.onLowMemory)
+   static class BookSearchStateBean {
+      static final int MAX_BOOKS = 100;
+
       ArrayList<Book> books;
       String lastSearchTerm;
       int lastSearchPosition;
       int lastSelectorPosition;
+
+      // drop the books, keep the term and position (restore re-runs the search)
+      void releaseBooks() {
+         books = null;
+      }
    }
 }
\ No newline at end of file
@@ -1,16 +1,28 @@
 package com.totsp.bookworm;
 
 import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.totsp.bookworm.BookSearch.BookSearchStateBean;
 import com.totsp.bookworm.data.BookDataSource;
+import com.totsp.bookworm.data.CachingBookDataSource;
+import com.totsp.bookworm.data.CoalescingBookDataSource;
 import com.totsp.bookworm.data.DataManager;
 import com.totsp.bookworm.data.GoogleBookDataSource;
 import com.totsp.bookworm.data.ImageManager;
+import com.totsp.bookworm.data.LocalMirror;
+import com.totsp.bookworm.data.ScanBurst;
+import com.totsp.bookworm.data.WorkQueue;
 import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.NetworkUtil;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -21,13 +33,20 @@ public class BookWormApplication extends Application {
 
    SharedPreferences prefs;
    BookDataSource bookDataSource;
+   // class name of the underlying (not decorated) book data source
+   String bookDataSourceProvider;
    DataManager dataManager;
    ImageManager imageManager;
+   WorkQueue workQueue;
+   ScanBurst scanBurst;
+   LocalMirror localMirror;
 
    Book selectedBook;
 
    int lastMainListPosition;
 
+   private BroadcastReceiver connectivityReceiver;
+
    //ArrayList<Book> bookCacheList;
    // TODO use onRetainNonConfigurationInstance for quick config state/cache
    // for longer term cache use state bean relative to Activity referenced via application
@@ -42,9 +61,38 @@ public class BookWormApplication extends Application {
 
       prefs = PreferenceManager.getDefaultSharedPreferences(this);
       dataManager = new DataManager(this);
-      imageManager = new ImageManager(this);
+      imageManager = new ImageManager(this, dataManager);
+      establishCoverMissCacheTtl();
+      localMirror = new LocalMirror(this);
 
       establishBookDataSourceFromProvider();
+      workQueue = new WorkQueue(dataManager, imageManager);
+      // backed off items are retried when due (while connectivity doesn't change)
+      workQueue.setRetryTask(new Handler(), new Runnable() {
+         public void run() {
+            drainWorkQueue();
+         }
+      });
+      scanBurst = new ScanBurst(imageManager);
+
+      // cached network state (client IP address) is only valid until connectivity changes
+      // and deferred work (offline scans, etc) is done when connectivity returns
+      connectivityReceiver = new BroadcastReceiver() {
+         @Override
+         public void onReceive(final Context context, final Intent intent) {
+            NetworkUtil.invalidateIpAddress();
+            drainWorkQueue();
+         }
+      };
+      registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+   }
+
+   void drainWorkQueue() {
+      ConnectivityManager cMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+      // no db access here (called on the UI Thread), the worker checks for pending items
+      if (NetworkUtil.connectionPresent(cMgr)) {
+         workQueue.drainAsync(bookDataSource);
+      }
    }
 
    void establishBookDataSourceFromProvider() {
@@ -55,7 +103,9 @@ public class BookWormApplication extends Application {
          Class<?> clazz = Class.forName(className);
          // NOTE - validate that clazz is of BookDataSource type?
          Constructor<?> ctor = clazz.getConstructor(new Class[] { BookWormApplication.class });
-         bookDataSource = (BookDataSource) ctor.newInstance(this);
+         // concurrent lookups of the same ISBN are coalesced in front of the (optional) lookup cache
+         bookDataSource = new CoalescingBookDataSource(establishLookupCache((BookDataSource) ctor.newInstance(this)));
+         bookDataSourceProvider = className;
       } catch (ClassNotFoundException e) {
          Log.e(Constants.LOG_TAG, e.getMessage(), e);
          throw new RuntimeException("Error, unable to establish data provider. " + e.getMessage());
@@ -74,16 +124,74 @@ public class BookWormApplication extends Application {
       }
    }
 
+   private BookDataSource establishLookupCache(final BookDataSource dataSource) {
+      // pref value is in days, 0 disables the lookup result cache
+      long days = 7L;
+      try {
+         days = Long.valueOf(prefs.getString("lookupcachettlpref", "7"));
+      } catch (NumberFormatException e) {
+         Log.w(Constants.LOG_TAG, "Invalid lookup cache TTL preference, using default.");
+      }
+      if (days <= 0) {
+         return dataSource;
+      }
+      return new CachingBookDataSource(dataSource, dataManager, days * 24L * 60L * 60L * 1000L,
+               CachingBookDataSource.DEFAULT_MAX_ENTRIES);
+   }
+
+   String getBookDataSourceStatsSummary() {
+      StringBuilder sb = new StringBuilder();
+      BookDataSource dataSource = bookDataSource;
+      if (dataSource instanceof CoalescingBookDataSource) {
+         sb.append(((CoalescingBookDataSource) dataSource).getStatsSummary());
+         dataSource = ((CoalescingBookDataSource) dataSource).getDelegate();
+      }
+      if (dataSource instanceof CachingBookDataSource) {
+         sb.append(((CachingBookDataSource) dataSource).getStatsSummary());
+      }
+      sb.append(workQueue.getStatsSummary());
+      return sb.toString();
+   }
+
+   void establishCoverMissCacheTtl() {
+      // pref value is in days, 0 disables the cover miss (negative) cache
+      long days = 30L;
+      try {
+         days = Long.valueOf(prefs.getString("covermissttlpref", "30"));
+      } catch (NumberFormatException e) {
+         Log.w(Constants.LOG_TAG, "Invalid cover miss cache TTL preference, using default.");
+      }
+      imageManager.getCoverMissCache().setTtlMillis(days * 24L * 60L * 60L * 1000L);
+   }
+
+   // used by LocalMirrorDataSource (data package)
+   public LocalMirror getLocalMirror() {
+      return localMirror;
+   }
+
    // so that onSaveInstanceState/onRestoreInstanceState can use with just saved id
    public void establishSelectedBook(final long id) {
       selectedBook = dataManager.selectBook(id);
    }
 
+   @Override
+   public void onLowMemory() {
+      // generated covers can be re-read from the disk cache
+      imageManager.getGeneratedCoverRenderer().clearMemoryCache();
+      // retained search results can be re-read from the lookup cache
+      if (bookSearchStateBean != null) {
+         bookSearchStateBean.releaseBooks();
+      }
+      super.onLowMemory();
+   }
+
    @Override
    public void onTerminate() {
       // not guaranteed to be called     
       
+      unregisterReceiver(connectivityReceiver);
       dataManager.closeDb();
+      localMirror.close();
       selectedBook = null;
       super.onTerminate();
    }
@@ -0,0 +1,240 @@
+package com.totsp.bookworm;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.view.View.OnClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.totsp.bookworm.data.ScanBurst;
+import com.totsp.bookworm.util.StringUtil;
+import com.totsp.bookworm.zxing.ZXingIntentIntegrator;
+import com.totsp.bookworm.zxing.ZXingIntentResult;
+
+import java.util.ArrayList;
+
+/**
+ * Review the books from a scan burst (see ScanBurst), as they are resolved in the background,
+ * and add them all at once.
+ */
+public class BurstReview extends Activity {
+
+   private BookWormApplication application;
+   private ScanBurst scanBurst;
+
+   private ListView listView;
+   private EntryAdapter adapter;
+
+   private Button addButton;
+   private Button scanButton;
+   private Button clearButton;
+
+   private TextView burstMeta;
+
+   private ProgressDialog progressDialogSpinner;
+
+   private final Handler handler = new Handler();
+   private final Runnable refresh = new Runnable() {
+      public void run() {
+         refreshEntries();
+      }
+   };
+   // workers call back on their own threads, coalesce into one refresh on the UI thread
+   private final ScanBurst.Listener listener = new ScanBurst.Listener() {
+      public void onEntryChanged() {
+         handler.removeCallbacks(refresh);
+         handler.post(refresh);
+      }
+   };
+
+   @Override
+   public void onCreate(final Bundle savedInstanceState) {
+      super.onCreate(savedInstanceState);
+
+      setContentView(R.layout.burstreview);
+      application = (BookWormApplication) getApplication();
+      scanBurst = application.scanBurst;
+
+      progressDialogSpinner = new ProgressDialog(this);
+      progressDialogSpinner.setCancelable(false);
+      progressDialogSpinner.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+
+      addButton = (Button) findViewById(R.id.burstreviewaddbutton);
+      scanButton = (Button) findViewById(R.id.burstreviewscanbutton);
+      clearButton = (Button) findViewById(R.id.burstreviewclearbutton);
+
+      burstMeta = (TextView) findViewById(R.id.burstreviewmeta);
+
+      listView = (ListView) findViewById(R.id.burstreviewlistview);
+      adapter = new EntryAdapter(this, scanBurst, new ArrayList<ScanBurst.Entry>());
+      listView.setAdapter(adapter);
+
+      addButton.setOnClickListener(new OnClickListener() {
+         public void onClick(View v) {
+            addButton.setEnabled(false);
+            new CommitTask().execute();
+         }
+      });
+
+      scanButton.setOnClickListener(new OnClickListener() {
+         public void onClick(View v) {
+            Main.initiateScan(BurstReview.this);
+         }
+      });
+
+      clearButton.setOnClickListener(new OnClickListener() {
+         public void onClick(View v) {
+            scanBurst.clear();
+            refreshEntries();
+         }
+      });
+   }
+
+   @Override
+   public void onResume() {
+      super.onResume();
+      scanBurst.setListener(listener);
+      refreshEntries();
+   }
+
+   @Override
+   public void onPause() {
+      scanBurst.setListener(null);
+      handler.removeCallbacks(refresh);
+      if (progressDialogSpinner.isShowing()) {
+         progressDialogSpinner.dismiss();
+      }
+      super.onPause();
+   }
+
+   @Override
+   public void onActivityResult(final int requestCode, final int resultCode, final Intent intent) {
+      ZXingIntentResult scanResult = ZXingIntentIntegrator.parseActivityResult(requestCode, resultCode, intent);
+      if (scanResult != null) {
+         // keep scanning until the user backs out of the scanner (then this screen shows again)
+         if (scanResult.getFormatName() != null) {
+            String isbn = Main.getScanIsbn(this, scanResult);
+            if (isbn != null) {
+               Main.queueBurstScan(this, application, isbn);
+            }
+            Main.initiateScan(this);
+         }
+      }
+   }
+
+   private void refreshEntries() {
+      ArrayList<ScanBurst.Entry> entries = scanBurst.getEntries();
+      adapter.clear();
+      for (ScanBurst.Entry entry : entries) {
+         adapter.add(entry);
+      }
+      int resolved = scanBurst.getCount(ScanBurst.STATUS_RESOLVED);
+      int notFound = scanBurst.getCount(ScanBurst.STATUS_NOT_FOUND);
+      int pending = entries.size() - resolved - notFound;
+      if (entries.isEmpty()) {
+         burstMeta.setText(getString(R.string.msgScanBurstEmpty));
+      } else {
+         burstMeta.setText(String.format(getString(R.string.msgScanBurstMeta), entries.size(), resolved, pending,
+                  notFound));
+      }
+      addButton.setEnabled(!entries.isEmpty());
+      clearButton.setEnabled(!entries.isEmpty());
+   }
+
+   //
+   // AsyncTasks
+   //
+   private class CommitTask extends AsyncTask<Void, Void, Integer> {
+      private int queued;
+
+      @Override
+      protected void onPreExecute() {
+         // keep screen on, and prevent orientation change, during potentially long running task
+         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
+         progressDialogSpinner.setMessage(getString(R.string.msgScanBurstAdding));
+         progressDialogSpinner.show();
+      }
+
+      @Override
+      protected Integer doInBackground(final Void... args) {
+         queued = scanBurst.size() - scanBurst.getCount(ScanBurst.STATUS_RESOLVED);
+         return scanBurst.commit(application.dataManager, application.workQueue);
+      }
+
+      @Override
+      protected void onPostExecute(final Integer added) {
+         if (progressDialogSpinner.isShowing()) {
+            progressDialogSpinner.dismiss();
+         }
+
+         // reset screen and orientation params
+         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+
+         Toast.makeText(BurstReview.this, String.format(getString(R.string.msgScanBurstAdded), added, queued),
+                  Toast.LENGTH_LONG).show();
+         // unresolved ISBNs and covers not fetched during the burst
+         application.drainWorkQueue();
+         startActivity(new Intent(BurstReview.this, Main.class));
+      }
+   }
+
+   // same item layout as BookListAdapter, but for entries that may not be resolved yet
+   private static class EntryAdapter extends ArrayAdapter<ScanBurst.Entry> {
+
+      private final LayoutInflater layoutInflater;
+      private final ScanBurst scanBurst;
+
+      EntryAdapter(final Context context, final ScanBurst scanBurst, final ArrayList<ScanBurst.Entry> entries) {
+         super(context, R.layout.book_simple_list_item, entries);
+         this.scanBurst = scanBurst;
+         this.layoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+      }
+
+      @Override
+      public View getView(int position, View convertView, ViewGroup parent) {
+
+         View item = convertView;
+         BookListAdapter.ViewHolder holder = null;
+
+         if (item == null) {
+            item = layoutInflater.inflate(R.layout.book_simple_list_item, parent, false);
+            holder = new BookListAdapter.ViewHolder();
+            holder.text1 = (TextView) item.findViewById(R.id.book_item_text_1);
+            holder.text2 = (TextView) item.findViewById(R.id.book_item_text_2);
+            item.setTag(holder);
+         }
+
+         ScanBurst.Entry entry = getItem(position);
+
+         holder = (BookListAdapter.ViewHolder) item.getTag();
+         // entries are updated by the burst workers
+         synchronized (scanBurst) {
+            if ((entry.status == ScanBurst.STATUS_RESOLVED) && (entry.book != null)) {
+               holder.text1.setText(entry.book.title);
+               holder.text2.setText(StringUtil.contractAuthors(entry.book.authors));
+            } else {
+               holder.text1.setText(entry.isbn);
+               holder.text2.setText(getContext().getString(
+                        entry.status == ScanBurst.STATUS_NOT_FOUND ? R.string.msgScanBurstNotFound
+                                 : R.string.msgScanBurstLookingUp));
+            }
+         }
+         return item;
+      }
+   }
+}
@@ -42,24 +42,36 @@ import android.widget.Toast;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 
+import com.totsp.bookworm.data.CsvBookReader;
 import com.totsp.bookworm.data.CsvManager;
 import com.totsp.bookworm.data.DataConstants;
+import com.totsp.bookworm.data.HttpHelper;
+import com.totsp.bookworm.data.LocalMirror;
+import com.totsp.bookworm.data.WorkQueue;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.model.BookListStats;
 import com.totsp.bookworm.util.ExternalStorageUtil;
+import com.totsp.bookworm.util.IsbnUtil;
 import com.totsp.bookworm.util.NetworkUtil;
 import com.totsp.bookworm.util.StringUtil;
 import com.totsp.bookworm.zxing.ZXingIntentIntegrator;
 import com.totsp.bookworm.zxing.ZXingIntentResult;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 
 public class Main extends Activity {
 
    private static final int MENU_ABOUT = 1;
    private static final int MENU_PREFS = 2;
    private static final int MENU_STATS = 3;
+   private static final int MENU_SCAN_BURST = 4;
 
    private static final int MENU_CONTEXT_EDIT = 0;
    private static final int MENU_CONTEXT_DELETE = 1;
@@ -125,19 +137,8 @@ public class Main extends Activity {
       addScanImage = (ImageView) findViewById(R.id.actionaddscan);
       addScanImage.setOnClickListener(new OnClickListener() {
          public void onClick(View v) {
-            if (NetworkUtil.connectionPresent(cMgr)) {
-               try {
-                  ZXingIntentIntegrator.initiateScan(Main.this, getString(R.string.labelInstallScanner),
-                           getString(R.string.msgScannerNotPresent), getString(R.string.btnYes),
-                           getString(R.string.btnNo));
-               } catch (ActivityNotFoundException e) {
-                  // this doesn't need to be i18n, should only happen on emulator (or roms without Market)
-                  Toast.makeText(Main.this, "Unable to search Market for Barcode scanner, scanning unavailable.",
-                           Toast.LENGTH_LONG).show();
-               }
-            } else {
-               Toast.makeText(Main.this, getString(R.string.msgNetworkNAError), Toast.LENGTH_LONG).show();
-            }
+            // scanning works offline too, the lookup is queued until the network is available (see onActivityResult)
+            Main.initiateScan(Main.this);
          }
       });
       addSearchImage = (ImageView) findViewById(R.id.actionaddsearch);
@@ -214,6 +215,8 @@ public class Main extends Activity {
    public void onResume() {
       super.onResume();
       bindAdapter(false);
+      // deferred work that is due (the connectivity broadcast only comes when connectivity changes)
+      application.drainWorkQueue();
    }
 
    @Override
@@ -249,6 +252,8 @@ public class Main extends Activity {
       menu.add(0, Main.MENU_ABOUT, 1, getString(R.string.menuAbout)).setIcon(android.R.drawable.ic_menu_help);
       menu.add(0, Main.MENU_PREFS, 2, getString(R.string.menuPrefs)).setIcon(android.R.drawable.ic_menu_preferences);
       menu.add(0, Main.MENU_STATS, 3, getString(R.string.menuStats)).setIcon(android.R.drawable.ic_menu_info_details);
+      menu.add(0, Main.MENU_SCAN_BURST, 4, getString(R.string.menuScanBurst)).setIcon(
+               android.R.drawable.ic_menu_agenda);
       return super.onCreateOptionsMenu(menu);
    }
 
@@ -276,9 +281,18 @@ public class Main extends Activity {
             sb.append("Unrated books: "
                      + (stats.totalBooks - (stats.fiveStarBooks + stats.fourStarBooks + stats.threeStarBooks
                               + stats.twoStarBooks + stats.oneStarBooks)) + "\n");
+            if (application.debugEnabled) {
+               sb.append("\n" + application.imageManager.getStatsSummary());
+               sb.append("\n" + application.getBookDataSourceStatsSummary());
+               sb.append("\n" + HttpHelper.getMetrics().getSummary());
+               sb.append(HttpHelper.getCircuitBreaker().getSummary());
+            }
             statsDialog.setMessage(sb.toString());
             statsDialog.show();
             return true;
+         case MENU_SCAN_BURST:
+            startActivity(new Intent(Main.this, BurstReview.class));
+            return true;
          default:
             return super.onOptionsItemSelected(item);
       }
@@ -338,35 +352,40 @@ public class Main extends Activity {
    public void onActivityResult(final int requestCode, final int resultCode, final Intent intent) {
       ZXingIntentResult scanResult = ZXingIntentIntegrator.parseActivityResult(requestCode, resultCode, intent);
       if (scanResult != null) {
-         String isbn = scanResult.getContents();
          if (application.debugEnabled) {
             Log.d(Constants.LOG_TAG, "Scan result format was - " + scanResult.getFormatName());
             Log.d(Constants.LOG_TAG, "Scan result contents are - " + scanResult.getContents());
          }
 
-         // if someone presses scan, then just does nothing (no scan) just ignore
+         // burst mode, queue the ISBN and hand the scanner right back, review when the user stops scanning
+         boolean burst = prefs.getBoolean("burstscanpref", false);
+
+         // if someone presses scan, then just does nothing (no scan) just ignore (or end the burst)
          if (scanResult.getFormatName() == null) {
+            if (burst && (application.scanBurst.size() > 0)) {
+               startActivity(new Intent(this, BurstReview.class));
+            }
             return;
          }
 
-         if ((scanResult.getFormatName() != null) && !scanResult.getFormatName().equals("EAN_13")) {
-            // if it's not EAN 13 we are likely gonna have issues 
-            // we are using PRODUCT_MODE which limits to UPC and EAN
-            // we *might* be able to parse ISBN from UPC, but pattern is not understood, yet
-            // if it's EAN-8 though, we are screwed
-            // for example UPC 008819265580
-            if (scanResult.getFormatName().startsWith("UPC")) {
-               isbn = scanResult.getContents();
-               if (isbn.length() == 12) {
-                  if (isbn.startsWith("0")) {
-                     isbn = isbn.substring(1, isbn.length());
-                  }
-                  if (isbn.endsWith("0")) {
-                     isbn = isbn.substring(0, isbn.length() - 1);
-                  }
-               }
-               Log.w(Constants.LOG_TAG, "Scan result was a UPC code (not an EAN code), parsed into ISBN:" + isbn);
+         // invalid codes are rejected here, before any lookup
+         String isbn = Main.getScanIsbn(this, scanResult);
+         if (burst) {
+            if (isbn != null) {
+               Main.queueBurstScan(this, application, isbn);
             }
+            Main.initiateScan(this);
+            return;
+         }
+         if (isbn == null) {
+            return;
+         }
+
+         // no network, queue the lookup, the book is added when the network is available
+         if (!NetworkUtil.connectionPresent(cMgr)) {
+            application.workQueue.enqueueIsbnLookup(isbn, WorkQueue.PRIORITY_NORMAL);
+            Toast.makeText(this, String.format(getString(R.string.msgScanQueued), isbn), Toast.LENGTH_LONG).show();
+            return;
          }
 
          // handle scan result
@@ -376,6 +395,52 @@ public class Main extends Activity {
       }
    }
 
+   static void initiateScan(final Activity activity) {
+      try {
+         ZXingIntentIntegrator.initiateScan(activity, activity.getString(R.string.labelInstallScanner), activity
+                  .getString(R.string.msgScannerNotPresent), activity.getString(R.string.btnYes), activity
+                  .getString(R.string.btnNo));
+      } catch (ActivityNotFoundException e) {
+         // this doesn't need to be i18n, should only happen on emulator (or roms without Market)
+         Toast.makeText(activity, "Unable to search Market for Barcode scanner, scanning unavailable.",
+                  Toast.LENGTH_LONG).show();
+      }
+   }
+
+   // canonical ISBN-13 from scan result, or null (and the user is told) if it's not a valid ISBN
+   static String getScanIsbn(final Activity activity, final ZXingIntentResult scanResult) {
+      String isbn = null;
+      // we are using PRODUCT_MODE which limits to UPC and EAN (EAN-8 never holds an ISBN)
+      if (scanResult.getFormatName().startsWith("UPC")) {
+         isbn = IsbnUtil.fromUpc(scanResult.getContents());
+         if (isbn != null) {
+            Log.w(Constants.LOG_TAG, "Scan result was a UPC code (not an EAN code), parsed into ISBN:" + isbn);
+         } else {
+            Log.w(Constants.LOG_TAG, "Scan result was a UPC code (not an EAN code), unable to convert to ISBN - "
+                     + scanResult.getContents());
+         }
+      } else {
+         isbn = IsbnUtil.toIsbn13(scanResult.getContents());
+      }
+      if (isbn == null) {
+         Log.w(Constants.LOG_TAG, "Scan result is not a valid ISBN, not looking up - " + scanResult.getContents());
+         Toast.makeText(activity, String.format(activity.getString(R.string.msgScanInvalidIsbn),
+                  scanResult.getContents()), Toast.LENGTH_LONG).show();
+      }
+      return isbn;
+   }
+
+   static void queueBurstScan(final Activity activity, final BookWormApplication application, final String isbn) {
+      if (application.scanBurst.add(isbn, application.bookDataSource)) {
+         Toast.makeText(activity,
+                  String.format(activity.getString(R.string.msgScanBurstQueued), isbn, application.scanBurst.size()),
+                  Toast.LENGTH_SHORT).show();
+      } else {
+         Toast.makeText(activity, String.format(activity.getString(R.string.msgScanBurstDupe), isbn),
+                  Toast.LENGTH_SHORT).show();
+      }
+   }
+
    private void bindAdapter(final boolean resetListPosition) {
       if (resetListPosition) {
          application.lastMainListPosition = 0;
@@ -455,7 +520,8 @@ public class Main extends Activity {
       manageDataDialogBuilder.setItems(new CharSequence[] { getString(R.string.btnExportCSV),
                getString(R.string.btnImportCSV), getString(R.string.btnEmailCSV),
                getString(R.string.btnResetCoverImages), getString(R.string.btnDeleteData),
-               getString(R.string.btnDeleteInternalBackup) }, new DialogInterface.OnClickListener() {
+               getString(R.string.btnDeleteInternalBackup), getString(R.string.btnImportLocalMirror) },
+               new DialogInterface.OnClickListener() {
          public void onClick(DialogInterface d, int selected) {
             switch (selected) {
                case 0:
@@ -464,10 +530,7 @@ public class Main extends Activity {
                            .setPositiveButton(getString(R.string.btnYes), new DialogInterface.OnClickListener() {
                               public void onClick(final DialogInterface arg0, final int arg1) {
                                  if (ExternalStorageUtil.isExternalStorageAvail()) {
-                                    // NOTE -- possible AsyncTask for CSV export? (very fast, not necc?)                                                      
-                                    CsvManager.exportExternal(Main.this, application.dataManager.selectAllBooks());
-                                    Toast.makeText(Main.this, getString(R.string.msgExportSuccess), Toast.LENGTH_SHORT)
-                                             .show();
+                                    new ExportCsvTask().execute();
                                  } else {
                                     Toast.makeText(Main.this, getString(R.string.msgExternalStorageNAError),
                                              Toast.LENGTH_SHORT).show();
@@ -552,6 +615,30 @@ public class Main extends Activity {
                               }
                            }).show();
                   break;
+               case 6:
+                  // IMPORT LOCAL MIRROR
+                  if (ExternalStorageUtil.isExternalStorageAvail()) {
+                     final File dumpFile = getLocalMirrorDumpFile();
+                     if (dumpFile != null) {
+                        new AlertDialog.Builder(Main.this).setMessage(getString(R.string.msgImportLocalMirror))
+                                 .setPositiveButton(getString(R.string.btnYes), new DialogInterface.OnClickListener() {
+                                    public void onClick(final DialogInterface arg0, final int arg1) {
+                                       new ImportLocalMirrorTask().execute(dumpFile);
+                                    }
+                                 }).setNegativeButton(getString(R.string.btnNo),
+                                          new DialogInterface.OnClickListener() {
+                                             public void onClick(final DialogInterface arg0, final int arg1) {
+                                             }
+                                          }).show();
+                     } else {
+                        Toast.makeText(Main.this, getString(R.string.msgLocalMirrorFileNotFound), Toast.LENGTH_LONG)
+                                 .show();
+                     }
+                  } else {
+                     Toast.makeText(Main.this, getString(R.string.msgExternalStorageNAError), Toast.LENGTH_SHORT)
+                              .show();
+                  }
+                  break;
             }
          }
       });
@@ -566,6 +653,26 @@ public class Main extends Activity {
       statsDialog = statsDialogBuilder.create();
    }
 
+   // compressed dump preferred (the uncompressed subset files are large)
+   private File getLocalMirrorDumpFile() {
+      File f = new File(DataConstants.EXTERNAL_DATA_PATH + File.separator + LocalMirror.IMPORT_FILENAME_GZ);
+      if (!f.exists() || !f.canRead()) {
+         f = new File(DataConstants.EXTERNAL_DATA_PATH + File.separator + LocalMirror.IMPORT_FILENAME);
+      }
+      return f.exists() && f.canRead() ? f : null;
+   }
+
+   // comma separated pref value as list (trimmed, empty entries dropped)
+   private ArrayList<String> getListPref(final String key, final String defaultValue) {
+      ArrayList<String> values = new ArrayList<String>();
+      for (String value : prefs.getString(key, defaultValue).split(",")) {
+         if (value.trim().length() > 0) {
+            values.add(value.trim());
+         }
+      }
+      return values;
+   }
+
    private void saveSortOrder(final String order) {
       Editor editor = prefs.edit();
       editor.putString(Constants.DEFAULT_SORT_ORDER, order);
@@ -714,6 +821,7 @@ public class Main extends Activity {
       @Override
       protected Void doInBackground(final Void... args) {
          application.imageManager.clearAllBitmapSourceFiles();
+         application.imageManager.getCoverMissCache().purgeExpired();
          ArrayList<Book> books = application.dataManager.selectAllBooks();
          String[] progress = new String[3];
          progress[2] = Integer.toString(books.size());
@@ -806,6 +914,163 @@ public class Main extends Activity {
       }
    }
 
+   private class ExportCsvTask extends AsyncTask<Void, Integer, Integer> {
+
+      @Override
+      protected void onPreExecute() {
+         if (progressDialog.isShowing()) {
+            progressDialog.dismiss();
+         }
+         // keep screen on, and prevent orientation change, during potentially long running task
+         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
+         progressDialog.setMax(1);
+         progressDialog.setProgress(0);
+         progressDialog.setMessage(getString(R.string.msgExportingData));
+         progressDialog.show();
+      }
+
+      @Override
+      protected Integer doInBackground(final Void... args) {
+         return CsvManager.exportExternal(application.dataManager, new CsvManager.ExportListener() {
+            public void onProgress(final int booksWritten, final int totalBooks) {
+               publishProgress(booksWritten, totalBooks);
+            }
+         });
+      }
+
+      @Override
+      protected void onProgressUpdate(final Integer... progress) {
+         progressDialog.setMax(progress[1]);
+         progressDialog.setProgress(progress[0]);
+      }
+
+      @Override
+      protected void onPostExecute(final Integer exported) {
+         if (progressDialog.isShowing()) {
+            progressDialog.dismiss();
+         }
+         // reset screen and orientation params
+         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+         if (exported < 0) {
+            Toast.makeText(Main.this, getString(R.string.msgExportError), Toast.LENGTH_LONG).show();
+         } else {
+            Toast.makeText(Main.this, getString(R.string.msgExportSuccess), Toast.LENGTH_SHORT).show();
+         }
+      }
+   }
+
+   private class ImportLocalMirrorTask extends AsyncTask<File, String, Integer> {
+
+      @Override
+      protected void onPreExecute() {
+         if (progressDialog.isShowing()) {
+            progressDialog.dismiss();
+         }
+         // keep screen on, and prevent orientation change, during potentially long running task
+         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
+         progressDialog.setMax(100);
+         progressDialog.setProgress(0);
+         progressDialog.setMessage(getString(R.string.msgImportingLocalMirror, "0"));
+         progressDialog.show();
+      }
+
+      @Override
+      protected Integer doInBackground(final File... args) {
+         final File dumpFile = args[0];
+         final long length = dumpFile.length();
+         ArrayList<String> isbnPrefixes = getListPref("localmirrorisbnprefixespref", "");
+         ArrayList<String> languages = getListPref("localmirrorlanguagespref", "eng");
+         InputStream in = null;
+         try {
+            final CountingInputStream counter = new CountingInputStream(new FileInputStream(dumpFile));
+            in = new BufferedInputStream(counter, 65536);
+            if (dumpFile.getName().endsWith(".gz")) {
+               in = new GZIPInputStream(in, 65536);
+            }
+            return application.localMirror.importDump(in, isbnPrefixes, languages, new LocalMirror.ImportListener() {
+               public void onProgress(final int linesRead, final int editionsImported) {
+                  // progress by (compressed) bytes read, the number of lines isn't known up front
+                  int percent = length > 0 ? (int) ((counter.getCount() * 100L) / length) : 0;
+                  publishProgress(String.valueOf(percent), String.valueOf(editionsImported));
+               }
+            });
+         } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error importing local mirror", e);
+            return -1;
+         } finally {
+            if (in != null) {
+               try {
+                  in.close();
+               } catch (IOException e) {
+                  // ignore
+               }
+            }
+         }
+      }
+
+      @Override
+      protected void onProgressUpdate(final String... progress) {
+         progressDialog.setProgress(Integer.valueOf(progress[0]));
+         progressDialog.setMessage(getString(R.string.msgImportingLocalMirror, progress[1]));
+      }
+
+      @Override
+      protected void onPostExecute(final Integer imported) {
+         if (progressDialog.isShowing()) {
+            progressDialog.dismiss();
+         }
+         // reset screen and orientation params
+         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+         if (imported < 0) {
+            Toast.makeText(Main.this, getString(R.string.msgLocalMirrorImportError), Toast.LENGTH_LONG).show();
+         } else {
+            Toast.makeText(Main.this, getString(R.string.msgLocalMirrorImported, imported), Toast.LENGTH_LONG).show();
+         }
+      }
+   }
+
+   // counts the bytes read from the underlying (compressed) file, for progress
+   private static class CountingInputStream extends FilterInputStream {
+      private long count;
+
+      CountingInputStream(final InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b != -1) {
+            count++;
+         }
+         return b;
+      }
+
+      @Override
+      public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+         int n = super.read(buffer, offset, length);
+         if (n > 0) {
+            count += n;
+         }
+         return n;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+         long skipped = super.skip(n);
+         count += skipped;
+         return skipped;
+      }
+
+      long getCount() {
+         return count;
+      }
+   }
+
    private class RestoreTask extends AsyncTask<Void, String, Void> {
 
       // we shouldn't need to check for dupes here, only used if DB is empty
@@ -819,37 +1084,47 @@ public class Main extends Activity {
          // keep screen on, and prevent orientation change, during potentially long running task
          getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
          setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_NOSENSOR);
+         progressDialog.setMax(100);
+         progressDialog.setProgress(0);
       }
 
       @Override
       protected Void doInBackground(final Void... args) {
          File csvFile = new File(getFilesDir() + File.separator + DataConstants.EXPORT_FILENAME);
          if (csvFile.exists() && csvFile.canRead()) {
-            ArrayList<Book> restoreBooks = CsvManager.parseCSVFile(null, csvFile);
-            String[] progress = new String[3];
-            progress[2] = Integer.toString(restoreBooks.size());
-            for (int i = 0; i < restoreBooks.size(); i++) {
-               Book b = restoreBooks.get(i);
-               Log.i(Constants.LOG_TAG, "Importing book: " + b.title);
-               progress[0] = String.format(getString(R.string.msgCsvImportingBook, b.title));
-               progress[1] = Integer.toString(i);
-               publishProgress(progress);
-               b.id = application.dataManager.insertBook(b);
-               application.imageManager.resetCoverImage(b);
+            long length = csvFile.length();
+            CsvBookReader reader = null;
+            try {
+               // books are inserted as they are read (the backup is never held in memory as a whole)
+               CountingInputStream counter = new CountingInputStream(new FileInputStream(csvFile));
+               reader = CsvManager.openCSVFile(null, counter);
+               while (reader.hasNext()) {
+                  Book b = reader.next();
+                  Log.i(Constants.LOG_TAG, "Importing book: " + b.title);
+                  // progress by bytes read, the number of books isn't known up front
+                  int percent = length > 0 ? (int) ((counter.getCount() * 100L) / length) : 0;
+                  publishProgress(String.format(getString(R.string.msgCsvImportingBook, b.title)), String
+                           .valueOf(percent));
+                  b.id = application.dataManager.insertBook(b);
+                  application.imageManager.resetCoverImage(b);
+               }
+            } catch (IOException e) {
+               Log.e(Constants.LOG_TAG, "Error restoring from backup file", e);
+            } finally {
+               if (reader != null) {
+                  reader.close();
+               }
             }
          }
          return null;
       }
 
       @Override
-      protected void onProgressUpdate(String... progress) {
-         progressDialog.setMessage(progress[0]);
-         if ((progress[1].equals("1")) && !progressDialog.isShowing()) {
-            progressDialog.setMax(Integer.valueOf(progress[2]));
+      protected void onProgressUpdate(final String... progress) {
+         if (!progressDialog.isShowing()) {
             progressDialog.show();
-         } else if (progress[1].equals(progress[2]) && progressDialog.isShowing()) {
-            progressDialog.dismiss();
          }
+         progressDialog.setMessage(progress[0]);
          progressDialog.setProgress(Integer.valueOf(progress[1]));
       }
 
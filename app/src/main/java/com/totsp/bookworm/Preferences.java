@@ -36,9 +36,13 @@ public class Preferences extends PreferenceActivity {
             if (key.equals("dataproviderpref")) {
                String value = prefs.getString("dataproviderpref", CompoundDataSource.class.getCanonicalName());
                Log.i(Constants.LOG_TAG, "Data provider preference changed - " + value);
-               if (!value.equals(application.bookDataSource.getClass().getCanonicalName())) {
+               if (!value.equals(application.bookDataSourceProvider)) {
                   application.establishBookDataSourceFromProvider();
                }
+            } else if (key.equals("lookupcachettlpref")) {
+               application.establishBookDataSourceFromProvider();
+            } else if (key.equals("covermissttlpref")) {
+               application.establishCoverMissCacheTtl();
             }
          }
       });
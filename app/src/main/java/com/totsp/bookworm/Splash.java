@@ -30,6 +30,7 @@ public class Splash extends Activity {
    private void initPrefs() {
       boolean debugEnabled = prefs.getBoolean("debugenabled", false);
       application.debugEnabled = debugEnabled;
+      application.imageManager.setDebugEnabled(debugEnabled);
 
       boolean splashSeenOnce = prefs.getBoolean("splashseenonce", false);
       if (!splashSeenOnce) {
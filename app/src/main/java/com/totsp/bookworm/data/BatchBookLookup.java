@@ -0,0 +1,83 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Batch ISBN lookup for BookDataSources that can only look up one ISBN per request,
+ * single lookups are run with bounded concurrency (a few at a time, not one after another,
+ * and not all at once, which providers won't appreciate).
+ */
+public final class BatchBookLookup {
+
+   // same as the per host connection limit in HttpHelper
+   public static final int DEFAULT_MAX_CONCURRENT = 4;
+
+   private BatchBookLookup() {
+   }
+
+   public static HashMap<String, Book> getBooks(final BookDataSource dataSource, final Collection<String> isbns) {
+      return BatchBookLookup.getBooks(dataSource, isbns, BatchBookLookup.DEFAULT_MAX_CONCURRENT);
+   }
+
+   public static HashMap<String, Book> getBooks(final BookDataSource dataSource, final Collection<String> isbns,
+            final int maxConcurrent) {
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      // de-dupe, keep order
+      LinkedHashSet<String> unique = new LinkedHashSet<String>(isbns);
+      if (unique.isEmpty()) {
+         return results;
+      }
+
+      ExecutorService executor =
+               Executors.newFixedThreadPool(Math.min(maxConcurrent, unique.size()), new ThreadFactory() {
+                  private int count;
+
+                  public synchronized Thread newThread(final Runnable r) {
+                     Thread t = new Thread(r, "BookWorm-batch-" + (++count));
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      try {
+         ArrayList<String> keys = new ArrayList<String>(unique.size());
+         ArrayList<Future<Book>> futures = new ArrayList<Future<Book>>(unique.size());
+         for (final String isbn : unique) {
+            keys.add(isbn);
+            futures.add(executor.submit(new Callable<Book>() {
+               public Book call() {
+                  return dataSource.getBook(isbn);
+               }
+            }));
+         }
+         for (int i = 0; i < futures.size(); i++) {
+            try {
+               Book book = futures.get(i).get();
+               if (book != null) {
+                  results.put(keys.get(i), book);
+               }
+            } catch (ExecutionException e) {
+               Log.e(Constants.LOG_TAG, "Error in batch lookup for ISBN " + keys.get(i), e.getCause());
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         executor.shutdownNow();
+      }
+      return results;
+   }
+}
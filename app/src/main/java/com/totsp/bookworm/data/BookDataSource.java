@@ -3,10 +3,36 @@ package com.totsp.bookworm.data;
 import com.totsp.bookworm.model.Book;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 
 public interface BookDataSource {
 
    Book getBook(String identifier);
 
-   ArrayList<Book> getBooks(String searchTerm, int startIndex, int numResults);  
+   /**
+    * Search (paged).
+    * 
+    * @param searchTerm URL encoded by the caller (sources use it as is)
+    * @param startIndex
+    * @param numResults
+    * @return
+    */
+   ArrayList<Book> getBooks(String searchTerm, int startIndex, int numResults);
+
+   /**
+    * Resolve many ISBNs at once (batched where the provider supports it, concurrent where it doesn't).
+    * 
+    * @param isbns
+    * @return books keyed by the requested ISBN (ISBNs that were not found are not included)
+    */
+   HashMap<String, Book> getBooks(Collection<String> isbns);
+
+   /**
+    * Check if the provider can currently be reached (false if it has been failing, 
+    * and requests to it are being refused for now, see HostCircuitBreaker).
+    * 
+    * @return
+    */
+   boolean isAvailable();
 }
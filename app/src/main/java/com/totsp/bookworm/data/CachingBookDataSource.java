@@ -0,0 +1,276 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Author;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.IsbnUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Caching decorator for a BookDataSource, lookup results are stored (serialized) in the
+ * lookupcache table, keyed by (provider, normalized ISBN or search term and page), so that
+ * repeated lookups (paging back and forth in search, re-scanning the same barcode, re-parsing
+ * the same CSV import) don't repeat the same network requests.
+ *
+ * Entries expire after the TTL, and the table is kept to a max number of rows (oldest are evicted).
+ * Empty results are not cached (the data sources return the same thing for "not found" and "network error"),
+ * and neither are partial search results (see CompoundDataSource.isLastSearchComplete).
+ */
+public class CachingBookDataSource implements BookDataSource {
+
+   public static final long DEFAULT_TTL_MILLIS = 7L * 24L * 60L * 60L * 1000L;
+   public static final int DEFAULT_MAX_ENTRIES = 500;
+
+   // expired/excess entries are cleaned up every so many stores (rather than on every one)
+   private static final int TRIM_INTERVAL = 25;
+
+   private final BookDataSource delegate;
+   private final DataManager dataManager;
+   private final String provider;
+   private final long ttlMillis;
+   private final int maxEntries;
+
+   private int hits;
+   private int misses;
+   private int stored;
+
+   public CachingBookDataSource(final BookDataSource delegate, final DataManager dataManager, final long ttlMillis,
+            final int maxEntries) {
+      this.delegate = delegate;
+      this.dataManager = dataManager;
+      this.ttlMillis = ttlMillis;
+      this.maxEntries = maxEntries;
+      provider = delegate.getClass().getCanonicalName();
+   }
+
+   public BookDataSource getDelegate() {
+      return delegate;
+   }
+
+   public Book getBook(final String identifier) {
+      String key = CachingBookDataSource.getBookKey(identifier);
+      Book book = selectCachedBook(key);
+      if (book != null) {
+         return book;
+      }
+
+      book = delegate.getBook(identifier);
+      if (book != null) {
+         ArrayList<Book> books = new ArrayList<Book>(1);
+         books.add(book);
+         store(key, books);
+      }
+      return book;
+   }
+
+   public ArrayList<Book> getBooks(final String searchTerm, final int startIndex, final int numResults) {
+      String key = CachingBookDataSource.getSearchKey(searchTerm, startIndex, numResults);
+      String value = selectCached(key);
+      if (value != null) {
+         try {
+            JSONArray array = new JSONArray(value);
+            ArrayList<Book> books = new ArrayList<Book>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+               books.add(CachingBookDataSource.fromJson(array.getJSONObject(i)));
+            }
+            return books;
+         } catch (JSONException e) {
+            Log.w(Constants.LOG_TAG, "Unable to read cached lookup result, ignoring it", e);
+         }
+      }
+
+      ArrayList<Book> books = delegate.getBooks(searchTerm, startIndex, numResults);
+      if ((books != null) && !books.isEmpty() && isSearchComplete()) {
+         store(key, books);
+      }
+      return books;
+   }
+
+   // cached ISBNs are resolved locally, the rest go to the delegate as one batch
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      ArrayList<String> uncached = new ArrayList<String>();
+      for (String isbn : new LinkedHashSet<String>(isbns)) {
+         Book book = selectCachedBook(CachingBookDataSource.getBookKey(isbn));
+         if (book != null) {
+            results.put(isbn, book);
+         } else {
+            uncached.add(isbn);
+         }
+      }
+
+      if (!uncached.isEmpty()) {
+         HashMap<String, Book> found = delegate.getBooks(uncached);
+         for (Map.Entry<String, Book> entry : found.entrySet()) {
+            ArrayList<Book> books = new ArrayList<Book>(1);
+            books.add(entry.getValue());
+            store(CachingBookDataSource.getBookKey(entry.getKey()), books);
+         }
+         results.putAll(found);
+      }
+      return results;
+   }
+
+   public boolean isAvailable() {
+      return delegate.isAvailable();
+   }
+
+   public void clear() {
+      try {
+         dataManager.deleteAllLookupResults();
+      } catch (RuntimeException e) {
+         Log.w(Constants.LOG_TAG, "Error clearing lookup cache", e);
+      }
+   }
+
+   public synchronized int getHitCount() {
+      return hits;
+   }
+
+   public synchronized int getMissCount() {
+      return misses;
+   }
+
+   public synchronized String getStatsSummary() {
+      return "lookup cache hits: " + hits + "/" + (hits + misses) + " (stored " + stored + ")\n";
+   }
+
+   // a degraded page (a source missed the deadline, or was routed around) would be served for the whole TTL
+   private boolean isSearchComplete() {
+      if (delegate instanceof CompoundDataSource) {
+         return ((CompoundDataSource) delegate).isLastSearchComplete();
+      }
+      return true;
+   }
+
+   private Book selectCachedBook(final String key) {
+      String value = selectCached(key);
+      if (value != null) {
+         try {
+            JSONArray array = new JSONArray(value);
+            if (array.length() > 0) {
+               return CachingBookDataSource.fromJson(array.getJSONObject(0));
+            }
+         } catch (JSONException e) {
+            Log.w(Constants.LOG_TAG, "Unable to read cached lookup result, ignoring it", e);
+         }
+      }
+      return null;
+   }
+
+   private String selectCached(final String key) {
+      String value = null;
+      try {
+         value = dataManager.selectLookupResult(provider, key, System.currentTimeMillis() - ttlMillis);
+      } catch (RuntimeException e) {
+         // cache is an optimization only, never fail a lookup because of it
+         Log.w(Constants.LOG_TAG, "Error checking lookup cache", e);
+      }
+      synchronized (this) {
+         if (value != null) {
+            hits++;
+         } else {
+            misses++;
+         }
+      }
+      return value;
+   }
+
+   private void store(final String key, final ArrayList<Book> books) {
+      try {
+         JSONArray array = new JSONArray();
+         for (Book book : books) {
+            array.put(CachingBookDataSource.toJson(book));
+         }
+         dataManager.insertLookupResult(provider, key, array.toString());
+         boolean trim = false;
+         synchronized (this) {
+            stored++;
+            trim = (stored % CachingBookDataSource.TRIM_INTERVAL) == 0;
+         }
+         if (trim) {
+            dataManager.deleteExpiredLookupResults(System.currentTimeMillis() - ttlMillis);
+            dataManager.trimLookupResults(maxEntries);
+         }
+      } catch (JSONException e) {
+         Log.w(Constants.LOG_TAG, "Unable to cache lookup result", e);
+      } catch (RuntimeException e) {
+         Log.w(Constants.LOG_TAG, "Error storing lookup cache result", e);
+      }
+   }
+
+   //
+   // keys
+   //
+   // ISBNs are keyed on the canonical ISBN-13, so "0-306-...", "978-0-306-..." and "9780306..." are the same entry
+   static String getBookKey(final String identifier) {
+      String isbn13 = IsbnUtil.toIsbn13(identifier);
+      if (isbn13 != null) {
+         return "isbn:" + isbn13;
+      }
+      // not an ISBN, key on the identifier as is
+      return "id:" + (identifier != null ? identifier.trim().toLowerCase() : "");
+   }
+
+   static String getSearchKey(final String searchTerm, final int startIndex, final int numResults) {
+      String term = searchTerm != null ? searchTerm.trim().toLowerCase().replaceAll("\\s+", " ") : "";
+      return "q:" + term + "|" + startIndex + "|" + numResults;
+   }
+
+   //
+   // serialization (book data only, no ids, user data, or images, other than the provider cover link)
+   //
+   static JSONObject toJson(final Book book) throws JSONException {
+      JSONObject obj = new JSONObject();
+      obj.put("title", book.title);
+      obj.put("subTitle", book.subTitle);
+      obj.put("isbn10", book.isbn10);
+      obj.put("isbn13", book.isbn13);
+      obj.put("publisher", book.publisher);
+      obj.put("description", book.description);
+      obj.put("format", book.format);
+      obj.put("subject", book.subject);
+      obj.put("datePubStamp", book.datePubStamp);
+      obj.put("coverImageUrl", book.coverImageUrl);
+      JSONArray authors = new JSONArray();
+      for (Author author : book.authors) {
+         authors.put(author.name);
+      }
+      obj.put("authors", authors);
+      return obj;
+   }
+
+   static Book fromJson(final JSONObject obj) throws JSONException {
+      Book book = new Book();
+      book.title = obj.optString("title", "");
+      book.subTitle = obj.optString("subTitle", "");
+      book.isbn10 = obj.optString("isbn10", "");
+      book.isbn13 = obj.optString("isbn13", "");
+      book.publisher = obj.optString("publisher", "");
+      book.description = obj.optString("description", "");
+      book.format = obj.optString("format", "");
+      book.subject = obj.optString("subject", "");
+      book.datePubStamp = obj.optLong("datePubStamp");
+      if (obj.has("coverImageUrl")) {
+         book.coverImageUrl = obj.optString("coverImageUrl");
+      }
+      JSONArray authors = obj.optJSONArray("authors");
+      if (authors != null) {
+         for (int i = 0; i < authors.length(); i++) {
+            book.authors.add(new Author(authors.getString(i)));
+         }
+      }
+      return book;
+   }
+}
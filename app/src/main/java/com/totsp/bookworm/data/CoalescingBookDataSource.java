@@ -0,0 +1,124 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.BookUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request coalescing decorator for a BookDataSource, concurrent getBook calls for the same
+ * (normalized) ISBN share one in-flight lookup (a scan result, a CSV import, a restore,
+ * etc, asking for the same book at the same time make one request, not several).
+ *
+ * Callers that shared another caller's lookup get their own copy of the Book (callers modify
+ * the books they get, ids, user data, etc).
+ *
+ * ISBNs are validated and converted to the canonical ISBN-13 here (see IsbnUtil), so invalid ones never
+ * reach the network, and the ISBN-10 and ISBN-13 of the same book are the same lookup.
+ */
+public class CoalescingBookDataSource implements BookDataSource {
+
+   private final BookDataSource delegate;
+   private final SingleFlight<String, Book> inFlight;
+
+   private int rejected;
+
+   public CoalescingBookDataSource(final BookDataSource delegate) {
+      this.delegate = delegate;
+      inFlight = new SingleFlight<String, Book>() {
+         @Override
+         protected Book share(final Book book) {
+            return BookUtil.copy(book, true);
+         }
+      };
+   }
+
+   public BookDataSource getDelegate() {
+      return delegate;
+   }
+
+   public Book getBook(final String identifier) {
+      final String isbn13 = IsbnUtil.toIsbn13(identifier);
+      if (isbn13 == null) {
+         reject(identifier);
+         return null;
+      }
+      return inFlight.get(CachingBookDataSource.getBookKey(isbn13), new SingleFlight.Loader<Book>() {
+         public Book load() {
+            return delegate.getBook(isbn13);
+         }
+      });
+   }
+
+   public ArrayList<Book> getBooks(final String searchTerm, final int startIndex, final int numResults) {
+      return delegate.getBooks(searchTerm, startIndex, numResults);
+   }
+
+   // results are keyed by the ISBNs as passed in (several forms of the same ISBN are one lookup)
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      LinkedHashMap<String, ArrayList<String>> canonical = new LinkedHashMap<String, ArrayList<String>>();
+      for (String isbn : isbns) {
+         String isbn13 = IsbnUtil.toIsbn13(isbn);
+         if (isbn13 == null) {
+            reject(isbn);
+            continue;
+         }
+         ArrayList<String> forms = canonical.get(isbn13);
+         if (forms == null) {
+            forms = new ArrayList<String>(1);
+            canonical.put(isbn13, forms);
+         }
+         forms.add(isbn);
+      }
+
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      if (canonical.isEmpty()) {
+         return results;
+      }
+      HashMap<String, Book> found = delegate.getBooks(canonical.keySet());
+      for (Map.Entry<String, ArrayList<String>> entry : canonical.entrySet()) {
+         Book book = found.get(entry.getKey());
+         if (book != null) {
+            ArrayList<String> forms = entry.getValue();
+            results.put(forms.get(0), book);
+            for (int i = 1; i < forms.size(); i++) {
+               results.put(forms.get(i), BookUtil.copy(book, true));
+            }
+         }
+      }
+      return results;
+   }
+
+   public boolean isAvailable() {
+      return delegate.isAvailable();
+   }
+
+   public int getDeduplicatedCount() {
+      return inFlight.getDeduplicatedCount();
+   }
+
+   public synchronized int getRejectedCount() {
+      return rejected;
+   }
+
+   public String getStatsSummary() {
+      return "book lookups coalesced: " + inFlight.getStatsSummary() + "\n" + "invalid ISBNs rejected: "
+               + getRejectedCount() + "\n";
+   }
+
+   private void reject(final String identifier) {
+      synchronized (this) {
+         rejected++;
+      }
+      Log.w(Constants.LOG_TAG, "Not a valid ISBN, not looking up - " + identifier);
+   }
+}
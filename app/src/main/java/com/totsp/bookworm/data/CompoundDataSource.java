@@ -7,23 +7,62 @@ import com.totsp.bookworm.BookWormApplication;
 import com.totsp.bookworm.Constants;
 import com.totsp.bookworm.R;
 import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.IsbnUtil;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * The Compound Data Source loops through available 
- * data sources to return matching books.
+ * The Compound Data Source queries all available
+ * data sources (concurrently) to return matching books.
+ *
+ * Each data source has until the deadline to respond, results from slow sources
+ * are left out (rather than holding up the rest), and search results
+ * are interleaved and de-duplicated (by ISBN) across sources.
+ *
+ * The local mirror (see LocalMirrorDataSource), if present, is asked first, on the calling thread,
+ * and the network sources are only used for what it doesn't have.
  * 
  * @author Simon McLaughlin
  */
 public class CompoundDataSource implements BookDataSource {
 
+   public static final long DEFAULT_DEADLINE_MILLIS = 12000L;
+
+   // shared by all instances (a new one is created when the data provider pref changes)
+   private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private int count;
+
+      public synchronized Thread newThread(final Runnable r) {
+         Thread t = new Thread(r, "BookWorm-data-" + (++count));
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
    private final BookWormApplication application;
+   // network sources, the local mirror (no network, answers in well under the deadline) is kept apart
    private final ArrayList<BookDataSource> dataSources = new ArrayList<BookDataSource>();
+   private final ArrayList<BookDataSource> localDataSources = new ArrayList<BookDataSource>();
+   private long deadlineMillis = CompoundDataSource.DEFAULT_DEADLINE_MILLIS;
+   // whether the last search on each thread had results from every network source (see isLastSearchComplete)
+   private final ThreadLocal<Boolean> lastSearchComplete = new ThreadLocal<Boolean>();
 
    public CompoundDataSource(final BookWormApplication application) {
       this.application = application;
@@ -37,7 +76,9 @@ public class CompoundDataSource implements BookDataSource {
 
       for (int i = 0; i < dataProvidersArray.length; i++) {
          String className = dataProvidersArray[i].toString();
-         if (!className.equalsIgnoreCase(CompoundDataSource.class.getCanonicalName())) {
+         // the GData feed and the JSON API return the same Google books, only the (leaner) JSON source is used here
+         if (!className.equalsIgnoreCase(CompoundDataSource.class.getCanonicalName())
+                  && !className.equalsIgnoreCase(GoogleBookDataSource.class.getCanonicalName())) {
             Log.i(Constants.LOG_TAG, "establishing sub book data provider for compound source using class name - "
                      + className);
             try {
@@ -45,7 +86,11 @@ public class CompoundDataSource implements BookDataSource {
                Constructor<?> ctor = clazz.getConstructor(new Class[] { BookWormApplication.class });
                // NOTE - validate that clazz is of BookDataSource type?              
                BookDataSource dataSource = (BookDataSource) ctor.newInstance(this.application);
-               dataSources.add(dataSource);
+               if (dataSource instanceof LocalMirrorDataSource) {
+                  localDataSources.add(dataSource);
+               } else {
+                  dataSources.add(dataSource);
+               }
             } catch (ClassNotFoundException e) {
                Log.e(Constants.LOG_TAG, e.getMessage(), e);
                throw new RuntimeException("Error, unable to establish data provider. " + e.getMessage());
@@ -67,53 +112,250 @@ public class CompoundDataSource implements BookDataSource {
    }
 
    public Book getBook(final String identifier) {
-      Book book = null;
-      for (BookDataSource dataSource : dataSources) {
-         book = dataSource.getBook(identifier);
+      for (BookDataSource dataSource : getAvailableLocalDataSources()) {
+         Book book = dataSource.getBook(identifier);
          if (book != null) {
-            break;
+            return book;
+         }
+      }
+
+      // all (available) sources at once, first non null result (in order of completion) wins
+      ArrayList<BookDataSource> available = getAvailableDataSources();
+      CompletionService<Book> completionService = new ExecutorCompletionService<Book>(CompoundDataSource.executor);
+      ArrayList<Future<Book>> futures = new ArrayList<Future<Book>>(available.size());
+      for (final BookDataSource dataSource : available) {
+         futures.add(completionService.submit(new Callable<Book>() {
+            public Book call() {
+               return dataSource.getBook(identifier);
+            }
+         }));
+      }
+
+      Book book = null;
+      long deadline = System.currentTimeMillis() + deadlineMillis;
+      try {
+         for (int i = 0; (i < futures.size()) && (book == null); i++) {
+            long remaining = deadline - System.currentTimeMillis();
+            Future<Book> future = completionService.poll(Math.max(remaining, 0L), TimeUnit.MILLISECONDS);
+            if (future == null) {
+               Log.w(Constants.LOG_TAG, "CompoundDataSource getBook deadline reached (" + deadlineMillis
+                        + " ms) for identifier " + identifier);
+               break;
+            }
+            book = getResult(future);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         for (Future<Book> future : futures) {
+            future.cancel(true);
          }
       }
       return book;
    }
-   
-   public ArrayList<Book> getBooks(final String searchTerm, final int startIndex, final int numResults) {      
+
+   public ArrayList<Book> getBooks(final String searchTerm, final int startIndex, final int numResults) {
       // for each data source, get up to startIndex/num data sources results (so overall total is correct)
-      int numResultsPerDataSource = (int) numResults/dataSources.size();
-      int startIndexPerDataSource = 0;
-      if (startIndex > 0) {
-         startIndexPerDataSource = (int) startIndex/dataSources.size();
-      }      
-      // store results in map, per data source, so we can put them together in relevant order at end
-      // (overall we want result 1 from each provider, then result 2 from each provider, etc, not all from 1, then all from 2)
-      // TODO not sure this logic is perfect, if dupes are found startIndex/etc might not be correct, empirically works, but needs review
-      HashMap<String, ArrayList<Book>> resultsMap = new HashMap<String, ArrayList<Book>>();      
+      // (split over all sources, not just the available ones, so paging stays consistent when one drops out)
+      // (local sources have at most an ISBN match, they are not part of the split)
+      final int numResultsPerDataSource = Math.max(numResults / Math.max(dataSources.size(), 1), 1);
+      final int startIndexPerDataSource = startIndex > 0 ? startIndex / Math.max(dataSources.size(), 1) : 0;
+
+      // all (available) sources at once, each has until the deadline, slow ones are left out (partial results)
+      ArrayList<BookDataSource> available = getAvailableDataSources();
+      // sources with their circuit open are left out too
+      boolean complete = available.size() == dataSources.size();
+      ArrayList<Future<ArrayList<Book>>> futures = new ArrayList<Future<ArrayList<Book>>>(available.size());
+      for (final BookDataSource dataSource : available) {
+         futures.add(CompoundDataSource.executor.submit(new Callable<ArrayList<Book>>() {
+            public ArrayList<Book> call() {
+               return dataSource.getBooks(searchTerm, startIndexPerDataSource, numResultsPerDataSource);
+            }
+         }));
+      }
+
+      // results are kept per data source, in data source order, so we can put them together in relevant order at end
+      // (local results first, while the network requests are in flight)
+      ArrayList<ArrayList<Book>> results = new ArrayList<ArrayList<Book>>(available.size() + 1);
+      for (BookDataSource dataSource : getAvailableLocalDataSources()) {
+         results.add(dataSource.getBooks(searchTerm, startIndex, numResults));
+      }
+      long deadline = System.currentTimeMillis() + deadlineMillis;
+      for (int i = 0; i < futures.size(); i++) {
+         Future<ArrayList<Book>> future = futures.get(i);
+         ArrayList<Book> books = null;
+         try {
+            long remaining = deadline - System.currentTimeMillis();
+            books = future.get(Math.max(remaining, 0L), TimeUnit.MILLISECONDS);
+         } catch (TimeoutException e) {
+            future.cancel(true);
+            complete = false;
+            Log.w(Constants.LOG_TAG, "CompoundDataSource getBooks deadline reached (" + deadlineMillis + " ms) for "
+                     + available.get(i).getClass().getSimpleName() + ", results from it not included");
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            complete = false;
+         } catch (ExecutionException e) {
+            complete = false;
+            Log.e(Constants.LOG_TAG, "CompoundDataSource getBooks error from "
+                     + available.get(i).getClass().getSimpleName(), e.getCause());
+         }
+         if (books != null) {
+            results.add(books);
+         }
+      }
+      lastSearchComplete.set(complete);
+      return CompoundDataSource.interleave(results);
+   }
+
+   /**
+    * Whether the last search (getBooks(String, int, int)) on the calling thread had results from every
+    * network source, false if any was left out (deadline reached, error, or circuit open), the results
+    * are then partial, and should not be cached.
+    *
+    * @return
+    */
+   public boolean isLastSearchComplete() {
+      Boolean complete = lastSearchComplete.get();
+      return (complete == null) || complete.booleanValue();
+   }
+
+   /**
+    * Batch lookup, each data source (in order, local first) is asked only for the ISBNs
+    * not already found by the ones before it (no deadline, batches are for long running imports).
+    * 
+    */
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      ArrayList<String> remaining = new ArrayList<String>(new LinkedHashSet<String>(isbns));
+      ArrayList<BookDataSource> available = getAvailableLocalDataSources();
+      available.addAll(getAvailableDataSources());
+      for (BookDataSource dataSource : available) {
+         if (remaining.isEmpty()) {
+            break;
+         }
+         results.putAll(dataSource.getBooks(remaining));
+         ArrayList<String> notFound = new ArrayList<String>(remaining.size());
+         for (String isbn : remaining) {
+            if (!results.containsKey(isbn)) {
+               notFound.add(isbn);
+            }
+         }
+         remaining = notFound;
+      }
+      return results;
+   }
+
+   public boolean isAvailable() {
+      return !getAvailableDataSources().isEmpty() || !getAvailableLocalDataSources().isEmpty();
+   }
+
+   // the local mirror is only available once one has been imported
+   private ArrayList<BookDataSource> getAvailableLocalDataSources() {
+      ArrayList<BookDataSource> available = new ArrayList<BookDataSource>(localDataSources.size());
+      for (BookDataSource dataSource : localDataSources) {
+         if (dataSource.isAvailable()) {
+            available.add(dataSource);
+         }
+      }
+      return available;
+   }
+
+   // sources whose hosts are failing (circuit open) are routed around
+   private ArrayList<BookDataSource> getAvailableDataSources() {
+      ArrayList<BookDataSource> available = new ArrayList<BookDataSource>(dataSources.size());
       for (BookDataSource dataSource : dataSources) {
-         ArrayList<Book> books = dataSource.getBooks(searchTerm, startIndexPerDataSource, numResultsPerDataSource);
-         resultsMap.put(dataSource.getClass().getCanonicalName(), books);
-      }      
-      return this.flattenResultsMap(resultsMap);
+         if (dataSource.isAvailable()) {
+            available.add(dataSource);
+         }
+      }
+      return available;
+   }
+
+   public long getDeadlineMillis() {
+      return deadlineMillis;
+   }
+
+   /**
+    * Set the per data source deadline, sources that haven't returned by then
+    * are cancelled and left out of the results.
+    *
+    * @param deadlineMillis
+    */
+   public void setDeadlineMillis(final long deadlineMillis) {
+      this.deadlineMillis = deadlineMillis;
    }
-   
-   private ArrayList<Book> flattenResultsMap(final HashMap<String, ArrayList<Book>> resultsMap) {
-      ArrayList<Book> books = new ArrayList<Book>();
-      // get the largest size of list from any provider, use that as starting point
+
+   private Book getResult(final Future<Book> future) {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         Log.e(Constants.LOG_TAG, "CompoundDataSource getBook error", e.getCause());
+      } catch (CancellationException e) {
+         // ignore
+      }
+      return null;
+   }
+
+   /**
+    * Round robin interleave of the results lists (result 1 from each provider, then result 2 from each provider, etc,
+    * not all from 1, then all from 2). Every result is kept (shorter lists just run out earlier), except
+    * duplicates, books with an ISBN (10 or 13) already seen earlier in the interleaved results are dropped
+    * (compared as the canonical ISBN-13, so one provider's ISBN-10 matches another's ISBN-13).
+    *
+    * @param results
+    * @return
+    */
+   static ArrayList<Book> interleave(final ArrayList<ArrayList<Book>> results) {
+      int total = 0;
       int size = 0;
-      for (Map.Entry<String, ArrayList<Book>> entry : resultsMap.entrySet()) {
-         if (entry.getValue() != null && entry.getValue().size() > size) {
-            size = entry.getValue().size();
+      for (ArrayList<Book> list : results) {
+         total += list.size();
+         if (list.size() > size) {
+            size = list.size();
          }
-      }      
-      // loop over size and pull element from each List in Map
-      // (this could be optimized, for instance just use map.values and split at size, but for now this is simple and effective
-      // and not a bottleneck)
+      }
+
+      ArrayList<Book> books = new ArrayList<Book>(total);
+      HashSet<String> seenIsbns = new HashSet<String>(total * 2);
       for (int i = 0; i < size; i++) {
-         for (Map.Entry<String, ArrayList<Book>> entry : resultsMap.entrySet()) {
-            if (entry.getValue() != null && entry.getValue().size() >= size) {
-               books.add(entry.getValue().get(i));
+         for (ArrayList<Book> list : results) {
+            if (i < list.size()) {
+               Book book = list.get(i);
+               if ((book != null) && CompoundDataSource.addIsbns(book, seenIsbns)) {
+                  books.add(book);
+               }
             }
          }
-      }      
+      }
       return books;
    }
+
+   // record ISBNs of book as seen, false if either was already seen (books with no ISBN are always kept)
+   private static boolean addIsbns(final Book book, final HashSet<String> seenIsbns) {
+      String key10 = CompoundDataSource.getIsbnKey(book.isbn10);
+      String key13 = CompoundDataSource.getIsbnKey(book.isbn13);
+      if (((key10 != null) && seenIsbns.contains(key10)) || ((key13 != null) && seenIsbns.contains(key13))) {
+         return false;
+      }
+      if (key10 != null) {
+         seenIsbns.add(key10);
+      }
+      if (key13 != null) {
+         seenIsbns.add(key13);
+      }
+      return true;
+   }
+
+   // canonical ISBN-13 (see IsbnUtil), or the value as is if it isn't a valid ISBN, null if there is none
+   private static String getIsbnKey(final String isbn) {
+      if ((isbn == null) || (isbn.length() == 0)) {
+         return null;
+      }
+      String isbn13 = IsbnUtil.toIsbn13(isbn);
+      return isbn13 != null ? isbn13 : isbn;
+   }
 }
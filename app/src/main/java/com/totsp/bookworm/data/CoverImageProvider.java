@@ -0,0 +1,38 @@
+package com.totsp.bookworm.data;
+
+import java.io.IOException;
+
+/**
+ * Source of cover images for a given ISBN, used by CoverImageProviderChain.
+ *
+ * Implementations are invoked from background threads, and may be interrupted
+ * (cancelled) if another provider returns a valid image first.
+ */
+public interface CoverImageProvider {
+
+   /**
+    * Key for this provider, one of the CoverImageUtil.COVER_IMAGE_PROVIDER_* constants.
+    *
+    * @return
+    */
+   int getProviderKey();
+
+   /**
+    * Retrieve encoded cover image data for ISBN, return null if the provider has no (valid) image, 
+    * throw IOException if the provider could not be reached (so a miss can be told from an error).
+    *
+    * @param isbn
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants (providers may ignore it)
+    * @return
+    * @throws IOException
+    */
+   byte[] getCoverImageData(String isbn, int size) throws IOException;
+
+   /**
+    * Check if the provider can currently be reached (false if it has been failing, see HostCircuitBreaker),
+    * unavailable providers are skipped.
+    *
+    * @return
+    */
+   boolean isAvailable();
+}
@@ -0,0 +1,415 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.util.CoverImageURLUtil;
+import com.totsp.bookworm.util.CoverImageUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.SingleFlight;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedged chain of CoverImageProviders.
+ *
+ * The first provider (in order of observed success rate) is tried right away, if it
+ * has not returned a valid image after the hedge delay the next provider is started too,
+ * and so on. The first valid image wins, and any providers still running are cancelled.
+ * (This way a slow miss on one provider doesn't add its full timeout before the next is even tried.)
+ * 
+ * If the data source supplied a cover link with the book data, that is tried first, on its own
+ * (it's the actual image, not a guess by ISBN), and the providers are only used if it misses.
+ * Link results that are a placeholder (Google's "image not available") count as misses.
+ * 
+ * If a CoverMissCache is set, providers known to not have a cover for an ISBN are skipped,
+ * and new misses are recorded there. Providers that are not available (failing, circuit open) 
+ * are skipped too.
+ */
+public class CoverImageProviderChain {
+
+   public static final long DEFAULT_HEDGE_DELAY_MILLIS = 1500L;
+
+   private static final int POOL_SIZE = 4;
+   private static final int LINKED_DIGESTS_SIZE = 64;
+
+   private final ArrayList<CoverImageProvider> providers;
+   private final ArrayList<ProviderStats> stats;
+   private final ExecutorService executor;
+   private final long hedgeDelayMillis;
+   // (cover data is never modified by callers, so it's shared as is)
+   private final SingleFlight<String, byte[]> inFlight = new SingleFlight<String, byte[]>();
+
+   private CoverMissCache coverMissCache;
+   private int linkedAttempts;
+   private int linkedSuccesses;
+   // content digest of recent link results (to ISBN), and digests known to be placeholders
+   private final LinkedHashMap<String, String> linkedDigests;
+   private final HashSet<String> placeholderDigests = new HashSet<String>();
+
+   public CoverImageProviderChain(final long hedgeDelayMillis) {
+      this.hedgeDelayMillis = hedgeDelayMillis;
+      providers = new ArrayList<CoverImageProvider>();
+      stats = new ArrayList<ProviderStats>();
+      linkedDigests = new LinkedHashMap<String, String>(CoverImageProviderChain.LINKED_DIGESTS_SIZE, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > CoverImageProviderChain.LINKED_DIGESTS_SIZE;
+         }
+      };
+      executor = Executors.newFixedThreadPool(CoverImageProviderChain.POOL_SIZE, new ThreadFactory() {
+         private int count;
+
+         public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "BookWorm-cover-" + (++count));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Add provider to the chain, the order added is the initial preference order
+    * (it's adjusted as success rates are observed).
+    *
+    * @param provider
+    */
+   public synchronized void addProvider(final CoverImageProvider provider) {
+      providers.add(provider);
+      stats.add(new ProviderStats(provider, stats.size()));
+   }
+
+   public void setCoverMissCache(final CoverMissCache coverMissCache) {
+      this.coverMissCache = coverMissCache;
+   }
+
+   public CoverMissCache getCoverMissCache() {
+      return coverMissCache;
+   }
+
+   /**
+    * Get the first valid (encoded) cover image data for the ISBN from any provider, or null if none has one.
+    *
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    *
+    * @param isbn
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @return
+    */
+   public byte[] getCoverImageData(final String isbn, final int size) {
+      return getCoverImageData(isbn, size, null);
+   }
+
+   /**
+    * Get cover image data, from coverImageUrl (provider supplied link) if it is set and valid, and the size
+    * is COVER_IMAGE_SIZE_SMALL, else the same as getCoverImageData(isbn, size). The links are thumbnails
+    * (Google), so larger sizes always come from the providers.
+    *
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    *
+    * @param isbn
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @param coverImageUrl may be null
+    * @return
+    */
+   public byte[] getCoverImageData(final String isbn, final int size, final String coverImageUrl) {
+      // concurrent requests for the same cover (scan, import, reset, etc) share one fetch (whichever ISBN form)
+      String isbn13 = IsbnUtil.toIsbn13(isbn);
+      final String isbnKey = isbn13 != null ? isbn13 : isbn;
+      return inFlight.get(isbnKey + ":" + size, new SingleFlight.Loader<byte[]>() {
+         public byte[] load() {
+            byte[] data = null;
+            if (size == CoverImageUtil.COVER_IMAGE_SIZE_SMALL) {
+               data = fetchLinkedCoverImageData(isbnKey, coverImageUrl);
+            }
+            return data != null ? data : fetchCoverImageData(isbn, size);
+         }
+      });
+   }
+
+   private byte[] fetchLinkedCoverImageData(final String isbnKey, final String coverImageUrl) {
+      if ((coverImageUrl == null) || (coverImageUrl.length() == 0)) {
+         return null;
+      }
+      String host = null;
+      try {
+         host = new URI(coverImageUrl).getHost();
+      } catch (URISyntaxException e) {
+         Log.w(Constants.LOG_TAG, "Invalid cover image link - " + coverImageUrl);
+         return null;
+      }
+      if ((host != null) && !HttpHelper.isHostAvailable(host)) {
+         return null;
+      }
+      byte[] data = null;
+      try {
+         data = CoverImageUtil.fetchCoverImageData(coverImageUrl);
+      } catch (IOException e) {
+         Log.i(Constants.LOG_TAG, "Cover image link failed - " + coverImageUrl + " - " + e);
+      }
+      String digest = data != null ? CoverImageProviderChain.getDigest(data) : null;
+      synchronized (this) {
+         linkedAttempts++;
+         if (digest != null) {
+            // the placeholder passes as a valid image (it's a real size image, saying there is none),
+            // it's known by being the same image for different books
+            String previous = linkedDigests.put(digest, isbnKey);
+            if (placeholderDigests.contains(digest) || ((previous != null) && !previous.equals(isbnKey))) {
+               if (placeholderDigests.add(digest)) {
+                  Log.i(Constants.LOG_TAG, "Cover image link returned a placeholder (same image as ISBN " + previous
+                           + ") - " + coverImageUrl);
+               }
+               data = null;
+            } else {
+               linkedSuccesses++;
+            }
+         }
+      }
+      return data;
+   }
+
+   // hash of the image data (hex), to recognize the same image served for different books
+   private static String getDigest(final byte[] data) {
+      try {
+         MessageDigest md = MessageDigest.getInstance("MD5");
+         byte[] digest = md.digest(data);
+         StringBuilder sb = new StringBuilder(digest.length * 2);
+         for (int i = 0; i < digest.length; i++) {
+            int b = digest[i] & 0xff;
+            if (b < 0x10) {
+               sb.append('0');
+            }
+            sb.append(Integer.toHexString(b));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+         return Integer.toHexString(Arrays.hashCode(data)) + "_" + data.length;
+      }
+   }
+
+   private byte[] fetchCoverImageData(final String isbn, final int size) {
+      ArrayList<ProviderStats> ordered = getOrderedProviders();
+      for (int i = ordered.size() - 1; i >= 0; i--) {
+         CoverImageProvider provider = ordered.get(i).provider;
+         // route around failing providers (circuit open), and skip known misses
+         if (!provider.isAvailable()
+                  || ((coverMissCache != null) && coverMissCache.isKnownMiss(provider.getProviderKey(), isbn, size))) {
+            ordered.remove(i);
+         }
+      }
+      if (ordered.isEmpty()) {
+         return null;
+      }
+
+      CompletionService<byte[]> ecs = new ExecutorCompletionService<byte[]>(executor);
+      ArrayList<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(ordered.size());
+      byte[] result = null;
+      int submitted = 0;
+      int completed = 0;
+      try {
+         futures.add(ecs.submit(new ProviderTask(ordered.get(submitted++), isbn, size)));
+         while ((result == null) && (completed < submitted)) {
+            Future<byte[]> done = null;
+            if (submitted < ordered.size()) {
+               // more providers left, only wait for the hedge delay before starting the next one
+               done = ecs.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+               if (done == null) {
+                  futures.add(ecs.submit(new ProviderTask(ordered.get(submitted++), isbn, size)));
+                  continue;
+               }
+            } else {
+               // provider network timeouts bound this wait
+               done = ecs.take();
+            }
+
+            completed++;
+            try {
+               result = done.get();
+            } catch (ExecutionException e) {
+               Log.i(Constants.LOG_TAG, "Cover image provider failed for ISBN " + isbn + " - " + e.getCause());
+            }
+            // on a miss, don't wait out the rest of the hedge delay, go straight to the next provider
+            if ((result == null) && (completed == submitted) && (submitted < ordered.size())) {
+               futures.add(ecs.submit(new ProviderTask(ordered.get(submitted++), isbn, size)));
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         // cancel the losers (if any are still running)
+         for (int i = 0; i < futures.size(); i++) {
+            futures.get(i).cancel(true);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Whether every provider is known to have no cover of the size for the ISBN (each answered, and had none,
+    * see CoverMissCache), false if any has not been asked, or failed (network, circuit open), or if there is
+    * no miss cache.
+    *
+    * @param isbn
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @return
+    */
+   public boolean isKnownMiss(final String isbn, final int size) {
+      if (coverMissCache == null) {
+         return false;
+      }
+      ArrayList<ProviderStats> providers = getOrderedProviders();
+      for (int i = 0; i < providers.size(); i++) {
+         if (!coverMissCache.isKnownMiss(providers.get(i).provider.getProviderKey(), isbn, size)) {
+            return false;
+         }
+      }
+      return !providers.isEmpty();
+   }
+
+   /**
+    * Get the number of cover requests that were served by another request's in-flight fetch.
+    *
+    * @return
+    */
+   public int getDeduplicatedCount() {
+      return inFlight.getDeduplicatedCount();
+   }
+
+   public synchronized String getStatsSummary() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < stats.size(); i++) {
+         ProviderStats ps = stats.get(i);
+         sb.append("cover provider " + ps.provider.getProviderKey() + ": " + ps.successes + "/" + ps.attempts + "\n");
+      }
+      sb.append("cover links: " + linkedSuccesses + "/" + linkedAttempts + "\n");
+      sb.append("cover fetches coalesced: " + inFlight.getStatsSummary() + "\n");
+      return sb.toString();
+   }
+
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+
+   private synchronized ArrayList<ProviderStats> getOrderedProviders() {
+      ArrayList<ProviderStats> ordered = new ArrayList<ProviderStats>(stats);
+      Collections.sort(ordered, ProviderStats.SUCCESS_RATE_COMP);
+      return ordered;
+   }
+
+   synchronized void recordResult(final ProviderStats ps, final boolean success) {
+      ps.attempts++;
+      if (success) {
+         ps.successes++;
+      }
+   }
+
+   //
+   // provider stats and task
+   //
+   static class ProviderStats {
+
+      // highest (smoothed) success rate first, initial order breaks ties
+      static final Comparator<ProviderStats> SUCCESS_RATE_COMP = new Comparator<ProviderStats>() {
+         public int compare(final ProviderStats a, final ProviderStats b) {
+            int result = Double.compare(b.getSuccessRate(), a.getSuccessRate());
+            if (result == 0) {
+               result = a.initialOrder - b.initialOrder;
+            }
+            return result;
+         }
+      };
+
+      final CoverImageProvider provider;
+      final int initialOrder;
+      int attempts;
+      int successes;
+
+      ProviderStats(final CoverImageProvider provider, final int initialOrder) {
+         this.provider = provider;
+         this.initialOrder = initialOrder;
+      }
+
+      // Laplace smoothed, so a provider with no history sits at 0.5 (and one miss doesn't bury it)
+      double getSuccessRate() {
+         return (successes + 1.0d) / (attempts + 2.0d);
+      }
+   }
+
+   private class ProviderTask implements Callable<byte[]> {
+      private final ProviderStats ps;
+      private final String isbn;
+      private final int size;
+
+      ProviderTask(final ProviderStats ps, final String isbn, final int size) {
+         this.ps = ps;
+         this.isbn = isbn;
+         this.size = size;
+      }
+
+      public byte[] call() throws IOException {
+         byte[] data = null;
+         try {
+            data = ps.provider.getCoverImageData(isbn, size);
+         } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+               recordResult(ps, false);
+            }
+            throw e;
+         }
+         // results of cancelled (interrupted) attempts say nothing about the provider
+         if (!Thread.currentThread().isInterrupted()) {
+            recordResult(ps, data != null);
+            if ((data == null) && (coverMissCache != null)) {
+               coverMissCache.recordMiss(ps.provider.getProviderKey(), isbn, size);
+            }
+         }
+         return data;
+      }
+   }
+
+   /**
+    * CoverImageProvider that uses CoverImageUtil to retrieve images from the network
+    * for the specified COVER_IMAGE_PROVIDER_* key.
+    *
+    */
+   public static class NetworkCoverImageProvider implements CoverImageProvider {
+      private final int providerKey;
+
+      public NetworkCoverImageProvider(final int providerKey) {
+         this.providerKey = providerKey;
+      }
+
+      public int getProviderKey() {
+         return providerKey;
+      }
+
+      public byte[] getCoverImageData(final String isbn, final int size) throws IOException {
+         return CoverImageUtil.fetchCoverImageData(isbn, providerKey, size);
+      }
+
+      public boolean isAvailable() {
+         String host = CoverImageURLUtil.getCoverHost(providerKey);
+         return (host == null) || HttpHelper.isHostAvailable(host);
+      }
+   }
+}
@@ -0,0 +1,120 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.util.IsbnUtil;
+
+/**
+ * Persistent negative cache for cover providers, keyed by (provider, ISBN, cover size), a provider may
+ * have a small image but no large one (or the other way around).
+ *
+ * Providers often return a placeholder (1x1) image rather than a 404 when they have no cover,
+ * those are rejected by CoverImageUtil, and recorded here, so that cover resets/restores/imports
+ * don't download the same placeholders again and again. Entries expire after the TTL.
+ *
+ * Only real misses are recorded (not network errors/timeouts).
+ */
+public class CoverMissCache {
+
+   public static final long DEFAULT_TTL_MILLIS = 30L * 24L * 60L * 60L * 1000L;
+
+   private final DataManager dataManager;
+   private long ttlMillis;
+
+   private int lookups;
+   private int hits;
+   private int recorded;
+
+   public CoverMissCache(final DataManager dataManager, final long ttlMillis) {
+      this.dataManager = dataManager;
+      this.ttlMillis = ttlMillis;
+   }
+
+   public synchronized void setTtlMillis(final long ttlMillis) {
+      this.ttlMillis = ttlMillis;
+   }
+
+   public synchronized long getTtlMillis() {
+      return ttlMillis;
+   }
+
+   /**
+    * Return true if the provider is known (within TTL) to have no cover of the size for the ISBN.
+    *
+    * @param providerKey
+    * @param isbn
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @return
+    */
+   public synchronized boolean isKnownMiss(final int providerKey, final String isbn, final int size) {
+      if ((ttlMillis <= 0) || (isbn == null)) {
+         return false;
+      }
+      lookups++;
+      boolean miss = false;
+      try {
+         miss =
+                  dataManager.isCoverMiss(providerKey, CoverMissCache.getKey(isbn), size, System.currentTimeMillis()
+                           - ttlMillis);
+      } catch (RuntimeException e) {
+         // cache is an optimization only, never fail a cover retrieval because of it
+         Log.w(Constants.LOG_TAG, "Error checking cover miss cache", e);
+      }
+      if (miss) {
+         hits++;
+      }
+      return miss;
+   }
+
+   public synchronized void recordMiss(final int providerKey, final String isbn, final int size) {
+      if ((ttlMillis <= 0) || (isbn == null)) {
+         return;
+      }
+      try {
+         dataManager.insertCoverMiss(providerKey, CoverMissCache.getKey(isbn), size);
+         recorded++;
+      } catch (RuntimeException e) {
+         Log.w(Constants.LOG_TAG, "Error recording cover miss", e);
+      }
+   }
+
+   /**
+    * Remove expired entries (keeps the table from growing without bound).
+    *
+    */
+   public synchronized void purgeExpired() {
+      try {
+         int count = dataManager.deleteExpiredCoverMisses(System.currentTimeMillis() - ttlMillis);
+         Log.i(Constants.LOG_TAG, "Purged " + count + " expired cover miss cache entries.");
+      } catch (RuntimeException e) {
+         Log.w(Constants.LOG_TAG, "Error purging cover miss cache", e);
+      }
+   }
+
+   public synchronized void clear() {
+      dataManager.deleteAllCoverMisses();
+   }
+
+   public synchronized int getLookupCount() {
+      return lookups;
+   }
+
+   public synchronized int getHitCount() {
+      return hits;
+   }
+
+   public synchronized int getRecordedCount() {
+      return recorded;
+   }
+
+   public synchronized String getStatsSummary() {
+      return "cover miss cache hits: " + hits + "/" + lookups + " (recorded " + recorded + ")\n";
+   }
+
+   // canonical ISBN-13, so a miss is known whichever ISBN form the book has
+   private static String getKey(final String isbn) {
+      String isbn13 = IsbnUtil.toIsbn13(isbn);
+      return isbn13 != null ? isbn13 : isbn;
+   }
+}
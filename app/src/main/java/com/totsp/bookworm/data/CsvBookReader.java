@@ -0,0 +1,204 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.model.BookUserData;
+import com.totsp.bookworm.util.CsvReader;
+import com.totsp.bookworm.util.DateUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.StringUtil;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the books from a BookWorm CSV file (see CsvManager), one record at a time (see CsvReader),
+ * rather than parsing the whole file up front.
+ *
+ * Records are either the FULL format (12 or 13 fields, the export format), or a single element, which is
+ * an ISBN or a search term. ISBNs are resolved in batches (see BookDataSource.getBooks(Collection)),
+ * the reader looks ahead at most one batch (or window) of records, and books are returned in file order.
+ */
+public class CsvBookReader implements Iterator<Book> {
+
+   private static final int ISBN_BATCH_SIZE = 25;
+   // max records looked ahead while ISBNs are pending (a batch is resolved early rather than exceed it)
+   private static final int MAX_WINDOW_SIZE = 100;
+
+   private final BookDataSource bookDataSource;
+   private final CsvReader csvReader;
+   private final ArrayList<String> fields = new ArrayList<String>(13);
+
+   // books parsed (nulls are placeholders for the ISBNs being batched, to keep file order)
+   private final ArrayList<Book> window = new ArrayList<Book>();
+   private final ArrayList<String> isbns = new ArrayList<String>(CsvBookReader.ISBN_BATCH_SIZE);
+   private final ArrayList<Integer> isbnPositions = new ArrayList<Integer>(CsvBookReader.ISBN_BATCH_SIZE);
+   private int windowPos;
+   private boolean done;
+
+   /**
+    * Open CSV file for reading.
+    *
+    * @param bookDataSource used for single element records (may be null, then they are skipped)
+    * @param f
+    * @throws IOException
+    */
+   public CsvBookReader(final BookDataSource bookDataSource, final File f) throws IOException {
+      this(bookDataSource, new FileInputStream(f));
+   }
+
+   /**
+    * Read CSV data (UTF-8) from stream, it is closed with the reader.
+    *
+    * @param bookDataSource used for single element records (may be null, then they are skipped)
+    * @param in
+    * @throws IOException
+    */
+   public CsvBookReader(final BookDataSource bookDataSource, final InputStream in) throws IOException {
+      this.bookDataSource = bookDataSource;
+      csvReader = new CsvReader(new InputStreamReader(new BufferedInputStream(in), "UTF-8"));
+   }
+
+   public boolean hasNext() {
+      while ((windowPos >= window.size()) && !done) {
+         fill();
+      }
+      return windowPos < window.size();
+   }
+
+   public Book next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      return window.get(windowPos++);
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   public void close() {
+      done = true;
+      try {
+         csvReader.close();
+      } catch (IOException e) {
+         // ignore
+      }
+   }
+
+   // read records until there are books to return (or a batch of ISBNs to resolve, or the end of the file)
+   private void fill() {
+      window.clear();
+      windowPos = 0;
+      try {
+         boolean more = true;
+         while ((isbns.size() < CsvBookReader.ISBN_BATCH_SIZE) && (window.size() < CsvBookReader.MAX_WINDOW_SIZE)) {
+            more = csvReader.readRecord(fields);
+            // skip header, and stop as soon as there are books and no ISBNs to wait for
+            if (!more || ((csvReader.getRecordNumber() > 1) && parseRecord() && isbns.isEmpty())) {
+               break;
+            }
+         }
+         if (!more) {
+            close();
+         }
+      } catch (IOException e) {
+         Log.e(Constants.LOG_TAG, "Error reading CSV file, import stopped at record " + csvReader.getRecordNumber(), e);
+         close();
+      }
+
+      if (!isbns.isEmpty()) {
+         Log.i(Constants.LOG_TAG, "Resolving " + isbns.size() + " ISBNs from CSV file as a batch.");
+         HashMap<String, Book> found = bookDataSource.getBooks(isbns);
+         for (int i = 0; i < isbns.size(); i++) {
+            window.set(isbnPositions.get(i), found.get(isbns.get(i)));
+         }
+         isbns.clear();
+         isbnPositions.clear();
+         // ISBNs that were not found
+         window.removeAll(Collections.singleton(null));
+      }
+   }
+
+   // parse current record, add its book (or ISBN placeholder) to the window, return true if anything was added
+   private boolean parseRecord() {
+      // "Title,Subtitle,Authors(pipe|separated),ISBN10,ISBN13,Description,Format,
+      //    Subject,Publisher,Published Date,User Rating,User Read Status, User Note\n"
+      int record = csvReader.getRecordNumber();
+      if ((fields.size() == 12) || (fields.size() == 13)) {
+         // FULL type CSV file for import
+         Book b = new Book();
+         b.title = fields.get(0).trim();
+         b.subTitle = fields.get(1);
+         b.authors = StringUtil.expandAuthors(fields.get(2).replace('|', ','));
+         b.isbn10 = fields.get(3);
+         b.isbn13 = fields.get(4);
+         b.description = fields.get(5);
+         b.format = fields.get(6);
+         b.subject = fields.get(7);
+         b.publisher = fields.get(8);
+         Date date = DateUtil.parse(fields.get(9));
+         if (date != null) {
+            b.datePubStamp = date.getTime();
+         }
+
+         long rating = 0;
+         try {
+            rating = Integer.valueOf(fields.get(10).trim());
+         } catch (NumberFormatException e) {
+            // ignore
+         }
+         boolean read = Boolean.valueOf(fields.get(11).trim());
+         String blurb = fields.size() > 12 ? fields.get(12) : null;
+         b.bookUserData = new BookUserData(0L, rating, read, blurb);
+         if (b.title.length() > 0) {
+            window.add(b);
+            return true;
+         }
+      } else if (fields.size() == 1) {
+         // SINGLE ELEMENT type, 1 element per file line, use it as search term (ISBN or title works here)
+         String term = fields.get(0).trim();
+         if (term.length() == 0) {
+            return false;
+         }
+         String isbn13 = IsbnUtil.toIsbn13(term);
+         if (bookDataSource == null) {
+            Log.w(Constants.LOG_TAG, "BookDataSource null, not importing book from CSV based on ISBN or term alone.");
+         } else if (isbn13 != null) {
+            // ISBNs are resolved together (as a batch), placeholder keeps the file order
+            isbnPositions.add(window.size());
+            isbns.add(isbn13);
+            window.add(null);
+            return true;
+         } else if (IsbnUtil.looksLikeIsbn(term)) {
+            // mistyped ISBN (bad check digit), a search for it would not find the book either
+            Log.w(Constants.LOG_TAG, "Not importing record " + record
+                     + " from import file because it is not a valid ISBN - " + term);
+         } else {
+            ArrayList<Book> searchBooks = bookDataSource.getBooks(URLEncoder.encode(term), 0, 1);
+            if ((searchBooks != null) && !searchBooks.isEmpty()) {
+               window.add(searchBooks.get(0));
+               return true;
+            }
+         }
+      } else {
+         Log.w(Constants.LOG_TAG, "Warning, not including record " + record
+                  + " from import file because it does not parse into correct number of parts,"
+                  + " 1 (search term only), or 13 (full BookWorm format). (Parsed as " + fields.size() + ").");
+      }
+      return false;
+   }
+}
@@ -1,25 +1,27 @@
 package com.totsp.bookworm.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.totsp.bookworm.Constants;
-import com.totsp.bookworm.R;
 import com.totsp.bookworm.model.Author;
 import com.totsp.bookworm.model.Book;
-import com.totsp.bookworm.model.BookUserData;
 import com.totsp.bookworm.util.DateUtil;
 import com.totsp.bookworm.util.ExternalStorageUtil;
 import com.totsp.bookworm.util.FileUtil;
-import com.totsp.bookworm.util.StringUtil;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Scanner;
 
 /**
  * Utils for CSV import/export/parse.
@@ -29,37 +31,59 @@ import java.util.Scanner;
  */
 public class CsvManager {
 
+   private static final String HEADER =
+            "Title,Subtitle,Authors(pipe|separated),ISBN10,ISBN13,Description,"
+                     + "Format,Subject,Publisher,Published Date,User Rating,User Read Status, User Note [optional]\n";
+
+   // export is written through one large buffer (rather than built up as one String)
+   private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+   // rows written between progress callbacks
+   private static final int EXPORT_PROGRESS_INTERVAL = 50;
+
+   /**
+    * Progress callback for export (called on the exporting thread).
+    */
+   public interface ExportListener {
+      void onProgress(int booksWritten, int totalBooks);
+   }
+
    /**
     * Export data as File to EXTERNAL export location (on removable storage).
     * 
+    * Books are streamed from a single cursor straight to the file, so memory use does not
+    * depend on the number of books.
+    * 
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    * 
+    * @param dataManager
+    * @param listener (may be null)
+    * @return number of books exported, or -1 if the export failed
     */
-   public static boolean exportExternal(final Context context, final ArrayList<Book> books) {
-      String csv = getCSVString(true, books);
-      if (ExternalStorageUtil.isExternalStorageAvail()) {
-         if (saveCSVStringAsFile(new File(DataConstants.EXTERNAL_DATA_PATH), csv)) {
-            return true;
-         } else {
-            Log.w(Constants.LOG_TAG, "Error, unable to save data contents as CSV file to external storage.");
-            Toast.makeText(context, "Error, unable to save data contents as CSV file to external storage.",
-                     Toast.LENGTH_LONG).show();
-            return false;
-         }
-      } else {
-         Toast.makeText(context, context.getResources().getString(R.string.msgExternalStorageNAError),
-                  Toast.LENGTH_LONG).show();
-         return false;
+   public static int exportExternal(final DataManager dataManager, final ExportListener listener) {
+      if (!ExternalStorageUtil.isExternalStorageAvail()) {
+         Log.w(Constants.LOG_TAG, "External storage not available, unable to export CSV file.");
+         return -1;
+      }
+      File directory = new File(DataConstants.EXTERNAL_DATA_PATH);
+      if (!directory.exists()) {
+         directory.mkdirs();
+      }
+      int count = CsvManager.exportToFile(dataManager, new File(directory, DataConstants.EXPORT_FILENAME), listener);
+      if (count < 0) {
+         Log.w(Constants.LOG_TAG, "Error, unable to save data contents as CSV file to external storage.");
       }
+      return count;
    }
 
    /**
     * Export data as File to INTERNAL export location (/data/data/package/files).
     * 
     * @param context
-    * @param books
+    * @param dataManager
     */
-   public static boolean exportInternal(final Context context, final ArrayList<Book> books) {
-      String csv = getCSVString(true, books);
-      if (saveCSVStringAsFile(context.getFilesDir(), csv)) {
+   public static boolean exportInternal(final Context context, final DataManager dataManager) {
+      File file = new File(context.getFilesDir(), DataConstants.EXPORT_FILENAME);
+      if (CsvManager.exportToFile(dataManager, file, null) >= 0) {
          return true;
       } else {
          Log.w(Constants.LOG_TAG, "Error, unable to save data contents as CSV file to internal storage.");
@@ -76,116 +100,138 @@ public class CsvManager {
     * @param books
     */
    public static void appendInternal(final Context context, final ArrayList<Book> books) {
-      String csv = getCSVString(false, books);
-      if (appendCSVStringToFile(context.getFilesDir(), csv)) {
-         return;
-      } else {
+      File file = new File(context.getFilesDir(), DataConstants.EXPORT_FILENAME);
+      boolean result = false;
+      synchronized (FileUtil.DATA_LOCK) {
+         Writer out = null;
+         try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            for (int i = 0; i < books.size(); i++) {
+               Book b = books.get(i);
+               String read = b.bookUserData != null ? String.valueOf(b.bookUserData.read) : "";
+               String rating = b.bookUserData != null ? String.valueOf(b.bookUserData.rating) : "";
+               String blurb = b.bookUserData != null ? b.bookUserData.blurb : null;
+               CsvManager.writeRow(out, b.title, b.subTitle, CsvManager.joinAuthors(b.authors), b.isbn10, b.isbn13,
+                        b.description, b.format, b.subject, b.publisher, b.datePubStamp, rating, read, blurb);
+            }
+            out.close();
+            out = null;
+            result = true;
+         } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error appending CSV data to file " + e.getMessage(), e);
+         } finally {
+            CsvManager.closeQuietly(out);
+         }
+      }
+      if (!result) {
          throw new RuntimeException("Error, unable to save data contents as CSV file.");
       }
    }
 
+   // write all books to file (via temp file, so a failed export doesn't clobber the previous one)
+   private static int exportToFile(final DataManager dataManager, final File file, final ExportListener listener) {
+      File tempFile = new File(file.getPath() + ".tmp");
+      int count = 0;
+      synchronized (FileUtil.DATA_LOCK) {
+         Cursor c = null;
+         Writer out = null;
+         try {
+            c = dataManager.getExportCursor();
+            int total = c.getCount();
+            out =
+                     new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"),
+                              CsvManager.EXPORT_BUFFER_SIZE);
+            out.write(CsvManager.HEADER);
+            // columns are in CSV order (see BookDAO.getExportCursor)
+            while (c.moveToNext()) {
+               String rating = c.isNull(10) ? "0" : String.valueOf(c.getInt(10));
+               String read = String.valueOf(!c.isNull(11) && (c.getInt(11) == 1));
+               CsvManager.writeRow(out, c.getString(0), c.getString(1), c.getString(2), c.getString(3),
+                        c.getString(4), c.getString(5), c.getString(6), c.getString(7), c.getString(8), c.getLong(9),
+                        rating, read, c.getString(12));
+               count++;
+               if ((listener != null) && (((count % CsvManager.EXPORT_PROGRESS_INTERVAL) == 0) || (count == total))) {
+                  listener.onProgress(count, total);
+               }
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+               throw new IOException("Unable to replace " + file.getPath());
+            }
+         } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error writing CSV export file " + e.getMessage(), e);
+            count = -1;
+         } catch (SQLException e) {
+            Log.e(Constants.LOG_TAG, "Error reading books for CSV export " + e.getMessage(), e);
+            count = -1;
+         } finally {
+            CsvManager.closeQuietly(out);
+            if (c != null) {
+               c.close();
+            }
+            if (tempFile.exists()) {
+               tempFile.delete();
+            }
+         }
+      }
+      if (count >= 0) {
+         Log.i(Constants.LOG_TAG, "Exported " + count + " books to CSV file " + file.getPath());
+      }
+      return count;
+   }
+
+   /**
+    * Open BookWorm CSV file (export format, or one ISBN/search term per line) for reading books
+    * one at a time (see CsvBookReader), the caller must close the reader if it doesn't read to the end.
+    * 
+    * @param bookDataSource
+    * @param f
+    * @return
+    * @throws IOException
+    */
+   public static CsvBookReader openCSVFile(final BookDataSource bookDataSource, final File f) throws IOException {
+      Log.i(Constants.LOG_TAG, "Parsing file:" + f.getAbsolutePath() + " for import into BookWorm database.");
+      return new CsvBookReader(bookDataSource, f);
+   }
+
+   /**
+    * Open BookWorm CSV data (UTF-8) from stream for reading books one at a time (see CsvBookReader),
+    * the stream is closed with the reader.
+    * 
+    * @param bookDataSource
+    * @param in
+    * @return
+    * @throws IOException
+    */
+   public static CsvBookReader openCSVFile(final BookDataSource bookDataSource, final InputStream in)
+            throws IOException {
+      return new CsvBookReader(bookDataSource, in);
+   }
+
    /**
     * Parse BookWorm backup file specific format into List<Book>.
     * 
-    * NOTE: This is brittle and primitive, but small and effective if file is in correct format.
+    * NOTE - holds every book in memory, for large files prefer openCSVFile (and insert as the books are read).
     * 
     * @param bookDataSource
     * @param f
     * @return
     */
    public static ArrayList<Book> parseCSVFile(final BookDataSource bookDataSource, final File f) {
-      // TODO protect against SQL injection attacks? risk very minor, it's your own DB, but still
       ArrayList<Book> books = new ArrayList<Book>();
       if (f.exists() && f.canRead()) {
-         Log.i(Constants.LOG_TAG, "Parsing file:" + f.getAbsolutePath() + " for import into BookWorm database.");
-         // "Title,Subtitle,Authors(pipe|separated),ISBN10,ISBN13,Description,Format,
-         //    Subject,Publisher,Published Date,User Rating,User Read Status, User Note\n"
-         Scanner scanner = null;
-         int count = 0;
+         CsvBookReader reader = null;
          try {
-            scanner = new Scanner(f);
-            while (scanner.hasNextLine()) {
-               count++;
-               String line = scanner.nextLine();
-
-               String message = "Processing line for import:" + line;
-               Log.i(Constants.LOG_TAG, message);
-
-               if ((line != null) && (count > 1)) {
-                  String[] parts = line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)", -1);
-
-                  // FULL type CSV file for import
-                  if ((parts != null) && ((parts.length == 12) || (parts.length == 13))) {
-                     Book b = new Book();
-                     b.title = parts[0];
-                     if (b.title != null) {
-                        b.title.trim();
-                     }
-                     b.subTitle = parts[1];
-                     if (parts[2] != null) {
-                        String authors = parts[2].replace('|', ',');
-                        b.authors = StringUtil.expandAuthors(authors);
-                     }
-                     b.isbn10 = parts[3];
-                     b.isbn13 = parts[4];
-                     b.description = parts[5];
-                     b.format = parts[6];
-                     b.subject = parts[7];
-                     b.publisher = parts[8];
-                     Date date = DateUtil.parse(parts[9]);
-                     if (date != null) {
-                        b.datePubStamp = date.getTime();
-                     }
-
-                     long rating = 0;
-                     if (parts[10] != null) {
-                        try {
-                           rating = Integer.valueOf(parts[10]);
-                        } catch (NumberFormatException e) {
-                           // ignore
-                        }
-                     }
-                     long readStatus = 0;
-                     if (parts[11] != null) {
-                        readStatus = Boolean.valueOf(parts[11]) ? 1 : 0;
-                     }
-
-                     String blurb = null;
-                     if (parts.length > 12) {
-                        blurb = parts[12];
-                     }
-
-                     BookUserData bud = new BookUserData(0L, rating, readStatus == 1 ? true : false, blurb);
-                     b.bookUserData = bud;
-                     if (b.title != null) {
-                        books.add(b);
-                     }
-                  } else if ((parts != null) && (parts.length == 1)) {
-                     if (parts[0] != null && !parts[0].equals("")) {
-                        // SINGLE ELEMENT type, 1 element per file line, use it as search term (ISBN or title works here)                        
-                        if (bookDataSource != null) {
-                           ArrayList<Book> searchBooks = bookDataSource.getBooks(parts[0], 0, 1);
-                           if (searchBooks != null && !searchBooks.isEmpty()) {
-                              books.add(searchBooks.get(0));
-                           }
-                        } else {
-                           Log.w(Constants.LOG_TAG,
-                                    "BookDataSource null, not importing book from CSV based on ISBN alone.");
-                        }
-                     }
-                  } else {
-                     Log.w(Constants.LOG_TAG, "Warning, not including line " + count
-                              + " from import file because it does not parse into correct number of parts,"
-                              + " 1 (search term only), or 13 (full BookWorm format). (Parsed as " + parts.length
-                              + ").");
-                  }
-               }
+            reader = CsvManager.openCSVFile(bookDataSource, f);
+            while (reader.hasNext()) {
+               books.add(reader.next());
             }
-         } catch (FileNotFoundException e) {
-
+         } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error opening CSV file for import " + e.getMessage(), e);
          } finally {
-            if (scanner != null) {
-               scanner.close();
+            if (reader != null) {
+               reader.close();
             }
          }
       }
@@ -193,74 +239,85 @@ public class CsvManager {
       return books;
    }
 
-   private static boolean saveCSVStringAsFile(final File directory, final String csv) {
-      File file = new File(directory + File.separator + DataConstants.EXPORT_FILENAME);
-      return FileUtil.writeStringAsFile(csv, file);
+   private static void writeRow(final Writer out, final String title, final String subTitle, final String authors,
+            final String isbn10, final String isbn13, final String description, final String format,
+            final String subject, final String publisher, final long datePubStamp, final String rating,
+            final String read, final String blurb) throws IOException {
+      CsvManager.writeField(out, title);
+      out.write(',');
+      CsvManager.writeField(out, subTitle);
+      out.write(',');
+      CsvManager.writeField(out, authors);
+      out.write(',');
+      CsvManager.writeField(out, isbn10);
+      out.write(',');
+      CsvManager.writeField(out, isbn13);
+      out.write(',');
+      CsvManager.writeField(out, description);
+      out.write(',');
+      CsvManager.writeField(out, format);
+      out.write(',');
+      CsvManager.writeField(out, subject);
+      out.write(',');
+      CsvManager.writeField(out, publisher);
+      out.write(',');
+      out.write(DateUtil.format(new Date(datePubStamp)));
+      out.write(',');
+      out.write(rating);
+      out.write(',');
+      out.write(read);
+      out.write(',');
+      CsvManager.writeField(out, blurb);
+      out.write('\n');
    }
 
-   private static boolean appendCSVStringToFile(final File directory, final String csv) {
-      File file = new File(directory + File.separator + DataConstants.EXPORT_FILENAME);
-      if (!file.exists()) {
-         try {
-            file.createNewFile(); // ok if returns false, overwrite
-         } catch (IOException e) {
-            Log.e(Constants.LOG_TAG, "Unable to create CSV File for backup.", e);
-            return false;
+   // RFC 4180, the field is quoted if it contains a comma, quote, or newline, and quotes are doubled
+   // (written a char at a time, no intermediate Strings)
+   private static void writeField(final Writer out, final String value) throws IOException {
+      if (value == null) {
+         return;
+      }
+      boolean quote = false;
+      for (int i = 0; (i < value.length()) && !quote; i++) {
+         char c = value.charAt(i);
+         quote = (c == ',') || (c == '"') || (c == '\n') || (c == '\r');
+      }
+      if (!quote) {
+         out.write(value);
+         return;
+      }
+      out.write('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"') {
+            out.write('"');
          }
+         out.write(c);
       }
-      return FileUtil.appendStringToFile(csv, file);
+      out.write('"');
    }
 
-   private static String cleanString(String in) {
-      String result = in;
-      in = in.replaceAll("\"", "");
-      if (in.contains(",") || in.contains("\n")) {
-         result = "\"" + in + "\"";
+   private static String joinAuthors(final ArrayList<Author> authors) {
+      if ((authors == null) || authors.isEmpty()) {
+         return null;
       }
-      return result;
-   }
-
-   private static String getCSVString(final boolean includeHeader, final ArrayList<Book> books) {
       StringBuilder sb = new StringBuilder();
-      if (includeHeader) {
-         sb.append("Title,Subtitle,Authors(pipe|separated),ISBN10,ISBN13,Description,");
-         sb.append("Format,Subject,Publisher,Published Date,User Rating,User Read Status, User Note [optional]\n");
-      }
-      if ((books != null) && !books.isEmpty()) {
-         for (int i = 0; i < books.size(); i++) {
-            Book b = books.get(i);
-            sb.append(cleanString(b.title) + ",");
-            sb.append(b.subTitle != null ? cleanString(b.subTitle) + "," : ",");
-            if ((b.authors != null) && !b.authors.isEmpty()) {
-               for (int j = 0; j < b.authors.size(); j++) {
-                  Author a = b.authors.get(j);
-                  if (j == 0) {
-                     sb.append(cleanString(a.name));
-                  } else {
-                     sb.append("|" + cleanString(a.name));
-                  }
-               }
-               sb.append(",");
-            } else {
-               sb.append(",");
-            }
-            sb.append(b.isbn10 != null ? cleanString(b.isbn10) + "," : ",");
-            sb.append(b.isbn13 != null ? cleanString(b.isbn13) + "," : ",");
-            sb.append(b.description != null ? cleanString(b.description) + "," : ",");
-            sb.append(b.format != null ? cleanString(b.format) + "," : ",");
-            sb.append(b.subject != null ? cleanString(b.subject) + "," : ",");
-            sb.append(b.publisher != null ? cleanString(b.publisher) + "," : ",");
-            sb.append(DateUtil.format(new Date(b.datePubStamp)) + ",");
-            if (b.bookUserData != null) {
-               sb.append(b.bookUserData.rating + ",");
-               sb.append(b.bookUserData.read + ",");
-               sb.append(b.bookUserData.blurb != null ? b.bookUserData.blurb : "");
-            } else {
-               sb.append(" , ,");
-            }
-            sb.append("\n");
+      for (int i = 0; i < authors.size(); i++) {
+         if (i > 0) {
+            sb.append('|');
          }
+         sb.append(authors.get(i).name);
       }
       return sb.toString();
    }
-}
\ No newline at end of file
+
+   private static void closeQuietly(final Writer out) {
+      if (out != null) {
+         try {
+            out.close();
+         } catch (IOException e) {
+            // ignore
+         }
+      }
+   }
+}
@@ -34,6 +34,9 @@ public class DataConstants {
    public static final String BOOKUSERDATA_TABLE = "bookuserdata";
    public static final String BOOKAUTHOR_TABLE = "bookauthor";
    public static final String AUTHOR_TABLE = "author";
+   public static final String COVERMISS_TABLE = "covermiss";
+   public static final String LOOKUPCACHE_TABLE = "lookupcache";
+   public static final String WORKQUEUE_TABLE = "workqueue";
 
    public static final String BOOKID = "bid";
    public static final String BOOKUSERDATAID = "budid";
@@ -53,6 +56,21 @@ public class DataConstants {
    public static final String PUBLISHER = "pub";
    public static final String FORMAT = "format";
    public static final String SUBJECT = "subject";
+   public static final String COVERMISSID = "cmid";
+   public static final String PROVIDER = "provider";
+   public static final String ISBN = "isbn";
+   public static final String CHECKED = "checked";
+   public static final String COVERSIZE = "coversize";
+   public static final String LOOKUPCACHEID = "lcid";
+   public static final String LOOKUPKEY = "lkey";
+   public static final String LOOKUPVALUE = "lval";
+   public static final String WORKQUEUEID = "wqid";
+   public static final String WORKTYPE = "wtype";
+   public static final String WORKKEY = "wkey";
+   public static final String PRIORITY = "priority";
+   public static final String ATTEMPTS = "attempts";
+   public static final String NEXTATTEMPT = "nextattempt";
+   public static final String CREATED = "created";
 
    private DataConstants() {
    }
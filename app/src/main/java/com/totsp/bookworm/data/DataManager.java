@@ -2,6 +2,7 @@ package com.totsp.bookworm.data;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.SystemClock;
@@ -12,8 +13,12 @@ import com.totsp.bookworm.Constants;
 import com.totsp.bookworm.data.dao.AuthorDAO;
 import com.totsp.bookworm.data.dao.BookDAO;
 import com.totsp.bookworm.data.dao.BookUserDataDAO;
+import com.totsp.bookworm.data.dao.CoverMissDAO;
+import com.totsp.bookworm.data.dao.LookupCacheDAO;
+import com.totsp.bookworm.data.dao.WorkQueueDAO;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.model.BookListStats;
+import com.totsp.bookworm.model.WorkItem;
 
 import java.util.ArrayList;
 
@@ -27,7 +32,7 @@ import java.util.ArrayList;
  */
 public class DataManager {
 
-   private static final int DATABASE_VERSION = 10;
+   private static final int DATABASE_VERSION = 14;
 
    private Context context;
 
@@ -38,6 +43,9 @@ public class DataManager {
 
    private AuthorDAO authorDAO;
    private BookDAO bookDAO;
+   private CoverMissDAO coverMissDAO;
+   private LookupCacheDAO lookupCacheDAO;
+   private WorkQueueDAO workQueueDAO;
 
    private enum FileChangeMode {
       APPEND, REPLACE;
@@ -64,6 +72,9 @@ public class DataManager {
       // (future they probably should be more separated)
       authorDAO = new AuthorDAO(db);
       bookDAO = new BookDAO(db);
+      coverMissDAO = new CoverMissDAO(db);
+      lookupCacheDAO = new LookupCacheDAO(db);
+      workQueueDAO = new WorkQueueDAO(db);
 
       if (openHelper.isDbCreated()) {
          // insert default data here if needed
@@ -80,6 +91,9 @@ public class DataManager {
          // since we pass db into DAO, have to recreate DAO if db is re-opened
          authorDAO = new AuthorDAO(db);
          bookDAO = new BookDAO(db);
+         coverMissDAO = new CoverMissDAO(db);
+         lookupCacheDAO = new LookupCacheDAO(db);
+         workQueueDAO = new WorkQueueDAO(db);
       }
    }
 
@@ -117,6 +131,57 @@ public class DataManager {
       return id;
    }
 
+   /**
+    * Insert books in one transaction (each book's id is set), and append them to the backup in one go.
+    * If any insert fails the whole transaction is rolled back, and the books are inserted one at a time instead.
+    *
+    * @param books
+    * @return the books that were inserted
+    */
+   public ArrayList<Book> insertBooks(final ArrayList<Book> books) {
+      ArrayList<Book> inserted = new ArrayList<Book>(books.size());
+      boolean failed = false;
+      // bookDAO.insert transactions nest in this one (a failed nested transaction fails the outer one)
+      db.beginTransaction();
+      try {
+         for (int i = 0; (i < books.size()) && !failed; i++) {
+            Book b = books.get(i);
+            long id = bookDAO.insert(b);
+            if (id > 0) {
+               b.id = id;
+               inserted.add(b);
+            } else {
+               failed = true;
+            }
+         }
+         if (!failed) {
+            db.setTransactionSuccessful();
+         }
+      } catch (SQLException e) {
+         Log.e(Constants.LOG_TAG, "Error inserting books", e);
+         failed = true;
+      } finally {
+         db.endTransaction();
+      }
+
+      if (failed) {
+         Log.w(Constants.LOG_TAG, "Bulk insert rolled back, inserting books individually");
+         inserted.clear();
+         for (int i = 0; i < books.size(); i++) {
+            Book b = books.get(i);
+            long id = bookDAO.insert(b);
+            if (id > 0) {
+               b.id = id;
+               inserted.add(b);
+            }
+         }
+      }
+      if (!inserted.isEmpty()) {
+         this.dataChanged(FileChangeMode.APPEND, inserted);
+      }
+      return inserted;
+   }
+
    public void updateBook(final Book b) {
       bookDAO.update(b);
       // for now don't worry about updating backup on an update (it will happen at next insert, should be enough)
@@ -131,22 +196,101 @@ public class DataManager {
 
    // write changed data to INTERNAL backup file, and also tell BackupManager that data changed
    private void dataChanged(final FileChangeMode mode, final Book book) {
+      ArrayList<Book> list = new ArrayList<Book>(1);
+      list.add(book);
+      this.dataChanged(mode, list);
+   }
+
+   private void dataChanged(final FileChangeMode mode, final ArrayList<Book> books) {
       // replacing the entire backup file, especially if large, is expensive
       // allow user to specify if operation should APPEND or REPLACE 
       // (because Files are difficult to update [and doing so basically as ineffient as replace anyway]
       // on update or delete if data we will replace the entire file, unless becomes a performance issue)
       if (mode.equals(FileChangeMode.REPLACE)) {
-         CsvManager.exportInternal(context, selectAllBooks());
+         CsvManager.exportInternal(context, this);
       } else if (mode.equals(FileChangeMode.APPEND)) {
-         ArrayList<Book> list = new ArrayList<Book>(1);
-         list.add(book);
-         CsvManager.appendInternal(context, list);
+         CsvManager.appendInternal(context, books);
       }
       if (backupManager != null) {
          backupManager.dataChanged();
       }
    }
 
+   // cover misses (negative cache for cover providers, see CoverMissCache)
+   public boolean isCoverMiss(final int providerKey, final String isbn, final int size, final long minChecked) {
+      return coverMissDAO.isMiss(providerKey, isbn, size, minChecked);
+   }
+
+   public void insertCoverMiss(final int providerKey, final String isbn, final int size) {
+      coverMissDAO.insert(providerKey, isbn, size, System.currentTimeMillis());
+   }
+
+   public void deleteCoverMiss(final int providerKey, final String isbn) {
+      coverMissDAO.delete(providerKey, isbn);
+   }
+
+   public int deleteExpiredCoverMisses(final long minChecked) {
+      return coverMissDAO.deleteExpired(minChecked);
+   }
+
+   public void deleteAllCoverMisses() {
+      coverMissDAO.deleteAll();
+   }
+
+   // lookup results (cache for book data sources, see CachingBookDataSource)
+   public String selectLookupResult(final String provider, final String key, final long minChecked) {
+      return lookupCacheDAO.select(provider, key, minChecked);
+   }
+
+   public void insertLookupResult(final String provider, final String key, final String value) {
+      lookupCacheDAO.insert(provider, key, value, System.currentTimeMillis());
+   }
+
+   public int deleteExpiredLookupResults(final long minChecked) {
+      return lookupCacheDAO.deleteExpired(minChecked);
+   }
+
+   public int trimLookupResults(final int maxRows) {
+      return lookupCacheDAO.deleteOldest(maxRows);
+   }
+
+   public void deleteAllLookupResults() {
+      lookupCacheDAO.deleteAll();
+   }
+
+   // deferred work (see WorkQueue)
+   public boolean insertWorkItem(final int type, final String key, final long bookId, final int priority) {
+      return workQueueDAO.insert(type, key, bookId, priority, System.currentTimeMillis());
+   }
+
+   public ArrayList<WorkItem> selectReadyWorkItems(final int type, final int limit) {
+      return workQueueDAO.selectReady(type, System.currentTimeMillis(), limit);
+   }
+
+   public void updateWorkItemAttempt(final long id, final int attempts, final long nextAttempt) {
+      workQueueDAO.updateAttempt(id, attempts, nextAttempt);
+   }
+
+   public void deleteWorkItem(final long id) {
+      workQueueDAO.delete(id);
+   }
+
+   public void deleteAllWorkItems() {
+      workQueueDAO.deleteAll();
+   }
+
+   public long getNextWorkItemAttempt() {
+      return workQueueDAO.selectNextAttempt();
+   }
+
+   public int getWorkItemCount() {
+      return workQueueDAO.count();
+   }
+
+   public Cursor getExportCursor() {
+      return bookDAO.getExportCursor();
+   }
+
    public Cursor getBookCursor(final String orderBy, final String whereClauseLimit) {
       return bookDAO.getCursor(orderBy, whereClauseLimit);
    }
@@ -219,6 +363,9 @@ public class DataManager {
          AuthorDAO.onCreate(db);
          BookDAO.onCreate(db);
          BookUserDataDAO.onCreate(db);
+         CoverMissDAO.onCreate(db);
+         LookupCacheDAO.onCreate(db);
+         WorkQueueDAO.onCreate(db);
          dbCreated = true;
       }
 
@@ -227,9 +374,23 @@ public class DataManager {
          Log
                   .i(Constants.LOG_TAG, "SQLiteOpenHelper onUpgrade - oldVersion:" + oldVersion + " newVersion:"
                            + newVersion);
-         AuthorDAO.onUpgrade(db, oldVersion, newVersion);
-         BookUserDataDAO.onUpgrade(db, oldVersion, newVersion);
-         BookDAO.onUpgrade(db, oldVersion, newVersion);
+         // the book/author/userdata upgrades drop and re-create their tables (restore is then from the CSV backup)
+         // only do that for versions that actually changed those tables, not for versions that only add cache tables
+         if (oldVersion < 10) {
+            AuthorDAO.onUpgrade(db, oldVersion, newVersion);
+            BookUserDataDAO.onUpgrade(db, oldVersion, newVersion);
+            BookDAO.onUpgrade(db, oldVersion, newVersion);
+         }
+         if (oldVersion < 14) {
+            // new as of 11, size added as of 14
+            CoverMissDAO.onUpgrade(db, oldVersion, newVersion);
+         }
+         if (oldVersion < 12) {
+            LookupCacheDAO.onUpgrade(db, oldVersion, newVersion);
+         }
+         if (oldVersion < 13) {
+            WorkQueueDAO.onUpgrade(db, oldVersion, newVersion);
+         }
       }
 
       public boolean isDbCreated() {
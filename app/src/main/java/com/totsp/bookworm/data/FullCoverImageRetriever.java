@@ -0,0 +1,77 @@
+package com.totsp.bookworm.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
+
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.NetworkUtil;
+
+/**
+ * Retrieve the full size cover for a book on demand, in the background (only the thumbnail is
+ * retrieved for bulk imports/resets/restores, the full cover is retrieved the first time the book is shown).
+ *
+ * One retrieval at a time, the callback is called on the UI Thread, and not at all if retrieval
+ * is cancelled or fails.
+ */
+public class FullCoverImageRetriever {
+
+   /**
+    * Callback for a retrieved full cover (called on the UI Thread).
+    */
+   public interface Callback {
+      void onFullCoverImage(Book book, Bitmap coverImage);
+   }
+
+   private final ImageManager imageManager;
+   private final ConnectivityManager cMgr;
+   private final Callback callback;
+
+   private RetrieveFullCoverImageTask task;
+
+   public FullCoverImageRetriever(final Context context, final ImageManager imageManager, final Callback callback) {
+      this.imageManager = imageManager;
+      this.callback = callback;
+      cMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+   }
+
+   /**
+    * Start retrieving full cover for book (no-op if offline, or a retrieval is already running).
+    *
+    * @param book
+    */
+   public void retrieve(final Book book) {
+      if (NetworkUtil.connectionPresent(cMgr)
+               && ((task == null) || (task.getStatus() == AsyncTask.Status.FINISHED))) {
+         task = new RetrieveFullCoverImageTask();
+         task.execute(book);
+      }
+   }
+
+   public void cancel() {
+      if ((task != null) && (task.getStatus() != AsyncTask.Status.FINISHED)) {
+         task.cancel(true);
+      }
+   }
+
+   private class RetrieveFullCoverImageTask extends AsyncTask<Book, Void, Bitmap> {
+      private Book book;
+
+      @Override
+      protected Bitmap doInBackground(final Book... args) {
+         book = args[0];
+         if (imageManager.retrieveFullCoverImage(book)) {
+            return imageManager.retrieveBitmap(book.title, book.id, false);
+         }
+         return null;
+      }
+
+      @Override
+      protected void onPostExecute(final Bitmap coverImage) {
+         if (coverImage != null) {
+            callback.onFullCoverImage(book, coverImage);
+         }
+      }
+   }
+}
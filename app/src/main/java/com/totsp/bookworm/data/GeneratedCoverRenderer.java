@@ -0,0 +1,237 @@
+package com.totsp.bookworm.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders generated (placeholder) cover images for books that don't have one, the title
+ * on a plain background.
+ *
+ * The title is laid out once (a single tokenization pass), a single Paint is reused, and
+ * rendered images are cached by title hash, in memory (LRU) and on disk, so the same placeholder
+ * isn't drawn again and again (imports, cover resets, the entry result screen).
+ *
+ * NOTE - returned Bitmaps are shared (cached), callers must not recycle or modify them.
+ */
+public class GeneratedCoverRenderer {
+
+   static final int WIDTH = 120;
+   static final int HEIGHT = 183;
+
+   // max chars per line, and baseline for each line (title is shown on at most 4 lines)
+   private static final int[] LINE_LENGTHS = { 15, 15, 15, 12 };
+   private static final int[] LINE_BASELINES = { 70, 85, 100, 115 };
+   private static final int LINE_X = 3;
+   private static final String ELLIPSIS = "...";
+
+   private static final int MEMORY_CACHE_SIZE = 16;
+
+   private final Paint paint;
+   private final File cacheDir;
+   private final LinkedHashMap<String, Bitmap> memoryCache;
+
+   private int renders;
+   private int memoryHits;
+   private int diskHits;
+
+   /**
+    * Create renderer, with optional disk cache location (null for memory cache only).
+    *
+    * @param cacheDir
+    */
+   public GeneratedCoverRenderer(final File cacheDir) {
+      this.cacheDir = cacheDir;
+      paint = new Paint();
+      paint.setTextSize(13);
+      paint.setColor(Color.WHITE);
+      paint.setAntiAlias(true);
+      paint.setStyle(Style.FILL);
+      memoryCache = new LinkedHashMap<String, Bitmap>(GeneratedCoverRenderer.MEMORY_CACHE_SIZE, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<String, Bitmap> eldest) {
+            return size() > GeneratedCoverRenderer.MEMORY_CACHE_SIZE;
+         }
+      };
+   }
+
+   /**
+    * Get generated cover image for title (from cache if present, rendered if not).
+    *
+    * @param title
+    * @return
+    */
+   public synchronized Bitmap getCoverImage(final String title) {
+      String key = GeneratedCoverRenderer.getKey(title);
+      Bitmap bitmap = memoryCache.get(key);
+      if (bitmap != null) {
+         memoryHits++;
+         return bitmap;
+      }
+
+      File file = getCacheFile(key);
+      if ((file != null) && file.exists()) {
+         bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+         if (bitmap != null) {
+            diskHits++;
+         }
+      }
+
+      if (bitmap == null) {
+         bitmap = render(GeneratedCoverRenderer.layoutTitle(title));
+         renders++;
+         if (file != null) {
+            writeCacheFile(bitmap, file);
+         }
+      }
+
+      memoryCache.put(key, bitmap);
+      return bitmap;
+   }
+
+   /**
+    * Clear memory cache (disk cache is left alone, it's cheap to keep and the OS can clear it).
+    *
+    */
+   public synchronized void clearMemoryCache() {
+      // don't recycle here, the bitmaps may still be in use by callers
+      memoryCache.clear();
+   }
+
+   public synchronized String getStatsSummary() {
+      return "generated covers rendered: " + renders + ", memory hits: " + memoryHits + ", disk hits: " + diskHits
+               + "\n";
+   }
+
+   /**
+    * Lay out title words into the cover lines (words are added to a line until it reaches
+    * the line length, longer titles are cut off with an ellipsis on the last line).
+    *
+    * @param title
+    * @return lines (some may be empty)
+    */
+   static String[] layoutTitle(final String title) {
+      ArrayList<String> words = GeneratedCoverRenderer.tokenize(title);
+      String[] lines = new String[GeneratedCoverRenderer.LINE_LENGTHS.length];
+      StringBuilder sb = new StringBuilder();
+      int word = 0;
+      for (int i = 0; i < lines.length; i++) {
+         sb.setLength(0);
+         int max = GeneratedCoverRenderer.LINE_LENGTHS[i] - 2;
+         while ((word < words.size()) && (sb.length() < max)) {
+            if (sb.length() > 0) {
+               sb.append(' ');
+            }
+            sb.append(words.get(word++));
+         }
+         if ((i == lines.length - 1) && (word < words.size())) {
+            sb.append(GeneratedCoverRenderer.ELLIPSIS);
+         }
+         lines[i] = sb.toString();
+      }
+      return lines;
+   }
+
+   // single pass over the title chars, split on whitespace
+   private static ArrayList<String> tokenize(final String title) {
+      ArrayList<String> words = new ArrayList<String>();
+      if (title == null) {
+         return words;
+      }
+      int start = -1;
+      for (int i = 0; i < title.length(); i++) {
+         if (Character.isWhitespace(title.charAt(i))) {
+            if (start >= 0) {
+               words.add(title.substring(start, i));
+               start = -1;
+            }
+         } else if (start < 0) {
+            start = i;
+         }
+      }
+      if (start >= 0) {
+         words.add(title.substring(start));
+      }
+      return words;
+   }
+
+   private Bitmap render(final String[] lines) {
+      Bitmap bitmap = Bitmap.createBitmap(GeneratedCoverRenderer.WIDTH, GeneratedCoverRenderer.HEIGHT, Bitmap.Config.RGB_565);
+      Canvas canvas = new Canvas(bitmap);
+      canvas.drawARGB(100, 165, 42, 42);
+      for (int i = 0; i < lines.length; i++) {
+         if (lines[i].length() > 0) {
+            canvas.drawText(lines[i], GeneratedCoverRenderer.LINE_X, GeneratedCoverRenderer.LINE_BASELINES[i], paint);
+         }
+      }
+      return bitmap;
+   }
+
+   private File getCacheFile(final String key) {
+      if (cacheDir == null) {
+         return null;
+      }
+      if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+         return null;
+      }
+      return new File(cacheDir, key + ".png");
+   }
+
+   private void writeCacheFile(final Bitmap bitmap, final File file) {
+      FileOutputStream fos = null;
+      try {
+         fos = new FileOutputStream(file);
+         // PNG, flat background and text compress well, and no artifacts
+         bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
+      } catch (IOException e) {
+         // cache only, log and move on
+         Log.w(Constants.LOG_TAG, "Unable to write generated cover cache file " + file.getName(), e);
+      } finally {
+         if (fos != null) {
+            try {
+               fos.close();
+            } catch (IOException e) {
+               // swallow
+            }
+         }
+      }
+   }
+
+   // hash of the title (hex), for the cache keys and file names
+   private static String getKey(final String title) {
+      String text = title != null ? title : "";
+      try {
+         MessageDigest md = MessageDigest.getInstance("MD5");
+         byte[] digest = md.digest(text.getBytes("UTF-8"));
+         StringBuilder sb = new StringBuilder(digest.length * 2);
+         for (int i = 0; i < digest.length; i++) {
+            int b = digest[i] & 0xff;
+            if (b < 0x10) {
+               sb.append('0');
+            }
+            sb.append(Integer.toHexString(b));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+         return Integer.toHexString(text.hashCode()) + "_" + text.length();
+      } catch (UnsupportedEncodingException e) {
+         return Integer.toHexString(text.hashCode()) + "_" + text.length();
+      }
+   }
+}
@@ -8,12 +8,19 @@ import com.totsp.bookworm.Constants;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.NetworkUtil;
 
-import java.io.ByteArrayInputStream;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GoogleBookDataSource implements BookDataSource {
 
+   private static final String GDATA_HOST = "books.google.com";
    // web identifier search url http://books.google.com/books?isbn=
    private static final String GDATA_BOOK_URL_PREFIX =
             "http://books.google.com/books/feeds/volumes?as_pt=BOOKS&q=isbn:";
@@ -26,15 +33,15 @@ public class GoogleBookDataSource implements BookDataSource {
    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
 
    private final BookWormApplication application;   
-   private final GoogleBooksHandler saxHandler;
    private final HttpHelper httpHelper;
 
    private boolean debugEnabled;
+   // SAX is the parser (see GoogleBooksParserBenchmark), with debug enabled responses alternate
+   // between SAX and the pull parser (same mapping, see GoogleBooksPullParser) to compare them on device
+   private final AtomicInteger parseCount = new AtomicInteger();
 
    public GoogleBookDataSource(final BookWormApplication application) {
       this.application = application;
-      // application is unused here - but ctor with application is required
-      saxHandler = new GoogleBooksHandler();
       httpHelper = new HttpHelper();
    }
 
@@ -46,6 +53,15 @@ public class GoogleBookDataSource implements BookDataSource {
       return getSingleBook(isbn);
    }
 
+   // no batch API, single lookups with bounded concurrency
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      return BatchBookLookup.getBooks(this, isbns);
+   }
+
+   public boolean isAvailable() {
+      return HttpHelper.isHostAvailable(GoogleBookDataSource.GDATA_HOST);
+   }
+
    public ArrayList<Book> getBooks(final String searchTerm, int startIndex, int numResults) {
       if (startIndex < 1) {
          // don't allow zero or neg, just set to 1
@@ -65,19 +81,7 @@ public class GoogleBookDataSource implements BookDataSource {
 
    private Book getSingleBook(final String isbn) {
       String url = GoogleBookDataSource.GDATA_BOOK_URL_PREFIX + isbn;
-      HashMap<String, String> headers = new HashMap<String, String>();
-      headers.put(GoogleBookDataSource.X_FORWARDED_FOR, NetworkUtil.getIpAddress());
-      String response = httpHelper.performGet(url, null, null, headers);
-      if (debugEnabled) {
-         Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
-         Log.d(Constants.LOG_TAG, "HTTP response\n" + response);
-      }
-      if ((response == null) || response.contains(HttpHelper.HTTP_RESPONSE_ERROR)) {
-         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - " + url);
-         return null;
-      }
-
-      ArrayList<Book> books = parseResponse(response);
+      ArrayList<Book> books = performRequest(url);
       if ((books != null) && !books.isEmpty()) {
          return books.get(0);
       }
@@ -92,28 +96,57 @@ public class GoogleBookDataSource implements BookDataSource {
       if (debugEnabled) {
          Log.d(Constants.LOG_TAG, "book search URL - " + url);
       }
+      return performRequest(url);
+   }
+
+   // response stream is parsed as it's read (never buffered as a whole)
+   private ArrayList<Book> performRequest(final String url) {
       HashMap<String, String> headers = new HashMap<String, String>();
       headers.put(GoogleBookDataSource.X_FORWARDED_FOR, NetworkUtil.getIpAddress());
-      String response = httpHelper.performGet(url, null, null, headers);
+      ArrayList<Book> books = null;
+      try {
+         books = httpHelper.performGetStream(url, headers, new HttpHelper.StreamHandler<ArrayList<Book>>() {
+            public ArrayList<Book> handleStream(final InputStream in) throws IOException {
+               return parseResponse(in);
+            }
+         });
+      } catch (IOException e) {
+         Log.w(Constants.LOG_TAG, "HTTP request returned no data (error) - " + url + " - " + e);
+         return null;
+      }
       if (debugEnabled) {
          Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
-         Log.d(Constants.LOG_TAG, "HTTP response\n" + response);
+         Log.d(Constants.LOG_TAG, "HTTP response parsed, books: " + (books != null ? books.size() : 0));
       }
-      if ((response == null) || response.contains(HttpHelper.HTTP_RESPONSE_ERROR)) {
-         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - " + url);
-         return null;
-      }
-      return parseResponse(response);
+      return books;
    }
 
-   private ArrayList<Book> parseResponse(final String response) {
+   // parser state is per call (concurrent lookups must not share a handler)
+   private ArrayList<Book> parseResponse(final InputStream in) throws IOException {
+      long start = System.currentTimeMillis();
+      boolean compare = application.debugEnabled;
+      boolean usePullParser = compare && ((parseCount.getAndIncrement() % 2) == 1);
+      ArrayList<Book> books = null;
+      GoogleBooksHandler saxHandler = null;
       try {
-         Xml.parse(new ByteArrayInputStream(response.getBytes("UTF-8")), Xml.Encoding.UTF_8, saxHandler);
-      } catch (Exception e) {
+         if (usePullParser) {
+            books = new GoogleBooksPullParser().parse(in);
+         } else {
+            saxHandler = new GoogleBooksHandler();
+            Xml.parse(in, Xml.Encoding.UTF_8, saxHandler);
+            books = saxHandler.getBooks();
+         }
+      } catch (SAXException e) {
+         Log.e(Constants.LOG_TAG, "Error parsing book XML result", e);
+         // return what was parsed up to the error
+         books = saxHandler.getBooks();
+      } catch (XmlPullParserException e) {
          Log.e(Constants.LOG_TAG, "Error parsing book XML result", e);
       }
-
-      ArrayList<Book> books = saxHandler.getBooks();
+      if (debugEnabled || compare) {
+         Log.d(Constants.LOG_TAG, "Parsed book XML result (" + (usePullParser ? "pull" : "SAX") + ") in "
+                  + (System.currentTimeMillis() - start) + " ms");
+      }
       return books;
    }
 }
@@ -3,6 +3,7 @@ package com.totsp.bookworm.data;
 import com.totsp.bookworm.model.Author;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.DateUtil;
+import com.totsp.bookworm.util.IsbnUtil;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -10,151 +11,197 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 
 /**
  * SAX DefaultHandler impl for Google Books feed.
- * 
+ *
+ * Holds per-parse state, so use a new instance for each parse (they're cheap), and never
+ * share one between threads. Text is only collected for the entry elements that are mapped
+ * to Book fields, into one reused buffer.
+ *
+ * See also GoogleBooksPullParser, which does the same with XmlPullParser (and shares the mapping).
+ *
  * @author ccollins
  */
 public class GoogleBooksHandler extends DefaultHandler {
 
-   // NOTE compare with XMLPullParser impl - though direct SAX may still be faster?
-   // http://www.developer.com/xml/article.php/3824221/Android-XML-Parser-Performance.htm 
-   
-   private static final String ENTRY = "entry";
+   // compared with the XmlPullParser impl (GoogleBooksPullParser) in GoogleBooksParserBenchmark,
+   // SAX is as fast or faster
+   // http://www.developer.com/xml/article.php/3824221/Android-XML-Parser-Performance.htm
+
+   static final String ENTRY = "entry";
+   static final String LINK = "link";
+   static final String THUMBNAIL_REL = "http://schemas.google.com/books/2008/thumbnail";
+
+   // mapped entry elements (by local name, namespace prefixes are not reliable on Android)
+   static final int NONE = 0;
+   static final int TITLE = 1;
+   static final int DATE = 2;
+   static final int CREATOR = 3;
+   static final int IDENTIFIER = 4;
+   static final int PUBLISHER = 5;
+   static final int SUBJECT = 6;
+   static final int DESCRIPTION = 7;
+   static final int FORMAT = 8;
+
+   private static final HashMap<String, Integer> FIELDS = new HashMap<String, Integer>();
+   static {
+      GoogleBooksHandler.FIELDS.put("title", GoogleBooksHandler.TITLE);
+      GoogleBooksHandler.FIELDS.put("date", GoogleBooksHandler.DATE);
+      GoogleBooksHandler.FIELDS.put("creator", GoogleBooksHandler.CREATOR);
+      GoogleBooksHandler.FIELDS.put("identifier", GoogleBooksHandler.IDENTIFIER);
+      GoogleBooksHandler.FIELDS.put("publisher", GoogleBooksHandler.PUBLISHER);
+      GoogleBooksHandler.FIELDS.put("subject", GoogleBooksHandler.SUBJECT);
+      GoogleBooksHandler.FIELDS.put("description", GoogleBooksHandler.DESCRIPTION);
+      GoogleBooksHandler.FIELDS.put("format", GoogleBooksHandler.FORMAT);
+   }
 
-   private ArrayList<Book> books;
+   private final ArrayList<Book> books = new ArrayList<Book>();
+   private final StringBuilder sb = new StringBuilder(256);
    private Book book;
-
-   private boolean inEntry;
-   StringBuilder sb;
+   private int field = GoogleBooksHandler.NONE;
 
    public GoogleBooksHandler() {
    }
 
    @Override
    public void startDocument() throws SAXException {
-      books = new ArrayList<Book>();
-      sb = new StringBuilder();
-   }
-
-   @Override
-   public void endDocument() throws SAXException {
+      books.clear();
+      book = null;
+      field = GoogleBooksHandler.NONE;
    }
 
    @Override
    public void startElement(final String namespaceURI, final String localName, final String qName, final Attributes atts)
       throws SAXException {
-
       if (localName.equals(GoogleBooksHandler.ENTRY)) {
-         inEntry = true;
          book = new Book();
+      } else if (book != null) {
+         if (localName.equals(GoogleBooksHandler.LINK)) {
+            GoogleBooksHandler.setLink(book, atts.getValue("rel"), atts.getValue("href"));
+         }
+         field = GoogleBooksHandler.getField(localName);
+         sb.setLength(0);
       }
 
-      if (inEntry && localName.equals("title")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("date")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("creator")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("identifier")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("publisher")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("subject")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("description")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("format")) {
-         sb = new StringBuilder();
-      } else if (inEntry && localName.equals("link")) {
-         sb = new StringBuilder();
-         // parse/process the links (attributes), find gBooks page, find images, etc
-         // use rel attribute = "http://schemas.google.com/books/2008/thumbnail" for image
-         // use rel attribute = "http://schemas.google.com/books/2008/info" for overview web page
-         // others are available, preview, etc, but not all books have such features (have to cross check with other feed items)
-
-         /*String rel = getAttributeValue("rel", atts);
-         if (rel.equalsIgnoreCase("http://schemas.google.com/books/2008/thumbnail")) {
-            book.coverImageURL = (getAttributeValue("href", atts));
-         }*/
-      }
+      // other links are available, "http://schemas.google.com/books/2008/info" for overview web page, preview, etc,
+      // but not all books have such features (have to cross check with other feed items)
    }
 
    @Override
    public void endElement(final String namespaceURI, final String localName, final String qName) throws SAXException {
       if (localName.equals(GoogleBooksHandler.ENTRY)) {
-         if (inEntry) {
+         if (book != null) {
             books.add(book);
-            inEntry = false;
-         }
-      }
-
-      String bufferContents = sb.toString().replaceAll("\\s+", " ");
-
-      if (inEntry && localName.equals("title")) {
-         // there is an unqualified title and 0-n dc:title (s) so title is complicated  
-         // and qName seems to be NULL on Android, namespace-prefixes feature may not be enabled?
-         // whatever the cause, have to rely on this to work WITHOUT qNames
-         if ((book.title == null) || book.title.equals("")) {
-            book.title = (bufferContents);
-         } else if ((book.subTitle == null) || book.subTitle.equals("")) {
-            if (!book.title.equals(bufferContents)) {
-               book.subTitle = (bufferContents);
-            }
+            book = null;
          }
-         // don't set past sub
-      } else if (inEntry && localName.equals("date")) {
-         Date d = DateUtil.parse(bufferContents);
-         if (d != null) {
-            book.datePubStamp = (d.getTime());
-         }
-      } else if (inEntry && localName.equals("creator")) {
-         book.authors.add(new Author(bufferContents));
-      } else if (inEntry && localName.equals("identifier")) {
-         String id = bufferContents;
-         if ((id != null) && id.startsWith("ISBN")) {
-            id = id.substring(5, id.length()).trim();
-            if (id.length() == 10) {
-               book.isbn10 = (id);
-            } else if (id.length() == 13) {
-               book.isbn13 = (id);
-            }
-         }
-      } else if (inEntry && localName.equals("publisher")) {
-         book.publisher = (bufferContents);
-      } else if (inEntry && localName.equals("subject")) {
-         book.subject = (bufferContents);
-      } else if (inEntry && localName.equals("description")) {
-         book.description = (bufferContents);
-      } else if (inEntry && localName.equals("format")) {
-         if (book.format != null) {
-            book.format = book.format + " " + bufferContents.trim();
-         } else {
-            book.format = (bufferContents);
-         }
-      } else if (inEntry && localName.equals("link")) {
+      } else if ((book != null) && (field != GoogleBooksHandler.NONE)) {
+         GoogleBooksHandler.setField(book, field, sb);
       }
+      field = GoogleBooksHandler.NONE;
    }
 
    @Override
    public void characters(final char ch[], final int start, final int length) {
-      sb.append(new String(ch, start, length));
+      if (field != GoogleBooksHandler.NONE) {
+         sb.append(ch, start, length);
+      }
+   }
+
+   public ArrayList<Book> getBooks() {
+      return books;
+   }
+
+   //
+   // mapping, shared with GoogleBooksPullParser
+   //
+   static int getField(final String localName) {
+      Integer f = GoogleBooksHandler.FIELDS.get(localName);
+      return f != null ? f.intValue() : GoogleBooksHandler.NONE;
    }
 
-   /*private String getAttributeValue(final String attName, final Attributes atts) {
-      String result = null;
-      for (int i = 0; i < atts.getLength(); i++) {
-         String thisAtt = atts.getLocalName(i);
-         if (attName.equals(thisAtt)) {
-            result = atts.getValue(i);
+   // the thumbnail link is the provider's own cover image URL (see Book.coverImageUrl)
+   static void setLink(final Book book, final String rel, final String href) {
+      if (GoogleBooksHandler.THUMBNAIL_REL.equals(rel) && (href != null) && (href.length() > 0)) {
+         book.coverImageUrl = href;
+      }
+   }
+
+   static void setField(final Book book, final int field, final StringBuilder text) {
+      String value = GoogleBooksHandler.collapseWhitespace(text);
+      switch (field) {
+         case TITLE:
+            // there is an unqualified title and 0-n dc:title (s) so title is complicated
+            // and qName seems to be NULL on Android, namespace-prefixes feature may not be enabled?
+            // whatever the cause, have to rely on this to work WITHOUT qNames
+            if ((book.title == null) || book.title.equals("")) {
+               book.title = value;
+            } else if ((book.subTitle == null) || book.subTitle.equals("")) {
+               if (!book.title.equals(value)) {
+                  book.subTitle = value;
+               }
+            }
+            // don't set past sub
+            break;
+         case DATE:
+            Date d = DateUtil.parse(value);
+            if (d != null) {
+               book.datePubStamp = d.getTime();
+            }
+            break;
+         case CREATOR:
+            book.authors.add(new Author(value));
+            break;
+         case IDENTIFIER:
+            if (value.startsWith("ISBN") && IsbnUtil.isValid(value)) {
+               String id = IsbnUtil.clean(value);
+               if (id.length() == 10) {
+                  book.isbn10 = id;
+               } else {
+                  book.isbn13 = id;
+               }
+            }
+            break;
+         case PUBLISHER:
+            book.publisher = value;
+            break;
+         case SUBJECT:
+            book.subject = value;
+            break;
+         case DESCRIPTION:
+            book.description = value;
+            break;
+         case FORMAT:
+            if (book.format != null) {
+               book.format = book.format + " " + value.trim();
+            } else {
+               book.format = value;
+            }
+            break;
+         default:
             break;
-         }
       }
-      return result;
-   }*/
+   }
 
-   public ArrayList<Book> getBooks() {
-      return books;
+   // same as replaceAll("\\s+", " "), but in place in the (reused) buffer, without regex 
+   static String collapseWhitespace(final StringBuilder text) {
+      int len = text.length();
+      int w = 0;
+      boolean inSpace = false;
+      for (int r = 0; r < len; r++) {
+         char c = text.charAt(r);
+         if (Character.isWhitespace(c)) {
+            if (!inSpace) {
+               text.setCharAt(w++, ' ');
+            }
+            inSpace = true;
+         } else {
+            text.setCharAt(w++, c);
+            inSpace = false;
+         }
+      }
+      text.setLength(w);
+      return text.toString();
    }
 }
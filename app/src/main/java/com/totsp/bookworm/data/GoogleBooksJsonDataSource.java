@@ -0,0 +1,267 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.BookWormApplication;
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Author;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.DateUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.JsonStreamReader;
+import com.totsp.bookworm.util.NetworkUtil;
+import com.totsp.bookworm.util.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Data source for the Google Books JSON API (v1 volumes), rather than the GData Atom feed
+ * (see GoogleBookDataSource).
+ *
+ * Requests use partial response (the fields parameter), so the server only sends the fields
+ * that are mapped to Book, and responses are streamed (see JsonStreamReader). The thumbnail link
+ * the server supplies is kept on the Book (coverImageUrl).
+ */
+public class GoogleBooksJsonDataSource implements BookDataSource {
+
+   private static final String GB_HOST = "www.googleapis.com";
+   private static final String GB_VOLUMES_PREFIX = "https://www.googleapis.com/books/v1/volumes?q=";
+   // only the fields mapped in readVolumeInfo
+   private static final String GB_FIELDS =
+            "&fields=items/volumeInfo(title,subtitle,authors,publisher,publishedDate,description,"
+                     + "industryIdentifiers,pageCount,printType,categories,imageLinks/thumbnail)";
+   // API max per request
+   private static final int MAX_RESULTS = 40;
+
+   // google books uses X FORWARDED FOR header to determine location and what book stuff user can "see"
+   private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+   private final BookWormApplication application;
+   private final HttpHelper httpHelper;
+
+   public GoogleBooksJsonDataSource(final BookWormApplication application) {
+      this.application = application;
+      httpHelper = new HttpHelper();
+   }
+
+   public Book getBook(final String isbn) {
+      String url =
+               GoogleBooksJsonDataSource.GB_VOLUMES_PREFIX + "isbn:" + encode(isbn) + "&maxResults=1"
+                        + GoogleBooksJsonDataSource.GB_FIELDS;
+      ArrayList<Book> books = performRequest(url);
+      if ((books != null) && !books.isEmpty()) {
+         return books.get(0);
+      }
+      return null;
+   }
+
+   public ArrayList<Book> getBooks(final String searchTerm, int startIndex, int numResults) {
+      if (startIndex < 1) {
+         // don't allow zero or neg, just set to 1
+         startIndex = 1;
+      }
+      if (numResults < 1) {
+         numResults = 1;
+      }
+      // v1 start index is zero based (search term is already URL encoded by the caller, as for the other sources)
+      String url =
+               GoogleBooksJsonDataSource.GB_VOLUMES_PREFIX + searchTerm + "&startIndex=" + (startIndex - 1)
+                        + "&maxResults=" + Math.min(numResults, GoogleBooksJsonDataSource.MAX_RESULTS)
+                        + GoogleBooksJsonDataSource.GB_FIELDS;
+      ArrayList<Book> books = performRequest(url);
+      return books != null ? books : new ArrayList<Book>();
+   }
+
+   // no batch API, single lookups with bounded concurrency
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      return BatchBookLookup.getBooks(this, isbns);
+   }
+
+   public boolean isAvailable() {
+      return HttpHelper.isHostAvailable(GoogleBooksJsonDataSource.GB_HOST);
+   }
+
+   private ArrayList<Book> performRequest(final String url) {
+      HashMap<String, String> headers = new HashMap<String, String>();
+      headers.put(GoogleBooksJsonDataSource.X_FORWARDED_FOR, NetworkUtil.getIpAddress());
+      ArrayList<Book> books = null;
+      try {
+         books = httpHelper.performGetStream(url, headers, new HttpHelper.StreamHandler<ArrayList<Book>>() {
+            public ArrayList<Book> handleStream(final InputStream in) throws IOException {
+               return parseResponse(in);
+            }
+         });
+      } catch (IOException e) {
+         Log.w(Constants.LOG_TAG, "HTTP request returned no data (error) - " + url + " - " + e);
+         return null;
+      }
+      if (application.debugEnabled) {
+         Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
+         Log.d(Constants.LOG_TAG, "HTTP response parsed, books: " + (books != null ? books.size() : 0));
+      }
+      return books;
+   }
+
+   // response is {"items": [{"volumeInfo": {...}}, ...]}, no items at all when nothing matched
+   private ArrayList<Book> parseResponse(final InputStream in) throws IOException {
+      ArrayList<Book> books = new ArrayList<Book>();
+      ArrayList<String> values = new ArrayList<String>();
+      JsonStreamReader jsr = new JsonStreamReader(new InputStreamReader(in, "UTF-8"));
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         if ("items".equals(jsr.nextName()) && (jsr.peek() == JsonStreamReader.BEGIN_ARRAY)) {
+            jsr.beginArray();
+            while (jsr.hasNext()) {
+               Book book = readItem(jsr, values);
+               if (book != null) {
+                  books.add(book);
+               }
+            }
+            jsr.endArray();
+         } else {
+            jsr.skipValue();
+         }
+      }
+      return books;
+   }
+
+   private Book readItem(final JsonStreamReader jsr, final ArrayList<String> values) throws IOException {
+      if (jsr.peek() != JsonStreamReader.BEGIN_OBJECT) {
+         jsr.skipValue();
+         return null;
+      }
+      Book book = null;
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         if ("volumeInfo".equals(jsr.nextName()) && (jsr.peek() == JsonStreamReader.BEGIN_OBJECT)) {
+            book = readVolumeInfo(jsr, values);
+         } else {
+            jsr.skipValue();
+         }
+      }
+      jsr.endObject();
+      return book;
+   }
+
+   private Book readVolumeInfo(final JsonStreamReader jsr, final ArrayList<String> values) throws IOException {
+      Book book = new Book();
+      String pageCount = null;
+      String printType = null;
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         String name = jsr.nextName();
+         if (name.equals("title")) {
+            book.title = jsr.readString(book.title);
+         } else if (name.equals("subtitle")) {
+            book.subTitle = jsr.readString(book.subTitle);
+         } else if (name.equals("authors")) {
+            values.clear();
+            jsr.readStrings(values);
+            for (int i = 0; i < values.size(); i++) {
+               book.authors.add(new Author(values.get(i)));
+            }
+         } else if (name.equals("publisher")) {
+            book.publisher = jsr.readString(book.publisher);
+         } else if (name.equals("publishedDate")) {
+            String value = jsr.readString(null);
+            if (value != null) {
+               Date d = DateUtil.parse(value);
+               if (d != null) {
+                  book.datePubStamp = d.getTime();
+               }
+            }
+         } else if (name.equals("description")) {
+            book.description = jsr.readString(book.description);
+         } else if (name.equals("industryIdentifiers")) {
+            readIdentifiers(jsr, book);
+         } else if (name.equals("pageCount")) {
+            pageCount = jsr.readString(null);
+         } else if (name.equals("printType")) {
+            printType = jsr.readString(null);
+         } else if (name.equals("categories")) {
+            values.clear();
+            jsr.readStrings(values);
+            book.subject = StringUtil.join(values, ", ");
+         } else if (name.equals("imageLinks") && (jsr.peek() == JsonStreamReader.BEGIN_OBJECT)) {
+            jsr.beginObject();
+            while (jsr.hasNext()) {
+               if ("thumbnail".equals(jsr.nextName())) {
+                  book.coverImageUrl = jsr.readString(null);
+               } else {
+                  jsr.skipValue();
+               }
+            }
+            jsr.endObject();
+         } else {
+            jsr.skipValue();
+         }
+      }
+      jsr.endObject();
+
+      // same shape as the GData format ("book 256 pages")
+      StringBuilder format = new StringBuilder();
+      if (printType != null) {
+         format.append(printType.toLowerCase());
+      }
+      if (pageCount != null) {
+         if (format.length() > 0) {
+            format.append(' ');
+         }
+         format.append(pageCount).append(" pages");
+      }
+      book.format = format.toString();
+      return book;
+   }
+
+   // [{"type": "ISBN_10", "identifier": "..."}, {"type": "ISBN_13", ...}, {"type": "OTHER", ...}]
+   private void readIdentifiers(final JsonStreamReader jsr, final Book book) throws IOException {
+      if (jsr.peek() != JsonStreamReader.BEGIN_ARRAY) {
+         jsr.skipValue();
+         return;
+      }
+      jsr.beginArray();
+      while (jsr.hasNext()) {
+         if (jsr.peek() == JsonStreamReader.BEGIN_OBJECT) {
+            String type = null;
+            String identifier = null;
+            jsr.beginObject();
+            while (jsr.hasNext()) {
+               String name = jsr.nextName();
+               if (name.equals("type")) {
+                  type = jsr.readString(null);
+               } else if (name.equals("identifier")) {
+                  identifier = jsr.readString(null);
+               } else {
+                  jsr.skipValue();
+               }
+            }
+            jsr.endObject();
+            if ("ISBN_10".equals(type) && IsbnUtil.isValid(identifier)) {
+               book.isbn10 = IsbnUtil.clean(identifier);
+            } else if ("ISBN_13".equals(type) && IsbnUtil.isValid(identifier)) {
+               book.isbn13 = IsbnUtil.clean(identifier);
+            }
+         } else {
+            jsr.skipValue();
+         }
+      }
+      jsr.endArray();
+   }
+
+   private String encode(final String value) {
+      try {
+         return URLEncoder.encode(value != null ? value.trim() : "", "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         // UTF-8 is always there
+         return value;
+      }
+   }
+}
@@ -0,0 +1,81 @@
+package com.totsp.bookworm.data;
+
+import android.util.Xml;
+
+import com.totsp.bookworm.model.Book;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * XmlPullParser impl for Google Books feed, the same mapping as GoogleBooksHandler (SAX),
+ * but pulling events rather than having them pushed (and text is copied straight from
+ * the parser's buffer, without an intermediate String).
+ *
+ * Holds per-parse state, use a new instance for each parse.
+ */
+public class GoogleBooksPullParser {
+
+   private final StringBuilder sb = new StringBuilder(256);
+   private final int[] holder = new int[2];
+
+   public GoogleBooksPullParser() {
+   }
+
+   public ArrayList<Book> parse(final InputStream in) throws IOException, XmlPullParserException {
+      return parse(Xml.newPullParser(), in);
+   }
+
+   // any XmlPullParser impl (the platform one above, or kxml directly, off device)
+   public ArrayList<Book> parse(final XmlPullParser parser, final InputStream in) throws IOException,
+            XmlPullParserException {
+      ArrayList<Book> books = new ArrayList<Book>();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(in, "UTF-8");
+
+      Book book = null;
+      int field = GoogleBooksHandler.NONE;
+      int eventType = parser.getEventType();
+      while (eventType != XmlPullParser.END_DOCUMENT) {
+         switch (eventType) {
+            case XmlPullParser.START_TAG:
+               if (parser.getName().equals(GoogleBooksHandler.ENTRY)) {
+                  book = new Book();
+               } else if (book != null) {
+                  if (parser.getName().equals(GoogleBooksHandler.LINK)) {
+                     GoogleBooksHandler.setLink(book, parser.getAttributeValue(null, "rel"), parser
+                              .getAttributeValue(null, "href"));
+                  }
+                  field = GoogleBooksHandler.getField(parser.getName());
+                  sb.setLength(0);
+               }
+               break;
+            case XmlPullParser.TEXT:
+               if (field != GoogleBooksHandler.NONE) {
+                  char[] ch = parser.getTextCharacters(holder);
+                  sb.append(ch, holder[0], holder[1]);
+               }
+               break;
+            case XmlPullParser.END_TAG:
+               if (parser.getName().equals(GoogleBooksHandler.ENTRY)) {
+                  if (book != null) {
+                     books.add(book);
+                     book = null;
+                  }
+               } else if ((book != null) && (field != GoogleBooksHandler.NONE)) {
+                  GoogleBooksHandler.setField(book, field, sb);
+               }
+               field = GoogleBooksHandler.NONE;
+               break;
+            default:
+               break;
+         }
+         eventType = parser.next();
+      }
+      return books;
+   }
+}
@@ -0,0 +1,163 @@
+package com.totsp.bookworm.data;
+
+import java.util.HashMap;
+
+/**
+ * Per-host circuit breaker, used by HttpHelper so that a host that is down (or timing out)
+ * is not hit again and again (each request waiting out a full timeout) during bulk operations.
+ *
+ * After a number of consecutive failures the circuit for the host opens, and requests to it
+ * fail fast. Once the open period has passed a single probe request is allowed through (half open),
+ * if it succeeds the circuit closes, if it fails the circuit opens again, for twice as long
+ * (up to a max).
+ *
+ * Like HttpHelper this is intentionally *not* bound to any Android classes.
+ */
+public class HostCircuitBreaker {
+
+   public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+   public static final long DEFAULT_OPEN_MILLIS = 30000L;
+   public static final long MAX_OPEN_MILLIS = 10L * 60L * 1000L;
+
+   static final int CLOSED = 0;
+   static final int OPEN = 1;
+   static final int HALF_OPEN = 2;
+
+   private final HashMap<String, Circuit> circuits;
+   private final int failureThreshold;
+   private final long openMillis;
+
+   public HostCircuitBreaker() {
+      this(HostCircuitBreaker.DEFAULT_FAILURE_THRESHOLD, HostCircuitBreaker.DEFAULT_OPEN_MILLIS);
+   }
+
+   public HostCircuitBreaker(final int failureThreshold, final long openMillis) {
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+      circuits = new HashMap<String, Circuit>();
+   }
+
+   /**
+    * Check if a request to host should go ahead, and if so, account for it (if the circuit
+    * is due for a probe, this request is the probe, and others are refused until it completes).
+    *
+    * @param host
+    * @return
+    */
+   public synchronized boolean allowRequest(final String host) {
+      Circuit c = circuits.get(host);
+      if (c == null) {
+         return true;
+      }
+      switch (c.state) {
+         case OPEN:
+            if (System.currentTimeMillis() - c.openedAt >= c.openMillis) {
+               c.state = HostCircuitBreaker.HALF_OPEN;
+               c.probeInFlight = true;
+               return true;
+            }
+            return false;
+         case HALF_OPEN:
+            if (!c.probeInFlight) {
+               c.probeInFlight = true;
+               return true;
+            }
+            return false;
+         default:
+            return true;
+      }
+   }
+
+   /**
+    * Check if requests to host would currently be allowed (without accounting for one).
+    *
+    * @param host
+    * @return
+    */
+   public synchronized boolean isAvailable(final String host) {
+      Circuit c = circuits.get(host);
+      if (c == null) {
+         return true;
+      }
+      switch (c.state) {
+         case OPEN:
+            return System.currentTimeMillis() - c.openedAt >= c.openMillis;
+         case HALF_OPEN:
+            return !c.probeInFlight;
+         default:
+            return true;
+      }
+   }
+
+   public synchronized void recordSuccess(final String host) {
+      Circuit c = circuits.get(host);
+      if (c != null) {
+         c.state = HostCircuitBreaker.CLOSED;
+         c.consecutiveFailures = 0;
+         c.openMillis = openMillis;
+         c.probeInFlight = false;
+      }
+   }
+
+   public synchronized void recordFailure(final String host) {
+      Circuit c = circuits.get(host);
+      if (c == null) {
+         c = new Circuit(openMillis);
+         circuits.put(host, c);
+      }
+      c.consecutiveFailures++;
+      if (c.state == HostCircuitBreaker.HALF_OPEN) {
+         // probe failed, back off for longer
+         c.openMillis = Math.min(c.openMillis * 2, HostCircuitBreaker.MAX_OPEN_MILLIS);
+         open(c);
+      } else if ((c.state == HostCircuitBreaker.CLOSED) && (c.consecutiveFailures >= failureThreshold)) {
+         open(c);
+      }
+   }
+
+   /**
+    * Release a probe that completed without telling anything about the host (cancelled).
+    *
+    * @param host
+    */
+   public synchronized void recordIgnored(final String host) {
+      Circuit c = circuits.get(host);
+      if ((c != null) && (c.state == HostCircuitBreaker.HALF_OPEN)) {
+         c.probeInFlight = false;
+      }
+   }
+
+   public synchronized void reset() {
+      circuits.clear();
+   }
+
+   public synchronized String getSummary() {
+      StringBuilder sb = new StringBuilder();
+      for (String host : circuits.keySet()) {
+         Circuit c = circuits.get(host);
+         if (c.state != HostCircuitBreaker.CLOSED) {
+            sb.append(host + ": circuit " + (c.state == HostCircuitBreaker.OPEN ? "open" : "half open") + " ("
+                     + c.consecutiveFailures + " failures, retry after " + c.openMillis + " ms)\n");
+         }
+      }
+      return sb.toString();
+   }
+
+   private void open(final Circuit c) {
+      c.state = HostCircuitBreaker.OPEN;
+      c.openedAt = System.currentTimeMillis();
+      c.probeInFlight = false;
+   }
+
+   private static class Circuit {
+      int state = HostCircuitBreaker.CLOSED;
+      int consecutiveFailures;
+      long openedAt;
+      long openMillis;
+      boolean probeInFlight;
+
+      Circuit(final long openMillis) {
+         this.openMillis = openMillis;
+      }
+   }
+}
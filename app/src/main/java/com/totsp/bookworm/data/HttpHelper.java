@@ -4,20 +4,23 @@ import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
+import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -33,12 +36,12 @@ import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
@@ -50,6 +53,11 @@ import java.util.zip.GZIPInputStream;
  * to develop and test. Use calls to this class inside Android AsyncTask implementations
  * (or manual Thread-Handlers) to make HTTP requests asynchronous and not block the UI Thread.
  * 
+ * All requests (book data and cover images) share one client, with a pool of keep-alive connections,
+ * and it's safe to use from multiple threads at once. Latency and errors are recorded per host 
+ * (see getMetrics), and used to adapt timeouts, and to stop sending requests to hosts that keep
+ * failing for a while (see HostCircuitBreaker).
+ * 
  * @author ccollins
  *
  */
@@ -71,6 +79,34 @@ public class HttpHelper {
    public static final String HTTP_RESPONSE = "HTTP_RESPONSE";
    public static final String HTTP_RESPONSE_ERROR = "HTTP_RESPONSE_ERROR";
 
+   private static final int CONNECTION_TIMEOUT = 15000;
+   private static final int SO_TIMEOUT = 15000;
+   private static final int MAX_TOTAL_CONNECTIONS = 12;
+   // covers are fetched from a couple of providers concurrently, as well as book data 
+   private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+   // adaptive timeouts, a multiple of observed p95 latency, but never less than the min (or more than the max)
+   private static final int ADAPTIVE_TIMEOUT_FACTOR = 4;
+   private static final int MIN_ADAPTIVE_TIMEOUT = 3000;
+
+   private static final int OUTCOME_IGNORED = 0;
+   private static final int OUTCOME_SUCCESS = 1;
+   private static final int OUTCOME_FAILURE = 2;
+
+   private static final HttpMetrics metrics = new HttpMetrics();
+   private static final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker();
+
+   /**
+    * Callback for streaming responses, the (already decompressed) entity stream is 
+    * passed in as is (not buffered), and is closed (and the connection released) after 
+    * the handler returns.
+    *
+    * @param <T>
+    */
+   public interface StreamHandler<T> {
+      T handleStream(InputStream in) throws IOException;
+   }
+
    // Establish client once, as static field with static setup block.
    // (This is a best practice in HttpClient docs - but will leave reference until *process* stopped on Android.)
    private static final DefaultHttpClient client;
@@ -79,8 +115,13 @@ public class HttpHelper {
       params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
       params.setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET, HTTP.UTF_8);
       params.setParameter(CoreProtocolPNames.USER_AGENT, "Apache-HttpClient/Android");
-      params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 15000);
+      params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, HttpHelper.CONNECTION_TIMEOUT);
+      params.setParameter(CoreConnectionPNames.SO_TIMEOUT, HttpHelper.SO_TIMEOUT);
       params.setParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+      ConnManagerParams.setMaxTotalConnections(params, HttpHelper.MAX_TOTAL_CONNECTIONS);
+      ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(HttpHelper.MAX_CONNECTIONS_PER_ROUTE));
+      // don't wait forever for a pooled connection
+      ConnManagerParams.setTimeout(params, HttpHelper.CONNECTION_TIMEOUT);
       SchemeRegistry schemeRegistry = new SchemeRegistry();
       schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
       schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
@@ -106,6 +147,7 @@ public class HttpHelper {
    }
 
    private final ResponseHandler<String> responseHandler;
+   private final ResponseHandler<byte[]> bytesResponseHandler;
 
    /**
     * Constructor.
@@ -113,6 +155,36 @@ public class HttpHelper {
     */
    public HttpHelper() {
       responseHandler = new BasicResponseHandler();
+      bytesResponseHandler = new BytesResponseHandler();
+   }
+
+   /**
+    * Get the per-host metrics for all requests made via HttpHelper.
+    * 
+    * @return
+    */
+   public static HttpMetrics getMetrics() {
+      return HttpHelper.metrics;
+   }
+
+   /**
+    * Get the per-host circuit breaker for all requests made via HttpHelper.
+    * 
+    * @return
+    */
+   public static HostCircuitBreaker getCircuitBreaker() {
+      return HttpHelper.circuitBreaker;
+   }
+
+   /**
+    * Check if requests to host are currently allowed (false if its circuit is open, 
+    * requests would fail fast with CircuitOpenException).
+    * 
+    * @param host
+    * @return
+    */
+   public static boolean isHostAvailable(final String host) {
+      return HttpHelper.circuitBreaker.isAvailable(host);
    }
 
    /**
@@ -162,6 +234,66 @@ public class HttpHelper {
       return performRequest(contentType, url, user, pass, additionalHeaders, params, HttpHelper.POST_TYPE);
    }
 
+   /**
+    * Perform an HTTP GET operation for binary content (such as images), with the specified
+    * timeout (connect and read). Returns null if the resource is not found (404), and throws
+    * IOException for other errors (so that callers can tell a miss from a failure).
+    * 
+    * @param url
+    * @param timeoutMillis
+    * @return
+    * @throws IOException
+    */
+   public byte[] performGetBytes(final String url, final int timeoutMillis) throws IOException {
+      HttpGet method = new HttpGet(url);
+      method.setHeader(HttpHelper.ACCEPT_ENCODING, HttpHelper.GZIP);
+      return execute(method, bytesResponseHandler, timeoutMillis);
+   }
+
+   /**
+    * Perform an HTTP GET operation with headers, and hand the response stream straight to the 
+    * handler (rather than buffering the whole response as a String). Throws IOException
+    * for connection failures and non success status codes.
+    * 
+    * @param url
+    * @param headers
+    * @param handler
+    * @return the result of the handler
+    * @throws IOException
+    */
+   public <T> T performGetStream(final String url, final Map<String, String> headers, final StreamHandler<T> handler)
+            throws IOException {
+      HttpGet method = new HttpGet(url);
+      setHeaders(method, headers);
+      return execute(method, new ResponseHandler<T>() {
+         public T handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
+            StatusLine statusLine = response.getStatusLine();
+            HttpEntity entity = response.getEntity();
+            if (statusLine.getStatusCode() >= 300) {
+               if (entity != null) {
+                  entity.consumeContent();
+               }
+               throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+            }
+            if (entity == null) {
+               return null;
+            }
+            InputStream in = entity.getContent();
+            try {
+               return handler.handleStream(in);
+            } finally {
+               // handler may not read to the end, closing the (gzip) stream alone would not release the connection
+               try {
+                  entity.consumeContent();
+               } catch (IOException e) {
+                  // swallow
+               }
+               in.close();
+            }
+         }
+      }, HttpHelper.SO_TIMEOUT);
+   }
+
    //
    // private methods
    //
@@ -174,30 +306,6 @@ public class HttpHelper {
                   new UsernamePasswordCredentials(user, pass));
       }
 
-      // process headers using request interceptor
-      final Map<String, String> sendHeaders = new HashMap<String, String>();
-      // add encoding header for gzip if not present
-      if (!sendHeaders.containsKey(HttpHelper.ACCEPT_ENCODING)) {
-         sendHeaders.put(HttpHelper.ACCEPT_ENCODING, HttpHelper.GZIP);
-      }
-      if ((headers != null) && (headers.size() > 0)) {
-         sendHeaders.putAll(headers);
-      }
-      if (requestType == HttpHelper.POST_TYPE) {
-         sendHeaders.put(HttpHelper.CONTENT_TYPE, contentType);
-      }
-      if (sendHeaders.size() > 0) {
-         HttpHelper.client.addRequestInterceptor(new HttpRequestInterceptor() {
-            public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
-               for (String key : sendHeaders.keySet()) {
-                  if (!request.containsHeader(key)) {
-                     request.addHeader(key, sendHeaders.get(key));
-                  }
-               }
-            }
-         });
-      }
-
       // handle POST or GET request respectively
       HttpRequestBase method = null;
       if (requestType == HttpHelper.POST_TYPE) {
@@ -222,15 +330,15 @@ public class HttpHelper {
          method = new HttpGet(url);
       }
 
-      // execute request
-      return execute(method);
-   }
+      setHeaders(method, headers);
+      if (requestType == HttpHelper.POST_TYPE) {
+         method.setHeader(HttpHelper.CONTENT_TYPE, contentType);
+      }
 
-   private synchronized String execute(final HttpRequestBase method) {
+      // execute request
       String response = null;
-      // execute method returns?!? (rather than async) - do it here sync, and wrap async elsewhere
       try {
-         response = HttpHelper.client.execute(method, responseHandler);
+         response = execute(method, responseHandler, HttpHelper.SO_TIMEOUT);
       } catch (ClientProtocolException e) {
          response = HttpHelper.HTTP_RESPONSE_ERROR + " - " + e.getClass().getSimpleName() + " " + e.getMessage();
          //e.printStackTrace();
@@ -241,6 +349,103 @@ public class HttpHelper {
       return response;
    }
 
+   // headers are set on the request itself (client is shared, so never add per request interceptors) 
+   private void setHeaders(final HttpRequestBase method, final Map<String, String> headers) {
+      // add encoding header for gzip (unless caller specified one)
+      method.setHeader(HttpHelper.ACCEPT_ENCODING, HttpHelper.GZIP);
+      if ((headers != null) && (headers.size() > 0)) {
+         for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getValue() != null) {
+               method.setHeader(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+   }
+
+   // execute method returns?!? (rather than async) - do it here sync, and wrap async elsewhere
+   // (not synchronized, the client connection manager is thread safe)
+   private <T> T execute(final HttpRequestBase method, final ResponseHandler<T> handler, final int maxTimeoutMillis)
+            throws IOException {
+      String host = method.getURI().getHost();
+      if (!HttpHelper.circuitBreaker.allowRequest(host)) {
+         throw new CircuitOpenException(host);
+      }
+      applyTimeouts(method, host, maxTimeoutMillis);
+
+      long start = System.currentTimeMillis();
+      // anything other than a response or an I/O error (bad handler, etc) says nothing about the host
+      int outcome = HttpHelper.OUTCOME_IGNORED;
+      try {
+         T result = HttpHelper.client.execute(method, handler);
+         outcome = HttpHelper.OUTCOME_SUCCESS;
+         return result;
+      } catch (HttpResponseException e) {
+         // the host is up if it says not found (etc), server errors count against it though
+         outcome = e.getStatusCode() >= 500 ? HttpHelper.OUTCOME_FAILURE : HttpHelper.OUTCOME_SUCCESS;
+         throw e;
+      } catch (IOException e) {
+         outcome = HttpHelper.OUTCOME_FAILURE;
+         throw e;
+      } finally {
+         HttpHelper.metrics.record(host, System.currentTimeMillis() - start, outcome != HttpHelper.OUTCOME_SUCCESS);
+         if ((outcome == HttpHelper.OUTCOME_IGNORED) || Thread.currentThread().isInterrupted()) {
+            // cancelled (hedged cover requests, etc)
+            HttpHelper.circuitBreaker.recordIgnored(host);
+         } else if (outcome == HttpHelper.OUTCOME_FAILURE) {
+            HttpHelper.circuitBreaker.recordFailure(host);
+         } else {
+            HttpHelper.circuitBreaker.recordSuccess(host);
+         }
+      }
+   }
+
+   // once there is enough history for a host, time out at a multiple of its (recent) p95 latency, 
+   // rather than always waiting out the max
+   private void applyTimeouts(final HttpRequestBase method, final String host, final int maxTimeoutMillis) {
+      int timeout = maxTimeoutMillis;
+      long p95 = HttpHelper.metrics.getLatencyPercentile(host, 95);
+      if (p95 > 0) {
+         timeout =
+                  (int) Math.min(maxTimeoutMillis, Math.max(HttpHelper.MIN_ADAPTIVE_TIMEOUT, p95
+                           * HttpHelper.ADAPTIVE_TIMEOUT_FACTOR));
+      }
+      method.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, timeout);
+      method.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, timeout);
+   }
+
+   /**
+    * Thrown (fail fast) for requests to a host whose circuit is open (see HostCircuitBreaker).
+    *
+    */
+   public static class CircuitOpenException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      public CircuitOpenException(final String host) {
+         super("Circuit open for host " + host + ", request not attempted");
+      }
+   }
+
+   // like BasicResponseHandler, but for binary content, and 404 is a null result rather than an error 
+   static class BytesResponseHandler implements ResponseHandler<byte[]> {
+      public byte[] handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
+         StatusLine statusLine = response.getStatusLine();
+         HttpEntity entity = response.getEntity();
+         if (statusLine.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            if (entity != null) {
+               entity.consumeContent();
+            }
+            return null;
+         }
+         if (statusLine.getStatusCode() >= 300) {
+            if (entity != null) {
+               entity.consumeContent();
+            }
+            throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+         }
+         return entity == null ? null : EntityUtils.toByteArray(entity);
+      }
+   }
+
    static class GzipDecompressingEntity extends HttpEntityWrapper {
       public GzipDecompressingEntity(final HttpEntity entity) {
          super(entity);
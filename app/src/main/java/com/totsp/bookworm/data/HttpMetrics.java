@@ -0,0 +1,132 @@
+package com.totsp.bookworm.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Simple per-host HTTP metrics (request count, errors, latency), recorded by HttpHelper
+ * for all requests (metadata and cover images).
+ *
+ * Like HttpHelper this is intentionally *not* bound to any Android classes.
+ */
+public class HttpMetrics {
+
+   // latency samples kept per host (for percentiles), and the least needed for a percentile to mean anything
+   static final int SAMPLE_SIZE = 50;
+   static final int MIN_SAMPLES = 10;
+
+   private final HashMap<String, HostMetrics> hosts;
+
+   public HttpMetrics() {
+      hosts = new HashMap<String, HostMetrics>();
+   }
+
+   public synchronized void record(final String host, final long latencyMillis, final boolean error) {
+      String key = host != null ? host : "unknown";
+      HostMetrics hm = hosts.get(key);
+      if (hm == null) {
+         hm = new HostMetrics(key);
+         hosts.put(key, hm);
+      }
+      hm.requests++;
+      if (error) {
+         hm.errors++;
+      }
+      hm.totalMillis += latencyMillis;
+      if (latencyMillis > hm.maxMillis) {
+         hm.maxMillis = latencyMillis;
+      }
+      if (!error) {
+         // only successful requests say how long the host normally takes
+         hm.samples[hm.sampleIndex] = latencyMillis;
+         hm.sampleIndex = (hm.sampleIndex + 1) % hm.samples.length;
+         if (hm.sampleCount < hm.samples.length) {
+            hm.sampleCount++;
+         }
+      }
+   }
+
+   /**
+    * Get latency percentile (0-100) for host, over the most recent successful requests,
+    * or -1 if there are not yet enough samples to say.
+    *
+    * @param host
+    * @param percentile
+    * @return
+    */
+   public synchronized long getLatencyPercentile(final String host, final int percentile) {
+      HostMetrics hm = hosts.get(host);
+      if ((hm == null) || (hm.sampleCount < HttpMetrics.MIN_SAMPLES)) {
+         return -1L;
+      }
+      long[] sorted = new long[hm.sampleCount];
+      System.arraycopy(hm.samples, 0, sorted, 0, hm.sampleCount);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil((percentile / 100.0d) * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+   }
+
+   /**
+    * Get copy of the metrics for host, or null if no requests have been made to it.
+    *
+    * @param host
+    * @return
+    */
+   public synchronized HostMetrics getHostMetrics(final String host) {
+      HostMetrics hm = hosts.get(host);
+      if (hm != null) {
+         return hm.copy();
+      }
+      return null;
+   }
+
+   public synchronized void clear() {
+      hosts.clear();
+   }
+
+   public synchronized String getSummary() {
+      ArrayList<String> keys = new ArrayList<String>(hosts.keySet());
+      Collections.sort(keys);
+      StringBuilder sb = new StringBuilder();
+      for (String key : keys) {
+         HostMetrics hm = hosts.get(key);
+         sb.append(hm.host + ": " + hm.requests + " req, " + hm.errors + " err, avg " + hm.getAverageMillis()
+                  + " ms, max " + hm.maxMillis + " ms\n");
+      }
+      return sb.toString();
+   }
+
+   public static class HostMetrics {
+      public final String host;
+      public int requests;
+      public int errors;
+      public long totalMillis;
+      public long maxMillis;
+
+      final long[] samples = new long[HttpMetrics.SAMPLE_SIZE];
+      int sampleIndex;
+      int sampleCount;
+
+      HostMetrics(final String host) {
+         this.host = host;
+      }
+
+      public long getAverageMillis() {
+         if (requests == 0) {
+            return 0L;
+         }
+         return totalMillis / requests;
+      }
+
+      HostMetrics copy() {
+         HostMetrics hm = new HostMetrics(host);
+         hm.requests = requests;
+         hm.errors = errors;
+         hm.totalMillis = totalMillis;
+         hm.maxMillis = maxMillis;
+         return hm;
+      }
+   }
+}
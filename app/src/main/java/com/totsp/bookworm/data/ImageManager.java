@@ -3,10 +3,6 @@ package com.totsp.bookworm.data;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.os.Environment;
 import android.util.Log;
 
@@ -29,6 +25,15 @@ import java.io.IOException;
 public class ImageManager {
 
    private static final String IMAGES_LOCATION = "bookwormdata/images/";   
+
+   // M from OpenLibrary is about 180x225
+   // I scale to 120x150 
+   private static final int COVER_WIDTH = 120;
+   private static final int COVER_HEIGHT = 150;
+   private static final int THUMB_WIDTH = 55;
+   private static final int THUMB_HEIGHT = 70;
+   // (was 100, which makes the re-encoded files larger than the source images) 
+   private static final int JPEG_QUALITY = 85;
    
    public static BitmapFactory.Options options = new BitmapFactory.Options();
    static {      
@@ -37,7 +42,52 @@ public class ImageManager {
       //options.inSampleSize = 16;
    }   
 
-   public ImageManager(final Context context) {
+   private final CoverImageProviderChain coverImageProviderChain;
+   private final GeneratedCoverRenderer generatedCoverRenderer;
+
+   // storage stats (for covers stored from encoded data), shown with diagnostic stats
+   private int coversStored;
+   private int coversStoredAsIs;
+   private long coverBytesWritten;
+   private long coverDecodeMillis;
+
+   private boolean debugEnabled;
+
+   public ImageManager(final Context context, final DataManager dataManager) {
+      // OL first, then AZ (initial order, chain re-orders based on success rates)
+      coverImageProviderChain = new CoverImageProviderChain(CoverImageProviderChain.DEFAULT_HEDGE_DELAY_MILLIS);
+      coverImageProviderChain.addProvider(new CoverImageProviderChain.NetworkCoverImageProvider(
+               CoverImageUtil.COVER_IMAGE_PROVIDER_OPENLIBRARY));
+      coverImageProviderChain.addProvider(new CoverImageProviderChain.NetworkCoverImageProvider(
+               CoverImageUtil.COVER_IMAGE_PROVIDER_AMAZON));
+      coverImageProviderChain.setCoverMissCache(new CoverMissCache(dataManager, CoverMissCache.DEFAULT_TTL_MILLIS));
+      generatedCoverRenderer = new GeneratedCoverRenderer(new File(context.getCacheDir(), "generatedcovers"));
+   }
+
+   public void setDebugEnabled(final boolean debugEnabled) {
+      this.debugEnabled = debugEnabled;
+   }
+
+   public CoverImageProviderChain getCoverImageProviderChain() {
+      return coverImageProviderChain;
+   }
+
+   public CoverMissCache getCoverMissCache() {
+      return coverImageProviderChain.getCoverMissCache();
+   }
+
+   // diagnostic stats (shown with book list stats when debug is enabled)
+   public String getStatsSummary() {
+      return coverImageProviderChain.getStatsSummary() + getCoverMissCache().getStatsSummary()
+               + getStorageStatsSummary() + generatedCoverRenderer.getStatsSummary();
+   }
+
+   public synchronized String getStorageStatsSummary() {
+      if (coversStored == 0) {
+         return "covers stored: 0\n";
+      }
+      return "covers stored: " + coversStored + " (" + coversStoredAsIs + " as is), avg bytes written: "
+               + (coverBytesWritten / coversStored) + ", avg decode ms: " + (coverDecodeMillis / coversStored) + "\n";
    }
 
    public final Bitmap retrieveBitmap(final String title, final Long id, final boolean thumb) {
@@ -60,45 +110,207 @@ public class ImageManager {
       return bitmap;
    }
 
+   /**
+    * Store bitmap (full size and thumbnail), scaled to fit the cover sizes, and JPEG encoded. 
+    * 
+    * If the encoded image data is available use storeCoverImageData instead, which avoids
+    * decoding and re-encoding when possible.
+    * 
+    * @param source
+    * @param title
+    * @param id
+    */
    public final void storeBitmap(final Bitmap source, final String title, final Long id) {
       String name = getNameKey(title, id);
 
-      // M from OpenLibrary is about 180x225
-      // I scale to 120x150      
-      Bitmap bitmap = ImageManager.resizeBitmap(source, 120, 150);
-      Bitmap bitmapThumb = ImageManager.resizeBitmap(source, 55, 70);
+      Bitmap bitmap = ImageManager.resizeBitmap(source, ImageManager.COVER_WIDTH, ImageManager.COVER_HEIGHT);
+      // thumb from the already scaled image (less work, and a better result than scaling a large source way down)
+      Bitmap bitmapThumb = ImageManager.resizeBitmap(bitmap, ImageManager.THUMB_WIDTH, ImageManager.THUMB_HEIGHT);
 
       try {
-         File exportDir = new File(Environment.getExternalStorageDirectory(), ImageManager.IMAGES_LOCATION);
-         if (!exportDir.exists()) {
-            exportDir.mkdirs();
+         File exportDir = getImagesDir();
+         writeBitmap(bitmap, new File(exportDir, name + ".jpg"));
+         writeBitmap(bitmapThumb, new File(exportDir, name + "-t.jpg"));
+      } catch (FileNotFoundException e) {
+         // don't fail fast here, just swallow and log?
+         e.printStackTrace();
+      } catch (IOException e) {
+         // don't fail fast here, just swallow and log?
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Store encoded image data (as retrieved from a cover provider) as full size image and thumbnail.
+    * 
+    * If the image already fits the target size the original bytes are written out directly (no decode,
+    * no re-compression). Otherwise the image bounds are decoded first, and the image is decoded subsampled
+    * (the smallest power of 2 reduction that still covers the target size), then scaled and encoded once.  
+    * 
+    * @param data
+    * @param title
+    * @param id
+    * @return true if stored, false if data could not be decoded or written
+    */
+   public final boolean storeCoverImageData(final byte[] data, final String title, final Long id) {
+      return storeCoverImageData(data, title, id, true);
+   }
+
+   /**
+    * Store encoded image data as thumbnail only (the full size image is retrieved later, on demand,
+    * see retrieveFullCoverImage). 
+    * 
+    * @param data
+    * @param title
+    * @param id
+    * @return true if stored, false if data could not be decoded or written
+    */
+   public final boolean storeThumbnailData(final byte[] data, final String title, final Long id) {
+      return storeCoverImageData(data, title, id, false);
+   }
+
+   private boolean storeCoverImageData(final byte[] data, final String title, final Long id, final boolean includeCover) {
+      if ((data == null) || (data.length == 0)) {
+         return false;
+      }
+      String name = getNameKey(title, id);
+
+      long decodeMillis = 0L;
+      long start = System.currentTimeMillis();
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+      decodeMillis += System.currentTimeMillis() - start;
+      if ((bounds.outWidth <= 0) || (bounds.outHeight <= 0)) {
+         Log.w(Constants.LOG_TAG, "Unable to decode cover image data for " + name + ", not stored.");
+         return false;
+      }
+
+      boolean fitsCover = (bounds.outWidth <= ImageManager.COVER_WIDTH) && (bounds.outHeight <= ImageManager.COVER_HEIGHT);
+      boolean fitsThumb = (bounds.outWidth <= ImageManager.THUMB_WIDTH) && (bounds.outHeight <= ImageManager.THUMB_HEIGHT);
+
+      long written = 0L;
+      Bitmap sampled = null;
+      try {
+         File exportDir = getImagesDir();
+
+         if (includeCover) {
+            if (fitsCover) {
+               written += writeBytes(data, new File(exportDir, name + ".jpg"));
+            } else {
+               start = System.currentTimeMillis();
+               sampled =
+                        ImageManager.decodeSampledBitmap(data, bounds, ImageManager.COVER_WIDTH, ImageManager.COVER_HEIGHT);
+               decodeMillis += System.currentTimeMillis() - start;
+               if (sampled == null) {
+                  return false;
+               }
+               written +=
+                        writeBitmap(ImageManager.resizeBitmap(sampled, ImageManager.COVER_WIDTH, ImageManager.COVER_HEIGHT),
+                                 new File(exportDir, name + ".jpg"));
+            }
          }
 
-         File noMedia = new File(exportDir.getAbsolutePath() + "/.nomedia");
-         if (!noMedia.exists()) {
-            noMedia.createNewFile();
+         if (fitsThumb) {
+            written += writeBytes(data, new File(exportDir, name + "-t.jpg"));
+         } else {
+            if (sampled == null) {
+               // cover was written as is (or not at all), decode (subsampled) just for the thumb 
+               start = System.currentTimeMillis();
+               sampled =
+                        ImageManager.decodeSampledBitmap(data, bounds, ImageManager.THUMB_WIDTH, ImageManager.THUMB_HEIGHT);
+               decodeMillis += System.currentTimeMillis() - start;
+               if (sampled == null) {
+                  return false;
+               }
+            }
+            written +=
+                     writeBitmap(ImageManager.resizeBitmap(sampled, ImageManager.THUMB_WIDTH, ImageManager.THUMB_HEIGHT),
+                              new File(exportDir, name + "-t.jpg"));
+         }
+      } catch (IOException e) {
+         Log.e(Constants.LOG_TAG, "Error storing cover image data for " + name, e);
+         return false;
+      } finally {
+         if (sampled != null) {
+            sampled.recycle();
          }
+      }
+
+      recordStored(includeCover ? fitsCover : fitsThumb, written, decodeMillis);
+      if (debugEnabled) {
+         Log.d(Constants.LOG_TAG, "Stored cover " + name + " source " + bounds.outWidth + "x" + bounds.outHeight + " ("
+                  + data.length + " bytes), written " + written + " bytes, decode " + decodeMillis + " ms");
+      }
+      return true;
+   }
 
-         FileOutputStream fos = null;
+   /**
+    * Get the largest power of 2 sample size that still leaves an image of width x height
+    * at least large enough to be scaled down to fit within reqWidth x reqHeight. 
+    * 
+    * @param width
+    * @param height
+    * @param reqWidth
+    * @param reqHeight
+    * @return
+    */
+   public static int calculateInSampleSize(final int width, final int height, final int reqWidth, final int reqHeight) {
+      int inSampleSize = 1;
+      // fitting within the box is bound by the larger of the two ratios, so keep going while either dimension allows
+      while (((width / (inSampleSize * 2)) >= reqWidth) || ((height / (inSampleSize * 2)) >= reqHeight)) {
+         inSampleSize *= 2;
+      }
+      return inSampleSize;
+   }
 
-         File file = new File(exportDir, name + ".jpg");
-         file.createNewFile(); // ok if returns false, overwrite
-         fos = new FileOutputStream(file);
-         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+   private static Bitmap decodeSampledBitmap(final byte[] data, final BitmapFactory.Options bounds, final int reqWidth,
+            final int reqHeight) {
+      BitmapFactory.Options opts = new BitmapFactory.Options();
+      opts.inSampleSize = ImageManager.calculateInSampleSize(bounds.outWidth, bounds.outHeight, reqWidth, reqHeight);
+      return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+   }
+
+   private synchronized void recordStored(final boolean asIs, final long written, final long decodeMillis) {
+      coversStored++;
+      if (asIs) {
+         coversStoredAsIs++;
+      }
+      coverBytesWritten += written;
+      coverDecodeMillis += decodeMillis;
+   }
+
+   private File getImagesDir() throws IOException {
+      File exportDir = new File(Environment.getExternalStorageDirectory(), ImageManager.IMAGES_LOCATION);
+      if (!exportDir.exists()) {
+         exportDir.mkdirs();
+      }
+
+      File noMedia = new File(exportDir.getAbsolutePath() + "/.nomedia");
+      if (!noMedia.exists()) {
+         noMedia.createNewFile();
+      }
+      return exportDir;
+   }
+
+   private static long writeBitmap(final Bitmap bitmap, final File file) throws IOException {
+      FileOutputStream fos = new FileOutputStream(file); // overwrite if exists
+      try {
+         bitmap.compress(Bitmap.CompressFormat.JPEG, ImageManager.JPEG_QUALITY, fos);
+      } finally {
          fos.close();
+      }
+      return file.length();
+   }
 
-         File fileThumb = new File(exportDir, name + "-t.jpg");
-         fileThumb.createNewFile(); // ok if returns false, overwrite
-         fos = new FileOutputStream(fileThumb);
-         bitmapThumb.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+   private static long writeBytes(final byte[] data, final File file) throws IOException {
+      FileOutputStream fos = new FileOutputStream(file); // overwrite if exists
+      try {
+         fos.write(data);
+      } finally {
          fos.close();
-      } catch (FileNotFoundException e) {
-         // don't fail fast here, just swallow and log?
-         e.printStackTrace();
-      } catch (IOException e) {
-         // don't fail fast here, just swallow and log?
-         e.printStackTrace();
       }
+      return data.length;
    }
 
    public final void deleteBitmapSourceFile(final String title, final Long id) {
@@ -137,74 +349,144 @@ public class ImageManager {
       }
    }
 
-   public Bitmap getOrCreateCoverImage(final Book b) {
-      Bitmap coverImageBitmap = null;
+   /**
+    * Get encoded cover image data for the book from its cover link (if the data source supplied one, small
+    * size only), or from the cover image providers, or null if none has one.
+    * 
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    * 
+    * @param b
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @return
+    */
+   public byte[] getCoverImageData(final Book b, final int size) {
+      String isbn = ImageManager.getCoverIsbn(b);
+      // the data source's own cover link (if any, small only) first, then providers are raced by the chain (hedged)
+      if (isbn != null) {
+         return coverImageProviderChain.getCoverImageData(isbn, size, b.coverImageUrl);
+      }
+      return null;
+   }
 
+   /**
+    * Whether every cover provider is known to have no cover of the size for the book (each answered, and had none,
+    * see CoverMissCache), as opposed to cover retrieval having failed (network, provider unavailable).
+    * 
+    * @param b
+    * @param size one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants
+    * @return
+    */
+   public boolean isCoverKnownMissing(final Book b, final int size) {
+      String isbn = ImageManager.getCoverIsbn(b);
+      return (isbn != null) && coverImageProviderChain.isKnownMiss(isbn, size);
+   }
+
+   private static String getCoverIsbn(final Book b) {
       String isbn = b.isbn10;
       if ((isbn == null) || isbn.equals("")) {
          isbn = b.isbn13;
       }
+      return isbn;
+   }
 
-      // for now hard code cover image providers (later will be pref)
-      // nwo it's OL, then AZ, then generate (in that order)
-      if (isbn != null) {
-         coverImageBitmap =
-                  CoverImageUtil.getCoverImageFromNetwork(isbn, CoverImageUtil.COVER_IMAGE_PROVIDER_OPENLIBRARY);
-         if (coverImageBitmap == null) {
-            coverImageBitmap =
-                     CoverImageUtil.getCoverImageFromNetwork(isbn, CoverImageUtil.COVER_IMAGE_PROVIDER_AMAZON);
-         }
-         if (coverImageBitmap == null) {
-            coverImageBitmap = createCoverImage(b.title);
-         }
-      } else {
+   /**
+    * Decode encoded cover image data for display, subsampled to about the cover size. 
+    * 
+    * @param data
+    * @return
+    */
+   public Bitmap decodeCoverImageData(final byte[] data) {
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+      if ((bounds.outWidth <= 0) || (bounds.outHeight <= 0)) {
+         return null;
+      }
+      return ImageManager.decodeSampledBitmap(data, bounds, ImageManager.COVER_WIDTH, ImageManager.COVER_HEIGHT);
+   }
+
+   public Bitmap getOrCreateCoverImage(final Book b) {
+      Bitmap coverImageBitmap = null;
+      byte[] data = getCoverImageData(b, CoverImageUtil.COVER_IMAGE_SIZE_MEDIUM);
+      if (data != null) {
+         coverImageBitmap = decodeCoverImageData(data);
+      }
+      // if no provider has an image then generate one
+      if (coverImageBitmap == null) {
          coverImageBitmap = createCoverImage(b.title);
       }
       return coverImageBitmap;
    }
 
-   public void resetCoverImage(final Book b) {
-      this.deleteBitmapSourceFile(b.title, b.id);
-      Bitmap coverImageBitmap = getOrCreateCoverImage(b);
-      if (coverImageBitmap != null) {
-         storeBitmap(coverImageBitmap, b.title, b.id);
-      }
+   /**
+    * Reset cover image, retrieving only the small image (for the thumbnail). 
+    * Used for bulk operations (imports, restores, resets), where most books will only ever be
+    * shown in the list, the full cover is retrieved the first time it's shown (see retrieveFullCoverImage).
+    * 
+    * @param b
+    * @return true if a provider cover was stored (false if a generated cover was used)
+    */
+   public boolean resetCoverImage(final Book b) {
+      return resetCoverImage(b, false);
    }
 
-   public Bitmap createCoverImage(final String title) {
-      String[] words = title.split(" ");
-      String line1 = parseLine(0, 15, words);
-      String line2 = parseLine(line1.split(" ").length - 1, 15, words);
-      String line3 = parseLine(line1.split(" ").length + line2.split(" ").length - 2, 15, words);
-      String line4 =
-               parseLine(line1.split(" ").length + line2.split(" ").length + line3.split(" ").length - 3, 12, words);
-      if ((line1.split(" ").length + line2.split(" ").length + line3.split(" ").length + line4.split(" ").length) < words.length) {
-         line4 += "...";
+   public boolean resetCoverImage(final Book b, final boolean full) {
+      this.deleteBitmapSourceFile(b.title, b.id);
+      boolean stored = false;
+      // store provider data directly (no decode/re-encode when it's already small enough)
+      if (full) {
+         byte[] data = getCoverImageData(b, CoverImageUtil.COVER_IMAGE_SIZE_MEDIUM);
+         stored = (data != null) && storeCoverImageData(data, b.title, b.id);
+      } else {
+         byte[] data = getCoverImageData(b, CoverImageUtil.COVER_IMAGE_SIZE_SMALL);
+         stored = (data != null) && storeThumbnailData(data, b.title, b.id);
+      }
+      if (!stored) {
+         storeBitmap(createCoverImage(b.title), b.title, b.id);
       }
+      return stored;
+   }
 
-      Bitmap bitmap = Bitmap.createBitmap(120, 183, Bitmap.Config.RGB_565);
-      Canvas canvas = new Canvas(bitmap);
-      canvas.drawARGB(100, 165, 42, 42);
+   /**
+    * Retrieve and store the cover thumbnail, return true if stored. Unlike resetCoverImage nothing is deleted,
+    * or generated, when no cover is retrieved (so it can be retried).
+    * 
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    * 
+    * @param b
+    * @return
+    */
+   public boolean retrieveCoverThumbnail(final Book b) {
+      byte[] data = getCoverImageData(b, CoverImageUtil.COVER_IMAGE_SIZE_SMALL);
+      return (data != null) && storeThumbnailData(data, b.title, b.id);
+   }
 
-      Paint paint = new Paint();
-      paint.setTextSize(13);
-      paint.setColor(Color.WHITE);
-      paint.setAntiAlias(true);
-      paint.setStyle(Style.FILL);
+   /**
+    * Retrieve and store the full size cover, for books that only have a thumbnail 
+    * (see resetCoverImage), return true if stored. 
+    * 
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    * 
+    * @param b
+    * @return
+    */
+   public boolean retrieveFullCoverImage(final Book b) {
+      byte[] data = getCoverImageData(b, CoverImageUtil.COVER_IMAGE_SIZE_MEDIUM);
+      return (data != null) && storeCoverImageData(data, b.title, b.id);
+   }
 
-      canvas.drawText(line1, 3, 70, paint);
-      if (line2.length() > 0) {
-         canvas.drawText(line2, 3, 85, paint);
-      }
-      if (line3.length() > 0) {
-         canvas.drawText(line3, 3, 100, paint);
-      }
-      if (line4.length() > 0) {
-         canvas.drawText(line4, 3, 115, paint);
-      }
+   /**
+    * Get generated cover image for title (cached, the returned Bitmap is shared, don't recycle it). 
+    * 
+    * @param title
+    * @return
+    */
+   public Bitmap createCoverImage(final String title) {
+      return generatedCoverRenderer.getCoverImage(title);
+   }
 
-      canvas.save();
-      return bitmap;
+   public GeneratedCoverRenderer getGeneratedCoverRenderer() {
+      return generatedCoverRenderer;
    }
 
    private static final Bitmap resizeBitmap(final Bitmap source, final int width, final int height) {
@@ -230,36 +512,4 @@ public class ImageManager {
       key += "_" + id;
       return key;
    }
-
-   // TODO clean up title line break util, make it more robust, this is fugly
-   private String parseLine(final int wordStart, final int maxLineLength, final String[] words) {
-      String line = "";
-      try {
-         if (((words != null) && (words.length > 0)) && (wordStart < words.length)) {
-            for (int i = wordStart; i < words.length; i++) {
-               try {
-                  if (line == null) {
-                     line = words[i];
-                  } else {
-                     line += " " + words[i];
-                  }
-                  if (line.length() >= maxLineLength - 2) {
-                     break;
-                  }
-               } catch (ArrayIndexOutOfBoundsException e) {
-                  // very rare error on line 232 above reported in market (has happened 4 times)
-                  // must be some strange titles that are causing this (I have never been able to repro)
-                  // if it happens, log it, and just return empty String to avoid FC?
-                  Log
-                           .i(Constants.LOG_TAG,
-                                    "Error parsing title string into words, returning line up to this point.", e);
-                  return line;
-               }
-            }
-         }
-      } catch (Exception e) {
-         Log.e(Constants.LOG_TAG, "Error parsing title line, will return empty string (generated title will be wrong).");
-      }
-      return line;
-   }
 }
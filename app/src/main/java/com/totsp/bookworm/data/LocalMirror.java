@@ -0,0 +1,439 @@
+package com.totsp.bookworm.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Author;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.DateUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.JsonStreamReader;
+import com.totsp.bookworm.util.StringUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Local (offline) mirror of book data, imported from an OpenLibrary editions dump
+ * (see LocalMirrorDataSource).
+ *
+ * The mirror is a separate database (it can be large, and it is not user data, so it is not
+ * part of backups, resets, etc), with one row per edition, keyed by the canonical ISBN-13 (see IsbnUtil),
+ * so lookups by either ISBN form are a single primary key select.
+ *
+ * The import streams the dump one line (edition) at a time, and only keeps editions that pass the
+ * ISBN prefix and language filters (the full dump is far too large for a device).
+ */
+public class LocalMirror {
+
+   public static final String DATABASE_NAME = "bookwormmirror.db";
+   public static final String IMPORT_FILENAME = "ol_dump_editions.txt";
+   public static final String IMPORT_FILENAME_GZ = "ol_dump_editions.txt.gz";
+
+   private static final int DATABASE_VERSION = 2;
+   private static final String MIRROR_TABLE = "mirror";
+   // import staging table, renamed to the mirror table once the import is complete
+   private static final String IMPORT_TABLE = "mirror_import";
+   private static final String ISBN = "isbn";
+   private static final String DATA = "data";
+
+   private static final String IMPORT_INSERT =
+            "insert or replace into " + LocalMirror.IMPORT_TABLE + "(" + LocalMirror.ISBN + "," + LocalMirror.DATA
+                     + ") values (?, ?)";
+
+   // rows per transaction during import (into the staging table)
+   private static final int IMPORT_BATCH_SIZE = 1000;
+   // progress is reported every so many lines read
+   private static final int PROGRESS_INTERVAL = 5000;
+
+   /**
+    * Progress callback for import (called on the importing thread).
+    */
+   public interface ImportListener {
+      void onProgress(int linesRead, int editionsImported);
+   }
+
+   private final SQLiteDatabase db;
+   private int count = -1;
+
+   public LocalMirror(final Context context) {
+      OpenHelper openHelper = new OpenHelper(context);
+      db = openHelper.getWritableDatabase();
+   }
+
+   /**
+    * Get the book for the ISBN (10 or 13, with or without dashes), or null if not in the mirror.
+    *
+    * @param isbn
+    * @return
+    */
+   public Book selectBook(final String isbn) {
+      String key = IsbnUtil.toIsbn13(isbn);
+      if (key == null) {
+         return null;
+      }
+      Book book = null;
+      Cursor c =
+               db.query(LocalMirror.MIRROR_TABLE, new String[] { LocalMirror.DATA }, LocalMirror.ISBN + " = ?",
+                        new String[] { key }, null, null, null);
+      if (c.moveToFirst()) {
+         try {
+            book = CachingBookDataSource.fromJson(new JSONObject(c.getString(0)));
+         } catch (JSONException e) {
+            Log.w(Constants.LOG_TAG, "Unable to read local mirror entry for " + key, e);
+         }
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return book;
+   }
+
+   /**
+    * Get the number of ISBNs in the mirror (cached, the mirror only changes on import).
+    *
+    * @return
+    */
+   public synchronized int getCount() {
+      if (count < 0) {
+         Cursor c = db.rawQuery("select count(*) from " + LocalMirror.MIRROR_TABLE, null);
+         count = c.moveToFirst() ? c.getInt(0) : 0;
+         if (!c.isClosed()) {
+            c.close();
+         }
+      }
+      return count;
+   }
+
+   public synchronized void deleteAll() {
+      db.delete(LocalMirror.MIRROR_TABLE, null, null);
+      count = 0;
+   }
+
+   /**
+    * Replace the mirror contents with the editions in the dump that pass the filters.
+    *
+    * Dump lines are tab separated, type, key, revision, last modified, and the edition JSON.
+    * An edition is kept if it has an ISBN, and (when set) one of its ISBNs starts with one of
+    * isbnPrefixes (compared without dashes), and one of its languages is in languages
+    * (OpenLibrary codes, "eng", "fre", etc).
+    *
+    * Editions are imported into a staging table, which replaces the mirror in one step when the whole
+    * dump has been read, so if the import fails (or the process is killed) the previous mirror is left as is
+    * (and lookups keep using it during the import).
+    *
+    * NOTE - blocks (can be a long time on a large dump), make sure this is called outside UI Thread.
+    *
+    * @param in the dump (uncompressed)
+    * @param isbnPrefixes ISBN prefixes to keep, empty for all
+    * @param languages language codes to keep, empty for all
+    * @param listener progress callback, may be null
+    * @return number of editions imported
+    * @throws IOException
+    */
+   public int importDump(final InputStream in, final ArrayList<String> isbnPrefixes,
+            final ArrayList<String> languages, final ImportListener listener) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 8192);
+      MirrorEdition edition = new MirrorEdition();
+      int lines = 0;
+      int imported = 0;
+      int pending = 0;
+
+      // left over from an import that didn't complete
+      db.execSQL("DROP TABLE IF EXISTS " + LocalMirror.IMPORT_TABLE);
+      LocalMirror.createTable(db, LocalMirror.IMPORT_TABLE);
+      SQLiteStatement importInsertStmt = db.compileStatement(LocalMirror.IMPORT_INSERT);
+      boolean replaced = false;
+      db.beginTransaction();
+      try {
+         String line = null;
+         while ((line = reader.readLine()) != null) {
+            lines++;
+            if ((listener != null) && ((lines % LocalMirror.PROGRESS_INTERVAL) == 0)) {
+               listener.onProgress(lines, imported);
+            }
+
+            int jsonStart = line.indexOf('{');
+            // cheap check before parsing, editions only
+            if ((jsonStart < 0) || !line.startsWith("/type/edition")) {
+               continue;
+            }
+            edition.reset();
+            try {
+               readEdition(new JsonStreamReader(new StringReader(line.substring(jsonStart))), edition);
+            } catch (IOException e) {
+               // bad line, skip it and keep going
+               Log.w(Constants.LOG_TAG, "Skipping unreadable local mirror dump line " + lines + " - " + e);
+               continue;
+            }
+            if (!edition.matches(isbnPrefixes, languages)) {
+               continue;
+            }
+
+            String data = null;
+            try {
+               data = CachingBookDataSource.toJson(edition.book).toString();
+            } catch (JSONException e) {
+               continue;
+            }
+            for (int i = 0; i < edition.isbns.size(); i++) {
+               importInsertStmt.clearBindings();
+               importInsertStmt.bindString(1, edition.isbns.get(i));
+               importInsertStmt.bindString(2, data);
+               importInsertStmt.executeInsert();
+               pending++;
+            }
+            imported++;
+
+            if (pending >= LocalMirror.IMPORT_BATCH_SIZE) {
+               db.setTransactionSuccessful();
+               db.endTransaction();
+               db.beginTransaction();
+               pending = 0;
+            }
+         }
+         db.setTransactionSuccessful();
+         db.endTransaction();
+
+         // swap the staging table in
+         db.beginTransaction();
+         db.execSQL("DROP TABLE IF EXISTS " + LocalMirror.MIRROR_TABLE);
+         db.execSQL("ALTER TABLE " + LocalMirror.IMPORT_TABLE + " RENAME TO " + LocalMirror.MIRROR_TABLE);
+         db.setTransactionSuccessful();
+         replaced = true;
+      } finally {
+         db.endTransaction();
+         importInsertStmt.close();
+         if (!replaced) {
+            db.execSQL("DROP TABLE IF EXISTS " + LocalMirror.IMPORT_TABLE);
+         }
+         synchronized (this) {
+            count = -1;
+         }
+      }
+
+      if (listener != null) {
+         listener.onProgress(lines, imported);
+      }
+      Log.i(Constants.LOG_TAG, "Local mirror import read " + lines + " lines, imported " + imported + " editions");
+      return imported;
+   }
+
+   public void close() {
+      db.close();
+   }
+
+   //
+   // dump parsing (streamed, only the mapped fields are read)
+   //
+   private void readEdition(final JsonStreamReader jsr, final MirrorEdition edition) throws IOException {
+      Book book = edition.book;
+      ArrayList<String> values = edition.values;
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         String name = jsr.nextName();
+         if (name.equals("title")) {
+            book.title = jsr.readString(book.title);
+         } else if (name.equals("subtitle")) {
+            book.subTitle = jsr.readString(book.subTitle);
+         } else if (name.equals("isbn_10") || name.equals("isbn_13")) {
+            values.clear();
+            jsr.readStrings(values);
+            for (int i = 0; i < values.size(); i++) {
+               String isbn = IsbnUtil.clean(values.get(i));
+               String isbn13 = IsbnUtil.toIsbn13(isbn);
+               if (isbn13 != null) {
+                  // the ISBN-10 and ISBN-13 of an edition are the same key
+                  if (!edition.isbns.contains(isbn13)) {
+                     edition.isbns.add(isbn13);
+                  }
+                  if (isbn.length() == 10) {
+                     book.isbn10 = isbn;
+                  } else {
+                     book.isbn13 = isbn;
+                  }
+               }
+            }
+         } else if (name.equals("publishers")) {
+            values.clear();
+            jsr.readStrings(values);
+            if (!values.isEmpty()) {
+               book.publisher = values.get(0);
+            }
+         } else if (name.equals("publish_date")) {
+            String value = jsr.readString(null);
+            if (value != null) {
+               Date d = DateUtil.parse(value);
+               if (d != null) {
+                  book.datePubStamp = d.getTime();
+               }
+            }
+         } else if (name.equals("by_statement")) {
+            // editions only reference authors by key, the by statement is the only name there is
+            edition.byStatement = jsr.readString(null);
+         } else if (name.equals("subjects")) {
+            values.clear();
+            jsr.readStrings(values);
+            book.subject = StringUtil.join(values, ", ");
+         } else if (name.equals("physical_format")) {
+            book.format = jsr.readString(book.format);
+         } else if (name.equals("languages")) {
+            readKeys(jsr, edition.languages);
+         } else if (name.equals("covers")) {
+            values.clear();
+            jsr.readStrings(values);
+            if (!values.isEmpty()) {
+               OpenLibraryDataSource.setCoverImageUrl(book, values.get(0));
+            }
+         } else {
+            jsr.skipValue();
+         }
+      }
+      jsr.endObject();
+
+      if (edition.byStatement != null) {
+         String by = edition.byStatement.trim();
+         if (by.toLowerCase().startsWith("by ")) {
+            by = by.substring(3).trim();
+         }
+         if (by.endsWith(".")) {
+            by = by.substring(0, by.length() - 1).trim();
+         }
+         if (by.length() > 0) {
+            book.authors.add(new Author(by));
+         }
+      }
+   }
+
+   // [{"key": "/languages/eng"}, ...] into the last path segment of each key
+   private void readKeys(final JsonStreamReader jsr, final ArrayList<String> keys) throws IOException {
+      if (jsr.peek() != JsonStreamReader.BEGIN_ARRAY) {
+         jsr.skipValue();
+         return;
+      }
+      jsr.beginArray();
+      while (jsr.hasNext()) {
+         if (jsr.peek() == JsonStreamReader.BEGIN_OBJECT) {
+            jsr.beginObject();
+            while (jsr.hasNext()) {
+               if ("key".equals(jsr.nextName())) {
+                  String key = jsr.readString(null);
+                  if (key != null) {
+                     keys.add(key.substring(key.lastIndexOf('/') + 1));
+                  }
+               } else {
+                  jsr.skipValue();
+               }
+            }
+            jsr.endObject();
+         } else {
+            jsr.skipValue();
+         }
+      }
+      jsr.endArray();
+   }
+
+   // parse state for one edition (reused across lines)
+   private static class MirrorEdition {
+      Book book;
+      String byStatement;
+      final ArrayList<String> isbns = new ArrayList<String>(2);
+      final ArrayList<String> languages = new ArrayList<String>(1);
+      final ArrayList<String> values = new ArrayList<String>();
+
+      void reset() {
+         book = new Book();
+         byStatement = null;
+         isbns.clear();
+         languages.clear();
+      }
+
+      boolean matches(final ArrayList<String> isbnPrefixes, final ArrayList<String> languageCodes) {
+         if (isbns.isEmpty() || (book.title == null) || (book.title.length() == 0)) {
+            return false;
+         }
+         if (!isbnPrefixes.isEmpty()) {
+            boolean match = false;
+            for (int i = 0; (i < isbns.size()) && !match; i++) {
+               for (int j = 0; (j < isbnPrefixes.size()) && !match; j++) {
+                  match = isbns.get(i).startsWith(isbnPrefixes.get(j));
+               }
+            }
+            if (!match) {
+               return false;
+            }
+         }
+         if (!languageCodes.isEmpty()) {
+            boolean match = false;
+            for (int i = 0; (i < languages.size()) && !match; i++) {
+               match = languageCodes.contains(languages.get(i));
+            }
+            if (!match) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   private static void createTable(final SQLiteDatabase db, final String table) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " (" + LocalMirror.ISBN + " TEXT PRIMARY KEY, "
+               + LocalMirror.DATA + " TEXT);");
+   }
+
+   private static class OpenHelper extends SQLiteOpenHelper {
+
+      OpenHelper(final Context context) {
+         super(context, LocalMirror.DATABASE_NAME, null, LocalMirror.DATABASE_VERSION);
+      }
+
+      @Override
+      public void onCreate(final SQLiteDatabase db) {
+         Log.i(Constants.LOG_TAG, "BookWorm LocalMirror.OpenHelper onCreate creating database "
+                  + LocalMirror.DATABASE_NAME);
+         LocalMirror.createTable(db, LocalMirror.MIRROR_TABLE);
+      }
+
+      @Override
+      public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+         if (oldVersion < 2) {
+            // version 1 had a row per ISBN form (digits only), re-key the ISBN-10 rows on the canonical ISBN-13
+            // (editions that also had an ISBN-13 row already have that key, those copies are dropped)
+            Cursor c =
+                     db.query(LocalMirror.MIRROR_TABLE, new String[] { LocalMirror.ISBN, LocalMirror.DATA }, "length("
+                              + LocalMirror.ISBN + ") = 10", null, null, null, null);
+            SQLiteStatement stmt =
+                     db.compileStatement("insert or ignore into " + LocalMirror.MIRROR_TABLE + "(" + LocalMirror.ISBN
+                              + "," + LocalMirror.DATA + ") values (?, ?)");
+            try {
+               while (c.moveToNext()) {
+                  String isbn13 = IsbnUtil.toIsbn13(c.getString(0));
+                  if (isbn13 != null) {
+                     stmt.clearBindings();
+                     stmt.bindString(1, isbn13);
+                     stmt.bindString(2, c.getString(1));
+                     stmt.executeInsert();
+                  }
+               }
+            } finally {
+               c.close();
+               stmt.close();
+            }
+            db.execSQL("DELETE FROM " + LocalMirror.MIRROR_TABLE + " WHERE length(" + LocalMirror.ISBN + ") <> 13");
+         }
+      }
+   }
+}
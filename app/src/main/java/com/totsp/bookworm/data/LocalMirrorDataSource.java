@@ -0,0 +1,64 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.BookWormApplication;
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Data source for the on device local mirror (see LocalMirror), no network.
+ *
+ * Only ISBN lookups are supported (search terms that are ISBNs work too, anything else
+ * returns no results, and is left to the network sources). The source is only available
+ * once a mirror has been imported.
+ */
+public class LocalMirrorDataSource implements BookDataSource {
+
+   private final BookWormApplication application;
+   private final LocalMirror localMirror;
+
+   public LocalMirrorDataSource(final BookWormApplication application) {
+      this.application = application;
+      localMirror = application.getLocalMirror();
+   }
+
+   public Book getBook(final String isbn) {
+      Book book = localMirror.selectBook(isbn);
+      if (application.debugEnabled) {
+         Log.d(Constants.LOG_TAG, "Local mirror lookup " + isbn + ", book: " + book);
+      }
+      return book;
+   }
+
+   public ArrayList<Book> getBooks(final String searchTerm, final int startIndex, final int numResults) {
+      ArrayList<Book> books = new ArrayList<Book>(1);
+      // one result at most, so only the first page has it
+      if (startIndex <= 1) {
+         Book book = localMirror.selectBook(searchTerm != null ? searchTerm.trim() : null);
+         if (book != null) {
+            books.add(book);
+         }
+      }
+      return books;
+   }
+
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      for (String isbn : isbns) {
+         Book book = localMirror.selectBook(isbn);
+         if (book != null) {
+            results.put(isbn, book);
+         }
+      }
+      return results;
+   }
+
+   public boolean isAvailable() {
+      return localMirror.getCount() > 0;
+   }
+}
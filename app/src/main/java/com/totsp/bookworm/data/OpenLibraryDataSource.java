@@ -7,56 +7,110 @@ import com.totsp.bookworm.Constants;
 import com.totsp.bookworm.model.Author;
 import com.totsp.bookworm.model.Book;
 import com.totsp.bookworm.util.DateUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+import com.totsp.bookworm.util.JsonStreamReader;
+import com.totsp.bookworm.util.StringUtil;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 
 /**
  * Data source for openlibrary.org.
  * 
+ * Responses are streamed (see JsonStreamReader), and only the fields that are mapped
+ * to Book are read (everything else is skipped without being built into objects). 
+ * Search requests also ask the server for only those fields.
+ * 
  * @author Simon McLaughlin
  */
 public class OpenLibraryDataSource implements BookDataSource {
 
-   private static final String OL_ISBN_SEARCH_PREFIX =
-            "http://openlibrary.org/api/books?callback=processOLBooks&details=true&bibkeys=ISBN:";
+   private static final String OL_HOST = "openlibrary.org";
+   // plain JSON (not JSONP), with details
+   private static final String OL_ISBN_SEARCH_PREFIX = "http://openlibrary.org/api/books?format=json&jscmd=details&bibkeys=";
+   private static final String ISBN_BIBKEY = "ISBN:";
+   // bibkeys per request (keeps URLs a sane length)
+   private static final int ISBN_BATCH_SIZE = 50;
    private static final String OL_BOOK_SEARCH_PREFIX = "http://openlibrary.org/search.json?title=";
+   // only the fields mapped in readDoc
+   private static final String OL_BOOK_SEARCH_FIELDS =
+            "&fields=title,subtitle,isbn,author_name,publisher,subject,first_publish_year,physical_format,cover_i";
+   private static final String OL_COVER_ID_PREFIX = "http://covers.openlibrary.org/b/id/";
    //private static final String OL_BOOK_DATA_PREFIX = "http://openlibrary.org/api/get?key=";
 
    private final BookWormApplication application;
    private final HttpHelper httpHelper;
 
-   private JSONObject jObject;
-
    public OpenLibraryDataSource(final BookWormApplication application) {
       this.application = application;
       this.httpHelper = new HttpHelper();
    }
 
-   public Book getBook(String isbn) {
-      String url = OpenLibraryDataSource.OL_ISBN_SEARCH_PREFIX + isbn;
-      String response = httpHelper.performGet(url, null, null, null);
+   public Book getBook(final String isbn) {
+      HashMap<String, Book> results = new HashMap<String, Book>(2);
+      String url = OpenLibraryDataSource.OL_ISBN_SEARCH_PREFIX + OpenLibraryDataSource.ISBN_BIBKEY + isbn;
+      performIsbnRequest(url, results);
+      Book book = results.get(isbn);
+      if (book == null) {
+         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - " + url);
+      }
       if (application.debugEnabled) {
-         Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
-         Log.d(Constants.LOG_TAG, "HTTP response\n" + response);
+         Log.d(Constants.LOG_TAG, "HTTP response parsed, book: " + book);
       }
-      if ((response == null) || response.contains(HttpHelper.HTTP_RESPONSE_ERROR)) {
-         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - " + url);
-         return null;
+      return book;
+   }
+
+   // the books API accepts many bibkeys per request, so ISBNs are looked up in batches 
+   public HashMap<String, Book> getBooks(final Collection<String> isbns) {
+      HashMap<String, Book> results = new HashMap<String, Book>();
+      StringBuilder url = new StringBuilder(OpenLibraryDataSource.OL_ISBN_SEARCH_PREFIX);
+      int count = 0;
+      for (String isbn : new LinkedHashSet<String>(isbns)) {
+         if (count > 0) {
+            url.append(',');
+         }
+         url.append(OpenLibraryDataSource.ISBN_BIBKEY).append(isbn);
+         count++;
+         if (count == OpenLibraryDataSource.ISBN_BATCH_SIZE) {
+            performIsbnRequest(url.toString(), results);
+            url.setLength(OpenLibraryDataSource.OL_ISBN_SEARCH_PREFIX.length());
+            count = 0;
+         }
       }
+      if (count > 0) {
+         performIsbnRequest(url.toString(), results);
+      }
+      if (application.debugEnabled) {
+         Log.d(Constants.LOG_TAG, "Batch lookup of " + isbns.size() + " ISBNs found " + results.size() + " books");
+      }
+      return results;
+   }
+
+   public boolean isAvailable() {
+      return HttpHelper.isHostAvailable(OpenLibraryDataSource.OL_HOST);
+   }
 
-      Book book = null;
+   private void performIsbnRequest(final String url, final HashMap<String, Book> results) {
+      if (application.debugEnabled) {
+         Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
+      }
       try {
-         book = parseResponse(response, isbn);
-      } catch (JSONException e) {
-         Log.e(Constants.LOG_TAG, e.getMessage(), e);
+         httpHelper.performGetStream(url, null, new HttpHelper.StreamHandler<Void>() {
+            public Void handleStream(final InputStream in) throws IOException {
+               parseResponse(in, results);
+               return null;
+            }
+         });
+      } catch (IOException e) {
+         Log.w(Constants.LOG_TAG, "HTTP request returned no data (error) - " + url + " - " + e);
       }
-      return book;
-   }   
+   }
 
    public ArrayList<Book> getBooks(String searchTerm, int startIndex, int numResults) {
       ArrayList<Book> books = new ArrayList<Book>();
@@ -68,157 +122,214 @@ public class OpenLibraryDataSource implements BookDataSource {
          numResults = 1;
       }
       
-      String url = OpenLibraryDataSource.OL_BOOK_SEARCH_PREFIX + searchTerm + "&offset=" + startIndex + "&limit=" + numResults;
+      String url =
+               OpenLibraryDataSource.OL_BOOK_SEARCH_PREFIX + searchTerm + "&offset=" + startIndex + "&limit="
+                        + numResults + OpenLibraryDataSource.OL_BOOK_SEARCH_FIELDS;
 
-      String response = httpHelper.performGet(url, null, null, null);
+      try {
+         books = httpHelper.performGetStream(url, null, new HttpHelper.StreamHandler<ArrayList<Book>>() {
+            public ArrayList<Book> handleStream(final InputStream in) throws IOException {
+               return getBookDetails(in);
+            }
+         });
+      } catch (IOException e) {
+         Log.w(Constants.LOG_TAG, "HTTP request returned no data (error) - " + url + " - " + e);
+         return new ArrayList<Book>();
+      }
 
       if (application.debugEnabled) {
          Log.d(Constants.LOG_TAG, "HTTP request to URL " + url);
-         Log.d(Constants.LOG_TAG, "HTTP response\n" + response);
-      }
-
-      if ((response == null) || response.contains(HttpHelper.HTTP_RESPONSE_ERROR)) {
-         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - " + url);
-         return books;
-      }
-
-      try {
-         books = getBookDetails(response);
-      } catch (JSONException e) {
-         Log.e(Constants.LOG_TAG, e.getMessage(), e);
+         Log.d(Constants.LOG_TAG, "HTTP response parsed, books: " + books.size());
       }
 
       return books;
    }
    
-   private Book parseResponse(String response, String isbn) throws JSONException {
-
-      int stop = response.length() - 2;
-      String jsonString = response.substring(15, stop);
-
-      if ((jsonString.length() == 2)) {
-         Log.w(Constants.LOG_TAG, "HTTP request returned no data (null) - "
-                  + OpenLibraryDataSource.OL_ISBN_SEARCH_PREFIX + isbn);
-         return null;
-      }
-
-      jObject = new JSONObject(jsonString);
-      Book book = new Book();
-      String key = "ISBN:" + isbn;
-
-      JSONObject jsonBook = jObject.getJSONObject(key);
-
-      book.title = (jsonBook.getJSONObject("details").getString("title"));
-
-      if (jsonBook.getJSONObject("details").has("isbn_10")) {
-         book.isbn10 = (jsonBook.getJSONObject("details").getJSONArray("isbn_10").getString(0));
-      }
-
-      if (jsonBook.getJSONObject("details").has("isbn_13")) {
-         book.isbn13 = (jsonBook.getJSONObject("details").getJSONArray("isbn_13").getString(0));
-      }
-
-      if (jsonBook.getJSONObject("details").has("subtitle")) {
-         book.subTitle = (jsonBook.getJSONObject("details").getString("subtitle"));
-      }
-
-      if (jsonBook.getJSONObject("details").has("publish_date")) {
-         Date d = DateUtil.parse(jsonBook.getJSONObject("details").getString("publish_date"));
-         if (d != null) {
-            book.datePubStamp = (d.getTime());
+   // response is {"ISBN:x": {"bib_key": ..., "details": {...}}, "ISBN:y": ...}, ISBNs not found are left out
+   private void parseResponse(final InputStream in, final HashMap<String, Book> results) throws IOException {
+      JsonStreamReader jsr = new JsonStreamReader(new InputStreamReader(in, "UTF-8"));
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         String key = jsr.nextName();
+         if (key.startsWith(OpenLibraryDataSource.ISBN_BIBKEY) && (jsr.peek() == JsonStreamReader.BEGIN_OBJECT)) {
+            jsr.beginObject();
+            while (jsr.hasNext()) {
+               if ("details".equals(jsr.nextName()) && (jsr.peek() == JsonStreamReader.BEGIN_OBJECT)) {
+                  results.put(key.substring(OpenLibraryDataSource.ISBN_BIBKEY.length()), readDetails(jsr));
+               } else {
+                  jsr.skipValue();
+               }
+            }
+            jsr.endObject();
+         } else {
+            jsr.skipValue();
          }
       }
+   }
 
-      if (jsonBook.getJSONObject("details").has("authors")) {
-         book.authors.add(new Author(jsonBook.getJSONObject("details").getJSONArray("authors").getJSONObject(0)
-                  .getString("name")));
-      }
-
-      if (jsonBook.getJSONObject("details").has("publishers")) {
-         book.publisher = (jsonBook.getJSONObject("details").getJSONArray("publishers").getString(0));
-      }
-
-      if (jsonBook.getJSONObject("details").has("subjects")) {
-         JSONArray resultArray = jsonBook.getJSONObject("details").getJSONArray("subjects");
-         String subjects = "";
-
-         for (int i = 0; i < resultArray.length(); i++) {
-            subjects += resultArray.getString(i);
+   private Book readDetails(final JsonStreamReader jsr) throws IOException {
+      Book book = new Book();
+      ArrayList<String> values = new ArrayList<String>();
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         String name = jsr.nextName();
+         if (name.equals("title")) {
+            book.title = jsr.readString(book.title);
+         } else if (name.equals("subtitle")) {
+            book.subTitle = jsr.readString(book.subTitle);
+         } else if (name.equals("isbn_10")) {
+            book.isbn10 = readFirstString(jsr, book.isbn10);
+         } else if (name.equals("isbn_13")) {
+            book.isbn13 = readFirstString(jsr, book.isbn13);
+         } else if (name.equals("publish_date")) {
+            setDatePub(book, jsr.readString(null));
+         } else if (name.equals("authors")) {
+            readAuthors(jsr, book);
+         } else if (name.equals("publishers")) {
+            book.publisher = readFirstString(jsr, book.publisher);
+         } else if (name.equals("subjects")) {
+            values.clear();
+            jsr.readStrings(values);
+            book.subject = StringUtil.join(values, ", ");
+         } else if (name.equals("physical_format")) {
+            book.format = jsr.readString(book.format);
+         } else if (name.equals("covers")) {
+            setCoverImageUrl(book, readFirstString(jsr, null));
+         } else {
+            jsr.skipValue();
          }
-         book.subject = subjects;
       }
-
-      if (jsonBook.getJSONObject("details").has("physical_format")) {
-         book.format = (jsonBook.getJSONObject("details").getString("physical_format"));
-      }
-
+      jsr.endObject();
       return book;
    }
 
-   private ArrayList<Book> getBookDetails(String jsonString) throws JSONException {
+   // search results are streamed, one doc at a time, only the mapped fields are read
+   private ArrayList<Book> getBookDetails(final InputStream in) throws IOException {
       ArrayList<Book> books = new ArrayList<Book>();
-      jObject = new JSONObject(jsonString);
-      JSONArray resultArray = jObject.getJSONArray("docs");
-
-      for (int i = 0; i < resultArray.length(); i++) {
-
-         JSONObject jsonBook = resultArray.getJSONObject(i);
-         Book book = new Book();
-
-         if (jsonBook.has("title")) {
-            book.title = jsonBook.getString("title");
+      ArrayList<String> values = new ArrayList<String>();
+      JsonStreamReader jsr = new JsonStreamReader(new InputStreamReader(in, "UTF-8"));
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         if ("docs".equals(jsr.nextName()) && (jsr.peek() == JsonStreamReader.BEGIN_ARRAY)) {
+            jsr.beginArray();
+            while (jsr.hasNext()) {
+               books.add(readDoc(jsr, values));
+            }
+            jsr.endArray();
+         } else {
+            jsr.skipValue();
          }
+      }
+      return books;
+   }
 
-         if (jsonBook.has("isbn")) {
-            JSONArray jsonISBN = jsonBook.getJSONArray("isbn");
-            for (int k = 0; k < jsonISBN.length(); k++) {
-               if (jsonISBN.getString(k).length() == 10) {
-                  book.isbn10 = jsonISBN.getString(k);
-               } else if (jsonISBN.getString(k).length() == 13) {
-                  book.isbn13 = jsonISBN.getString(k);
+   private Book readDoc(final JsonStreamReader jsr, final ArrayList<String> values) throws IOException {
+      Book book = new Book();
+      jsr.beginObject();
+      while (jsr.hasNext()) {
+         String name = jsr.nextName();
+         if (name.equals("title")) {
+            book.title = jsr.readString(book.title);
+         } else if (name.equals("subtitle")) {
+            book.subTitle = jsr.readString(book.subTitle);
+         } else if (name.equals("isbn")) {
+            values.clear();
+            jsr.readStrings(values);
+            for (int i = 0; i < values.size(); i++) {
+               String isbn = IsbnUtil.clean(values.get(i));
+               if (IsbnUtil.isValid(isbn)) {
+                  if (isbn.length() == 10) {
+                     book.isbn10 = isbn;
+                  } else {
+                     book.isbn13 = isbn;
+                  }
                }
             }
-         }
-
-         if (jsonBook.has("subtitle")) {
-            book.subTitle = (jsonBook.getString("subtitle"));
-         }
-
-         if (jsonBook.has("first_publish_year")) {
-            Date d = DateUtil.parse(jsonBook.getString("first_publish_year"));
-            if (d != null) {
-               book.datePubStamp = (d.getTime());
+         } else if (name.equals("first_publish_year")) {
+            setDatePub(book, jsr.readString(null));
+         } else if (name.equals("author_name")) {
+            values.clear();
+            jsr.readStrings(values);
+            for (int i = 0; i < values.size(); i++) {
+               book.authors.add(new Author(values.get(i)));
             }
+         } else if (name.equals("publisher")) {
+            book.publisher = readFirstString(jsr, book.publisher);
+         } else if (name.equals("subject")) {
+            values.clear();
+            jsr.readStrings(values);
+            book.subject = StringUtil.join(values, ", ");
+         } else if (name.equals("physical_format")) {
+            book.format = jsr.readString(book.format);
+         } else if (name.equals("cover_i")) {
+            setCoverImageUrl(book, jsr.readString(null));
+         } else {
+            jsr.skipValue();
          }
+      }
+      jsr.endObject();
+      return book;
+   }
 
-         if (jsonBook.has("author_name")) {
-            JSONArray jsonAuthor = jsonBook.getJSONArray("author_name");
-            for (int j = 0; j < jsonAuthor.length(); j++) {
-               book.authors.add(new Author(jsonAuthor.getString(j)));
+   private void readAuthors(final JsonStreamReader jsr, final Book book) throws IOException {
+      if (jsr.peek() != JsonStreamReader.BEGIN_ARRAY) {
+         jsr.skipValue();
+         return;
+      }
+      // [{"name": "x", "key": "/authors/..."}, ...]
+      jsr.beginArray();
+      while (jsr.hasNext()) {
+         if (jsr.peek() == JsonStreamReader.BEGIN_OBJECT) {
+            jsr.beginObject();
+            while (jsr.hasNext()) {
+               if ("name".equals(jsr.nextName())) {
+                  String name = jsr.readString(null);
+                  if (name != null) {
+                     book.authors.add(new Author(name));
+                  }
+               } else {
+                  jsr.skipValue();
+               }
             }
+            jsr.endObject();
+         } else {
+            jsr.skipValue();
          }
+      }
+      jsr.endArray();
+   }
 
-         if (jsonBook.has("publisher")) {
-            book.publisher = (jsonBook.getJSONArray("publisher").getString(0));
-         }
-
-         if (jsonBook.has("subject")) {
-            JSONArray resultArray2 = jsonBook.getJSONArray("subject");
-            String subjects = "";
+   // cover ids (covers in details, cover_i in search docs) map straight to a cover image URL
+   static void setCoverImageUrl(final Book book, final String coverId) {
+      // -1 means no cover
+      if ((coverId != null) && (coverId.length() > 0) && !coverId.startsWith("-")) {
+         book.coverImageUrl = OpenLibraryDataSource.OL_COVER_ID_PREFIX + coverId + "-M.jpg";
+      }
+   }
 
-            for (int j = 0; j < resultArray2.length(); j++) {
-               subjects += resultArray2.getString(j) + ", ";
-            }
-            book.subject = subjects;
+   private void setDatePub(final Book book, final String value) {
+      if (value != null) {
+         Date d = DateUtil.parse(value);
+         if (d != null) {
+            book.datePubStamp = d.getTime();
          }
+      }
+   }
 
-         if (jsonBook.has("physical_format")) {
-            book.format = (jsonBook.getString("physical_format"));
+   private String readFirstString(final JsonStreamReader jsr, final String defaultValue) throws IOException {
+      if (jsr.peek() != JsonStreamReader.BEGIN_ARRAY) {
+         return jsr.readString(defaultValue);
+      }
+      String first = null;
+      jsr.beginArray();
+      while (jsr.hasNext()) {
+         if (first == null) {
+            first = jsr.readString(null);
+         } else {
+            jsr.skipValue();
          }
-
-         books.add(book);
       }
-      
-      return books;
+      jsr.endArray();
+      return first != null ? first : defaultValue;
    }
 }
@@ -0,0 +1,276 @@
+package com.totsp.bookworm.data;
+
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.util.BookUtil;
+import com.totsp.bookworm.util.CoverImageUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Burst scanning, ISBNs are queued as fast as they are scanned (the scanner is handed right back),
+ * and resolved in the background, book data in batches (see BookDataSource.getBooks(Collection)),
+ * and covers (thumbnails) concurrently, by a small pool of workers.
+ *
+ * Nothing is added until the user reviews the burst and commits it, then all resolved books are
+ * inserted at once (one transaction, see DataManager.insertBooks). ISBNs that were not resolved
+ * (yet, or not at all, including while offline) are handed to the WorkQueue to be retried later.
+ */
+public class ScanBurst {
+
+   public static final int STATUS_PENDING = 0;
+   public static final int STATUS_RESOLVING = 1;
+   public static final int STATUS_RESOLVED = 2;
+   public static final int STATUS_NOT_FOUND = 3;
+
+   private static final int POOL_SIZE = 3;
+   // ISBNs per data source request (ones scanned while a request is in flight are picked up by the next)
+   private static final int BATCH_SIZE = 10;
+
+   /**
+    * Callback for entry status changes (called on worker threads).
+    */
+   public interface Listener {
+      void onEntryChanged();
+   }
+
+   /**
+    * A scanned ISBN, and the book (and cover thumbnail data) once resolved.
+    */
+   public static class Entry {
+      public final String isbn;
+      public int status = ScanBurst.STATUS_PENDING;
+      public Book book;
+      public byte[] coverData;
+
+      Entry(final String isbn) {
+         this.isbn = isbn;
+      }
+   }
+
+   private final ImageManager imageManager;
+   private final ExecutorService executor;
+   private final ArrayList<Entry> entries = new ArrayList<Entry>();
+   private final HashSet<String> isbns = new HashSet<String>();
+
+   private BookDataSource dataSource;
+   private Listener listener;
+
+   public ScanBurst(final ImageManager imageManager) {
+      this.imageManager = imageManager;
+      executor = Executors.newFixedThreadPool(ScanBurst.POOL_SIZE, new ThreadFactory() {
+         private int count;
+
+         public synchronized Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "BookWorm-burst-" + (++count));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   public synchronized void setListener(final Listener listener) {
+      this.listener = listener;
+   }
+
+   /**
+    * Queue scanned ISBN for resolution (scanning the same ISBN again in one burst is ignored).
+    *
+    * @param isbn
+    * @param dataSource
+    * @return false if the ISBN was already in the burst
+    */
+   public boolean add(final String isbn, final BookDataSource dataSource) {
+      synchronized (this) {
+         if ((isbn == null) || (isbn.length() == 0) || !isbns.add(isbn)) {
+            return false;
+         }
+         this.dataSource = dataSource;
+         entries.add(new Entry(isbn));
+      }
+      executor.execute(new Runnable() {
+         public void run() {
+            resolvePending();
+         }
+      });
+      return true;
+   }
+
+   /**
+    * Get a snapshot of the entries, in scan order (the entries themselves are updated by the workers,
+    * read their fields while synchronized on this ScanBurst).
+    *
+    * @return
+    */
+   public synchronized ArrayList<Entry> getEntries() {
+      return new ArrayList<Entry>(entries);
+   }
+
+   public synchronized int size() {
+      return entries.size();
+   }
+
+   /**
+    * Get count of entries with status.
+    *
+    * @param status
+    * @return
+    */
+   public synchronized int getCount(final int status) {
+      int count = 0;
+      for (int i = 0; i < entries.size(); i++) {
+         if (entries.get(i).status == status) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   public synchronized void clear() {
+      entries.clear();
+      isbns.clear();
+   }
+
+   /**
+    * Add all resolved books (that are not already present) in one transaction, store the covers that
+    * were fetched, queue the rest (unresolved ISBNs, missing covers) on the WorkQueue, and clear the burst.
+    *
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    *
+    * @param dataManager
+    * @param workQueue
+    * @return number of books added
+    */
+   public int commit(final DataManager dataManager, final WorkQueue workQueue) {
+      ArrayList<Entry> resolved = new ArrayList<Entry>();
+      ArrayList<String> unresolved = new ArrayList<String>();
+      // only collect under the lock (the UI Thread takes it too), the WorkQueue writes to the db
+      synchronized (this) {
+         for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if ((entry.status == ScanBurst.STATUS_RESOLVED) && (entry.book != null)) {
+               resolved.add(entry);
+            } else {
+               unresolved.add(entry.isbn);
+            }
+         }
+         entries.clear();
+         isbns.clear();
+      }
+      for (int i = 0; i < unresolved.size(); i++) {
+         workQueue.enqueueIsbnLookup(unresolved.get(i), WorkQueue.PRIORITY_NORMAL);
+      }
+
+      // skip dupes, of books already present, and within the burst (same book, different ISBN scanned)
+      ArrayList<Book> books = new ArrayList<Book>(resolved.size());
+      // identity, Book equals/hashCode are value based
+      IdentityHashMap<Book, byte[]> covers = new IdentityHashMap<Book, byte[]>();
+      HashSet<String> keys = new HashSet<String>();
+      for (int i = 0; i < resolved.size(); i++) {
+         Entry entry = resolved.get(i);
+         if ((entry.book.title != null) && BookUtil.addIdentityKeys(keys, entry.book) && !isPresent(dataManager, entry.book)) {
+            books.add(entry.book);
+            if (entry.coverData != null) {
+               covers.put(entry.book, entry.coverData);
+            }
+         }
+      }
+
+      ArrayList<Book> inserted = dataManager.insertBooks(books);
+      for (int i = 0; i < inserted.size(); i++) {
+         Book book = inserted.get(i);
+         byte[] data = covers.get(book);
+         if ((data == null) || !imageManager.storeThumbnailData(data, book.title, book.id)) {
+            workQueue.enqueueCoverFetch(book.id, WorkQueue.PRIORITY_HIGH);
+         }
+      }
+      Log.i(Constants.LOG_TAG, "Scan burst committed, " + inserted.size() + " books added of " + resolved.size()
+               + " resolved");
+      return inserted.size();
+   }
+
+   private boolean isPresent(final DataManager dataManager, final Book book) {
+      ArrayList<Book> potentialDupes = dataManager.selectAllBooksByTitle(book.title);
+      if (potentialDupes != null) {
+         for (Book b : potentialDupes) {
+            if (BookUtil.areBooksEffectiveDupes(book, b)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   // take a batch of pending entries and resolve them (book data as one batch, then each cover concurrently)
+   private void resolvePending() {
+      ArrayList<Entry> batch = new ArrayList<Entry>(ScanBurst.BATCH_SIZE);
+      BookDataSource source = null;
+      synchronized (this) {
+         for (int i = 0; (i < entries.size()) && (batch.size() < ScanBurst.BATCH_SIZE); i++) {
+            Entry entry = entries.get(i);
+            if (entry.status == ScanBurst.STATUS_PENDING) {
+               entry.status = ScanBurst.STATUS_RESOLVING;
+               batch.add(entry);
+            }
+         }
+         source = dataSource;
+      }
+      if (batch.isEmpty()) {
+         // already picked up by another worker's batch
+         return;
+      }
+      notifyListener();
+
+      HashMap<String, Book> found = new HashMap<String, Book>();
+      if (source.isAvailable()) {
+         ArrayList<String> batchIsbns = new ArrayList<String>(batch.size());
+         for (int i = 0; i < batch.size(); i++) {
+            batchIsbns.add(batch.get(i).isbn);
+         }
+         try {
+            found = source.getBooks(batchIsbns);
+         } catch (RuntimeException e) {
+            Log.e(Constants.LOG_TAG, "Error resolving scan burst batch", e);
+         }
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+         final Entry entry = batch.get(i);
+         final Book book = found.get(entry.isbn);
+         synchronized (this) {
+            entry.book = book;
+            entry.status = book != null ? ScanBurst.STATUS_RESOLVED : ScanBurst.STATUS_NOT_FOUND;
+         }
+         if (book != null) {
+            executor.execute(new Runnable() {
+               public void run() {
+                  byte[] data = imageManager.getCoverImageData(book, CoverImageUtil.COVER_IMAGE_SIZE_SMALL);
+                  synchronized (ScanBurst.this) {
+                     entry.coverData = data;
+                  }
+                  notifyListener();
+               }
+            });
+         }
+      }
+      notifyListener();
+   }
+
+   private void notifyListener() {
+      Listener l = null;
+      synchronized (this) {
+         l = listener;
+      }
+      if (l != null) {
+         l.onEntryChanged();
+      }
+   }
+}
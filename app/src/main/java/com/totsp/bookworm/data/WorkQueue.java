@@ -0,0 +1,266 @@
+package com.totsp.bookworm.data;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.totsp.bookworm.Constants;
+import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.model.WorkItem;
+import com.totsp.bookworm.util.BookUtil;
+import com.totsp.bookworm.util.CoverImageUtil;
+import com.totsp.bookworm.util.IsbnUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Durable queue of deferred work (stored in the workqueue table), book lookups for ISBNs
+ * scanned while offline, and cover fetches for books added without one.
+ *
+ * The queue is drained in batches (lookups use the batch ISBN API, see BookDataSource) when
+ * connectivity returns, highest priority first. Enqueueing is idempotent (one item per type and key),
+ * and failed items are retried later with backoff, up to a max number of attempts (after each drain
+ * the retry task, see setRetryTask, is scheduled for when the earliest remaining item is due).
+ */
+public class WorkQueue {
+
+   public static final int TYPE_ISBN_LOOKUP = 1;
+   public static final int TYPE_COVER_FETCH = 2;
+
+   public static final int PRIORITY_LOW = 0;
+   public static final int PRIORITY_NORMAL = 5;
+   public static final int PRIORITY_HIGH = 10;
+
+   private static final int BATCH_SIZE = 25;
+   private static final int MAX_ATTEMPTS = 6;
+   // doubles with each attempt (1 min, 2 min, 4 min, ...)
+   private static final long RETRY_BASE_MILLIS = 60L * 1000L;
+
+   private final DataManager dataManager;
+   private final ImageManager imageManager;
+   private final ExecutorService executor;
+
+   private boolean draining;
+   private Handler retryHandler;
+   private Runnable retryTask;
+   private int booksAdded;
+   private int coversFetched;
+   private int abandoned;
+
+   public WorkQueue(final DataManager dataManager, final ImageManager imageManager) {
+      this.dataManager = dataManager;
+      this.imageManager = imageManager;
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "BookWorm-workqueue");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Queue lookup (and add) of the book for ISBN.
+    *
+    * @param isbn
+    * @param priority
+    */
+   public void enqueueIsbnLookup(final String isbn, final int priority) {
+      // keyed on the canonical ISBN-13 (one item whichever form was scanned), invalid ISBNs are never queued
+      String isbn13 = IsbnUtil.toIsbn13(isbn);
+      if (isbn13 != null) {
+         dataManager.insertWorkItem(WorkQueue.TYPE_ISBN_LOOKUP, isbn13, 0L, priority);
+      }
+   }
+
+   /**
+    * Queue cover fetch for book (already in the db).
+    *
+    * @param bookId
+    * @param priority
+    */
+   public void enqueueCoverFetch(final long bookId, final int priority) {
+      if (bookId > 0) {
+         dataManager.insertWorkItem(WorkQueue.TYPE_COVER_FETCH, String.valueOf(bookId), bookId, priority);
+      }
+   }
+
+   /**
+    * Set task to post (on handler) when backed off items are due, it should drain the queue if it can
+    * (connectivity, etc), see drainAsync.
+    *
+    * @param handler
+    * @param task
+    */
+   public synchronized void setRetryTask(final Handler handler, final Runnable task) {
+      retryHandler = handler;
+      retryTask = task;
+   }
+
+   public int getPendingCount() {
+      return dataManager.getWorkItemCount();
+   }
+
+   /**
+    * Drain the queue in the background (single worker, if a drain is already running this is a no-op),
+    * safe to call from the UI Thread, the pending check is done by the worker too.
+    *
+    * @param dataSource
+    */
+   public void drainAsync(final BookDataSource dataSource) {
+      synchronized (this) {
+         if (draining) {
+            return;
+         }
+         draining = true;
+      }
+      executor.execute(new Runnable() {
+         public void run() {
+            try {
+               if (getPendingCount() > 0) {
+                  drain(dataSource);
+               }
+            } catch (RuntimeException e) {
+               Log.e(Constants.LOG_TAG, "Error draining work queue", e);
+            } finally {
+               synchronized (WorkQueue.this) {
+                  draining = false;
+               }
+               scheduleRetry();
+            }
+         }
+      });
+   }
+
+   /**
+    * Process all items that are due, lookups first (found books are added, and queue their covers), then covers.
+    *
+    * NOTE - blocks, make sure this is called outside UI Thread.
+    *
+    * @param dataSource
+    */
+   public void drain(final BookDataSource dataSource) {
+      while (dataSource.isAvailable()) {
+         ArrayList<WorkItem> items = dataManager.selectReadyWorkItems(WorkQueue.TYPE_ISBN_LOOKUP, WorkQueue.BATCH_SIZE);
+         if (items.isEmpty()) {
+            break;
+         }
+         ArrayList<String> isbns = new ArrayList<String>(items.size());
+         for (WorkItem item : items) {
+            isbns.add(item.key);
+         }
+         HashMap<String, Book> found = dataSource.getBooks(isbns);
+         // if the source went down during the batch, misses are not the items' fault
+         boolean available = dataSource.isAvailable();
+         for (WorkItem item : items) {
+            Book book = found.get(item.key);
+            if (book != null) {
+               addBook(book, item.priority);
+               dataManager.deleteWorkItem(item.id);
+            } else {
+               retryLater(item, available);
+            }
+         }
+      }
+
+      while (true) {
+         ArrayList<WorkItem> items = dataManager.selectReadyWorkItems(WorkQueue.TYPE_COVER_FETCH, WorkQueue.BATCH_SIZE);
+         if (items.isEmpty()) {
+            break;
+         }
+         for (WorkItem item : items) {
+            Book book = dataManager.selectBook(item.bookId);
+            if (book == null) {
+               // book deleted since
+               dataManager.deleteWorkItem(item.id);
+            } else if (imageManager.retrieveCoverThumbnail(book)) {
+               synchronized (this) {
+                  coversFetched++;
+               }
+               dataManager.deleteWorkItem(item.id);
+            } else if (imageManager.isCoverKnownMissing(book, CoverImageUtil.COVER_IMAGE_SIZE_SMALL)) {
+               // every provider answered, and none has a cover, retrying won't change that, use a generated cover
+               if (imageManager.retrieveBitmap(book.title, book.id, true) == null) {
+                  imageManager.storeBitmap(imageManager.createCoverImage(book.title), book.title, book.id);
+               }
+               dataManager.deleteWorkItem(item.id);
+            } else {
+               // failed (network, provider unavailable), nothing stored or deleted, retried later
+               retryLater(item, true);
+            }
+         }
+      }
+   }
+
+   public void clear() {
+      dataManager.deleteAllWorkItems();
+   }
+
+   public synchronized String getStatsSummary() {
+      return "work queue pending: " + getPendingCount() + ", books added: " + booksAdded + ", covers fetched: "
+               + coversFetched + ", abandoned: " + abandoned + "\n";
+   }
+
+   // add book unless it's already there (lookups may be retried, or the book added another way meanwhile)
+   private void addBook(final Book book, final int priority) {
+      ArrayList<Book> potentialDupes = dataManager.selectAllBooksByTitle(book.title);
+      if (potentialDupes != null) {
+         for (Book b : potentialDupes) {
+            if (BookUtil.areBooksEffectiveDupes(book, b)) {
+               Log.i(Constants.LOG_TAG, "Work queue lookup found book already present, not adding - " + book.title);
+               return;
+            }
+         }
+      }
+      long id = dataManager.insertBook(book);
+      if (id > 0) {
+         synchronized (this) {
+            booksAdded++;
+         }
+         enqueueCoverFetch(id, priority);
+      }
+   }
+
+   // post the retry task for when the earliest remaining item is due (at least the base delay from now, items
+   // may be due already if the data source went down mid drain, it's not retried until the source is back anyway)
+   private void scheduleRetry() {
+      Handler handler = null;
+      Runnable task = null;
+      synchronized (this) {
+         handler = retryHandler;
+         task = retryTask;
+      }
+      if ((handler == null) || (task == null)) {
+         return;
+      }
+      long nextAttempt = 0L;
+      try {
+         nextAttempt = dataManager.getNextWorkItemAttempt();
+      } catch (RuntimeException e) {
+         Log.e(Constants.LOG_TAG, "Error checking work queue for retries", e);
+      }
+      handler.removeCallbacks(task);
+      if (nextAttempt > 0L) {
+         long delay = Math.max(nextAttempt - System.currentTimeMillis(), WorkQueue.RETRY_BASE_MILLIS);
+         handler.postDelayed(task, delay);
+      }
+   }
+
+   private void retryLater(final WorkItem item, final boolean countAttempt) {
+      int attempts = countAttempt ? item.attempts + 1 : item.attempts;
+      if (attempts >= WorkQueue.MAX_ATTEMPTS) {
+         Log.w(Constants.LOG_TAG, "Giving up on work item after " + attempts + " attempts - " + item);
+         synchronized (this) {
+            abandoned++;
+         }
+         dataManager.deleteWorkItem(item.id);
+         return;
+      }
+      long delay = WorkQueue.RETRY_BASE_MILLIS << Math.max(attempts - 1, 0);
+      dataManager.updateWorkItemAttempt(item.id, attempts, System.currentTimeMillis() + delay);
+   }
+}
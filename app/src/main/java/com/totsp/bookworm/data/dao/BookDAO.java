@@ -29,6 +29,15 @@ public class BookDAO implements DAO<Book> {
                      + "from book left outer join bookuserdata on book.bid = bookuserdata.bid "
                      + "left outer join bookauthor on bookauthor.bid = book.bid left outer join author on author.aid = bookauthor.aid";
 
+   // every book with its authors (pipe separated) and user data as one row, in CSV export column order
+   private static final String QUERY_EXPORT =
+            "select book.tit, book.subtit, group_concat(author.name, '|') as authors, book.isbn10, book.isbn13, "
+                     + "book.desc, book.format, book.subject, book.pub, book.datepub, "
+                     + "bookuserdata.rat, bookuserdata.rstat, bookuserdata.blurb "
+                     + "from book left outer join bookuserdata on book.bid = bookuserdata.bid "
+                     + "left outer join bookauthor on bookauthor.bid = book.bid left outer join author on author.aid = bookauthor.aid "
+                     + "group by book.bid order by book.tit asc";
+
    private final SQLiteStatement bookInsertStmt;
    private static final String BOOK_INSERT =
             "insert into " + DataConstants.BOOK_TABLE + "(" + DataConstants.ISBN10 + "," + DataConstants.ISBN13 + ","
@@ -123,6 +132,16 @@ public class BookDAO implements DAO<Book> {
       return db.rawQuery(sb.toString(), null);
    }
 
+   /**
+    * Get cursor over all books for export, one row per book, with authors and user data joined in
+    * (one query, rather than the queries per book of selectAll).
+    *
+    * @return
+    */
+   public Cursor getExportCursor() {
+      return db.rawQuery(BookDAO.QUERY_EXPORT, null);
+   }
+
    @Override
    public Book select(final long id) {
       Book b = null;
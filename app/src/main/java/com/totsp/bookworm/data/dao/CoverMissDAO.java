@@ -0,0 +1,109 @@
+package com.totsp.bookworm.data.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.totsp.bookworm.data.DataConstants;
+
+/**
+ * DAO for cover image misses (cover provider had no image for an ISBN).
+ * 
+ * This is a cache table, not an entity, so it does not implement DAO, 
+ * it just records (provider, ISBN, cover size) with the time they were last checked. 
+ */
+public class CoverMissDAO {
+
+   private final SQLiteStatement coverMissInsertStmt;
+   private static final String COVERMISS_INSERT =
+            "insert or replace into " + DataConstants.COVERMISS_TABLE + "(" + DataConstants.PROVIDER + ","
+                     + DataConstants.ISBN + "," + DataConstants.COVERSIZE + "," + DataConstants.CHECKED
+                     + ") values (?, ?, ?, ?)";
+
+   private SQLiteDatabase db;
+
+   public CoverMissDAO(SQLiteDatabase db) {
+      this.db = db;
+
+      // statements
+      coverMissInsertStmt = db.compileStatement(CoverMissDAO.COVERMISS_INSERT);
+   }
+
+   public static void onCreate(SQLiteDatabase db) {
+      StringBuilder sb = new StringBuilder();
+
+      // covermiss table (no FK to book, misses are recorded for ISBNs not yet (or never) in the db)
+      sb.append("CREATE TABLE IF NOT EXISTS " + DataConstants.COVERMISS_TABLE + " (");
+      sb.append(DataConstants.COVERMISSID + " INTEGER PRIMARY KEY, ");
+      sb.append(DataConstants.PROVIDER + " INTEGER, ");
+      sb.append(DataConstants.ISBN + " TEXT, ");
+      sb.append(DataConstants.COVERSIZE + " INTEGER, ");
+      sb.append(DataConstants.CHECKED + " INTEGER");
+      sb.append(");");
+      db.execSQL(sb.toString());
+
+      // constraints (also the lookup index)
+      db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS uidxCoverMiss ON " + DataConstants.COVERMISS_TABLE + "("
+               + DataConstants.PROVIDER + ", " + DataConstants.ISBN + ", " + DataConstants.COVERSIZE + ")");
+   }
+
+   public static void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      // cache data only, nothing to migrate, table is new as of version 11, and (re) created with
+      // the cover size as of version 14
+      db.execSQL("DROP TABLE IF EXISTS " + DataConstants.COVERMISS_TABLE);
+      CoverMissDAO.onCreate(db);
+   }
+
+   public void deleteAll() {
+      db.delete(DataConstants.COVERMISS_TABLE, null, null);
+   }
+
+   /**
+    * Return true if a miss has been recorded for the provider, ISBN and size at or after the minChecked time.
+    * 
+    * @param providerKey
+    * @param isbn
+    * @param size
+    * @param minChecked
+    * @return
+    */
+   public boolean isMiss(final int providerKey, final String isbn, final int size, final long minChecked) {
+      boolean result = false;
+      Cursor c =
+               db.query(DataConstants.COVERMISS_TABLE, new String[] { DataConstants.CHECKED }, DataConstants.PROVIDER
+                        + " = ? and " + DataConstants.ISBN + " = ? and " + DataConstants.COVERSIZE + " = ?",
+                        new String[] { String.valueOf(providerKey), isbn, String.valueOf(size) }, null, null, null, "1");
+      if (c.moveToFirst()) {
+         result = c.getLong(0) >= minChecked;
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return result;
+   }
+
+   // synchronized, the compiled statement is shared (covers are fetched concurrently)
+   public synchronized void insert(final int providerKey, final String isbn, final int size, final long checked) {
+      coverMissInsertStmt.clearBindings();
+      coverMissInsertStmt.bindLong(1, providerKey);
+      coverMissInsertStmt.bindString(2, isbn);
+      coverMissInsertStmt.bindLong(3, size);
+      coverMissInsertStmt.bindLong(4, checked);
+      coverMissInsertStmt.executeInsert();
+   }
+
+   public void delete(final int providerKey, final String isbn) {
+      db.delete(DataConstants.COVERMISS_TABLE, DataConstants.PROVIDER + " = ? and " + DataConstants.ISBN + " = ?",
+               new String[] { String.valueOf(providerKey), isbn });
+   }
+
+   /**
+    * Delete misses checked before the specified time (expired).
+    * 
+    * @param minChecked
+    */
+   public int deleteExpired(final long minChecked) {
+      return db.delete(DataConstants.COVERMISS_TABLE, DataConstants.CHECKED + " < ?", new String[] { String
+               .valueOf(minChecked) });
+   }
+}
@@ -0,0 +1,117 @@
+package com.totsp.bookworm.data.dao;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.totsp.bookworm.data.DataConstants;
+
+/**
+ * DAO for cached book data lookup results (see CachingBookDataSource).
+ * 
+ * This is a cache table, not an entity, so it does not implement DAO,
+ * it just records serialized results keyed by (provider, lookup key), with the time they were stored.
+ */
+public class LookupCacheDAO {
+
+   private final SQLiteStatement lookupCacheInsertStmt;
+   private static final String LOOKUPCACHE_INSERT =
+            "insert or replace into " + DataConstants.LOOKUPCACHE_TABLE + "(" + DataConstants.PROVIDER + ","
+                     + DataConstants.LOOKUPKEY + "," + DataConstants.LOOKUPVALUE + "," + DataConstants.CHECKED
+                     + ") values (?, ?, ?, ?)";
+
+   private SQLiteDatabase db;
+
+   public LookupCacheDAO(SQLiteDatabase db) {
+      this.db = db;
+
+      // statements
+      lookupCacheInsertStmt = db.compileStatement(LookupCacheDAO.LOOKUPCACHE_INSERT);
+   }
+
+   public static void onCreate(SQLiteDatabase db) {
+      StringBuilder sb = new StringBuilder();
+
+      // lookupcache table
+      sb.append("CREATE TABLE IF NOT EXISTS " + DataConstants.LOOKUPCACHE_TABLE + " (");
+      sb.append(DataConstants.LOOKUPCACHEID + " INTEGER PRIMARY KEY, ");
+      sb.append(DataConstants.PROVIDER + " TEXT, ");
+      sb.append(DataConstants.LOOKUPKEY + " TEXT, ");
+      sb.append(DataConstants.LOOKUPVALUE + " TEXT, ");
+      sb.append(DataConstants.CHECKED + " INTEGER");
+      sb.append(");");
+      db.execSQL(sb.toString());
+
+      // constraints (also the lookup index)
+      db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS uidxLookupCache ON " + DataConstants.LOOKUPCACHE_TABLE + "("
+               + DataConstants.PROVIDER + ", " + DataConstants.LOOKUPKEY + ")");
+      // for expiry/eviction
+      db.execSQL("CREATE INDEX IF NOT EXISTS idxLookupCacheChecked ON " + DataConstants.LOOKUPCACHE_TABLE + "("
+               + DataConstants.CHECKED + ")");
+   }
+
+   public static void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      // cache data only, nothing to migrate, table is new as of version 12
+      LookupCacheDAO.onCreate(db);
+   }
+
+   public void deleteAll() {
+      db.delete(DataConstants.LOOKUPCACHE_TABLE, null, null);
+   }
+
+   /**
+    * Return the cached value for the provider and key, if stored at or after the minChecked time, else null.
+    * 
+    * @param provider
+    * @param key
+    * @param minChecked
+    * @return
+    */
+   public String select(final String provider, final String key, final long minChecked) {
+      String result = null;
+      Cursor c =
+               db.query(DataConstants.LOOKUPCACHE_TABLE, new String[] { DataConstants.LOOKUPVALUE },
+                        DataConstants.PROVIDER + " = ? and " + DataConstants.LOOKUPKEY + " = ? and "
+                                 + DataConstants.CHECKED + " >= ?", new String[] { provider, key,
+                                 String.valueOf(minChecked) }, null, null, null, "1");
+      if (c.moveToFirst()) {
+         result = c.getString(0);
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return result;
+   }
+
+   // synchronized, the compiled statement is shared, and the cache is stored from several threads
+   // (interleaved binds could store one lookup's value under another's key)
+   public synchronized void insert(final String provider, final String key, final String value, final long checked) {
+      lookupCacheInsertStmt.clearBindings();
+      lookupCacheInsertStmt.bindString(1, provider);
+      lookupCacheInsertStmt.bindString(2, key);
+      lookupCacheInsertStmt.bindString(3, value);
+      lookupCacheInsertStmt.bindLong(4, checked);
+      lookupCacheInsertStmt.executeInsert();
+   }
+
+   /**
+    * Delete entries stored before the specified time (expired).
+    * 
+    * @param minChecked
+    */
+   public int deleteExpired(final long minChecked) {
+      return db.delete(DataConstants.LOOKUPCACHE_TABLE, DataConstants.CHECKED + " < ?", new String[] { String
+               .valueOf(minChecked) });
+   }
+
+   /**
+    * Delete all but the maxRows most recently stored entries.
+    * 
+    * @param maxRows
+    */
+   public int deleteOldest(final int maxRows) {
+      return db.delete(DataConstants.LOOKUPCACHE_TABLE, DataConstants.LOOKUPCACHEID + " not in (select "
+               + DataConstants.LOOKUPCACHEID + " from " + DataConstants.LOOKUPCACHE_TABLE + " order by "
+               + DataConstants.CHECKED + " desc limit " + maxRows + ")", null);
+   }
+}
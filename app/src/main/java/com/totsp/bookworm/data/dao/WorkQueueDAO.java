@@ -0,0 +1,177 @@
+package com.totsp.bookworm.data.dao;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.totsp.bookworm.data.DataConstants;
+import com.totsp.bookworm.model.WorkItem;
+
+import java.util.ArrayList;
+
+/**
+ * DAO for deferred work items (see WorkQueue).
+ *
+ * Items are unique by (type, key), so enqueueing the same work again is a no-op
+ * (other than raising its priority, if the new one is higher).
+ */
+public class WorkQueueDAO {
+
+   private static final String[] COLUMNS =
+            new String[] { DataConstants.WORKQUEUEID, DataConstants.WORKTYPE, DataConstants.WORKKEY,
+                     DataConstants.BOOKID, DataConstants.PRIORITY, DataConstants.ATTEMPTS, DataConstants.NEXTATTEMPT,
+                     DataConstants.CREATED };
+
+   private final SQLiteStatement workQueueInsertStmt;
+   private static final String WORKQUEUE_INSERT =
+            "insert or ignore into " + DataConstants.WORKQUEUE_TABLE + "(" + DataConstants.WORKTYPE + ","
+                     + DataConstants.WORKKEY + "," + DataConstants.BOOKID + "," + DataConstants.PRIORITY + ","
+                     + DataConstants.ATTEMPTS + "," + DataConstants.NEXTATTEMPT + "," + DataConstants.CREATED
+                     + ") values (?, ?, ?, ?, 0, ?, ?)";
+
+   private SQLiteDatabase db;
+
+   public WorkQueueDAO(SQLiteDatabase db) {
+      this.db = db;
+
+      // statements
+      workQueueInsertStmt = db.compileStatement(WorkQueueDAO.WORKQUEUE_INSERT);
+   }
+
+   public static void onCreate(SQLiteDatabase db) {
+      StringBuilder sb = new StringBuilder();
+
+      // workqueue table (no FK to book, lookups are for books not yet in the db)
+      sb.append("CREATE TABLE IF NOT EXISTS " + DataConstants.WORKQUEUE_TABLE + " (");
+      sb.append(DataConstants.WORKQUEUEID + " INTEGER PRIMARY KEY, ");
+      sb.append(DataConstants.WORKTYPE + " INTEGER, ");
+      sb.append(DataConstants.WORKKEY + " TEXT, ");
+      sb.append(DataConstants.BOOKID + " INTEGER, ");
+      sb.append(DataConstants.PRIORITY + " INTEGER, ");
+      sb.append(DataConstants.ATTEMPTS + " INTEGER, ");
+      sb.append(DataConstants.NEXTATTEMPT + " INTEGER, ");
+      sb.append(DataConstants.CREATED + " INTEGER");
+      sb.append(");");
+      db.execSQL(sb.toString());
+
+      // constraints (idempotent enqueue)
+      db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS uidxWorkQueue ON " + DataConstants.WORKQUEUE_TABLE + "("
+               + DataConstants.WORKTYPE + ", " + DataConstants.WORKKEY + ")");
+   }
+
+   public static void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      // table is new as of version 13
+      WorkQueueDAO.onCreate(db);
+   }
+
+   /**
+    * Insert item, if there is no item with the same type and key already, else raise the
+    * priority of the existing one (if lower).
+    *
+    * Synchronized, the compiled statement is shared, and items are enqueued from several threads
+    * (UI, WorkQueue drain, scan burst commit).
+    *
+    * @return true if a new item was inserted
+    */
+   public synchronized boolean insert(final int type, final String key, final long bookId, final int priority, final long now) {
+      workQueueInsertStmt.clearBindings();
+      workQueueInsertStmt.bindLong(1, type);
+      workQueueInsertStmt.bindString(2, key);
+      workQueueInsertStmt.bindLong(3, bookId);
+      workQueueInsertStmt.bindLong(4, priority);
+      workQueueInsertStmt.bindLong(5, now);
+      workQueueInsertStmt.bindLong(6, now);
+      if (workQueueInsertStmt.executeInsert() != -1) {
+         return true;
+      }
+      ContentValues values = new ContentValues();
+      values.put(DataConstants.PRIORITY, priority);
+      db.update(DataConstants.WORKQUEUE_TABLE, values, DataConstants.WORKTYPE + " = ? and " + DataConstants.WORKKEY
+               + " = ? and " + DataConstants.PRIORITY + " < ?", new String[] { String.valueOf(type), key,
+               String.valueOf(priority) });
+      return false;
+   }
+
+   /**
+    * Select items of type that are due (next attempt at or before now), highest priority first, then oldest first.
+    *
+    * @param type
+    * @param now
+    * @param limit
+    * @return
+    */
+   public ArrayList<WorkItem> selectReady(final int type, final long now, final int limit) {
+      ArrayList<WorkItem> items = new ArrayList<WorkItem>();
+      Cursor c =
+               db.query(DataConstants.WORKQUEUE_TABLE, WorkQueueDAO.COLUMNS, DataConstants.WORKTYPE + " = ? and "
+                        + DataConstants.NEXTATTEMPT + " <= ?", new String[] { String.valueOf(type),
+                        String.valueOf(now) }, null, null, DataConstants.PRIORITY + " desc, " + DataConstants.CREATED
+                        + " asc", String.valueOf(limit));
+      if (c.moveToFirst()) {
+         do {
+            WorkItem item = new WorkItem();
+            item.id = c.getLong(0);
+            item.type = c.getInt(1);
+            item.key = c.getString(2);
+            item.bookId = c.getLong(3);
+            item.priority = c.getInt(4);
+            item.attempts = c.getInt(5);
+            item.nextAttempt = c.getLong(6);
+            item.created = c.getLong(7);
+            items.add(item);
+         } while (c.moveToNext());
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return items;
+   }
+
+   public void updateAttempt(final long id, final int attempts, final long nextAttempt) {
+      ContentValues values = new ContentValues();
+      values.put(DataConstants.ATTEMPTS, attempts);
+      values.put(DataConstants.NEXTATTEMPT, nextAttempt);
+      db.update(DataConstants.WORKQUEUE_TABLE, values, DataConstants.WORKQUEUEID + " = ?", new String[] { String
+               .valueOf(id) });
+   }
+
+   public void delete(final long id) {
+      db.delete(DataConstants.WORKQUEUE_TABLE, DataConstants.WORKQUEUEID + " = ?", new String[] { String.valueOf(id) });
+   }
+
+   public void deleteAll() {
+      db.delete(DataConstants.WORKQUEUE_TABLE, null, null);
+   }
+
+   /**
+    * Get the earliest next attempt time of all items, or 0 if there are none.
+    *
+    * @return
+    */
+   public long selectNextAttempt() {
+      long result = 0L;
+      Cursor c =
+               db.rawQuery("select min(" + DataConstants.NEXTATTEMPT + ") from " + DataConstants.WORKQUEUE_TABLE,
+                        null);
+      if (c.moveToFirst() && !c.isNull(0)) {
+         result = c.getLong(0);
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return result;
+   }
+
+   public int count() {
+      int result = 0;
+      Cursor c = db.rawQuery("select count(*) from " + DataConstants.WORKQUEUE_TABLE, null);
+      if (c.moveToFirst()) {
+         result = c.getInt(0);
+      }
+      if (!c.isClosed()) {
+         c.close();
+      }
+      return result;
+   }
+}
@@ -32,6 +32,10 @@ public final class Book {
    // not stored in db or serialized
    // (optionally returned from parser, but not stored, image Ids are stored after processing)
    public transient Bitmap coverImage;
+   // encoded image data the coverImage was decoded from, if any (so it can be stored without re-encoding)
+   public transient byte[] coverImageData;
+   // cover image link supplied by the data source with the book data, if any
+   public transient String coverImageUrl;
 
    public Book() {
       authors = new ArrayList<Author>();
@@ -0,0 +1,28 @@
+package com.totsp.bookworm.model;
+
+/**
+ * Deferred work (a book lookup or cover fetch that could not be done at the time, 
+ * usually because the network was not available), see WorkQueue.
+ */
+public final class WorkItem {
+
+   // NOTE - no accessors/mutators by design, Android optimization
+
+   public long id;
+   public int type;
+   // ISBN for lookups, book id for cover fetches
+   public String key;
+   public long bookId;
+   public int priority;
+   public int attempts;
+   public long nextAttempt;
+   public long created;
+
+   public WorkItem() {
+   }
+
+   @Override
+   public String toString() {
+      return "WorkItem- type:" + type + " key:" + key + " priority:" + priority + " attempts:" + attempts;
+   }
+}
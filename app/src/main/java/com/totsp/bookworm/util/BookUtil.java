@@ -2,9 +2,12 @@ package com.totsp.bookworm.util;
 
 import com.totsp.bookworm.model.Author;
 import com.totsp.bookworm.model.Book;
+import com.totsp.bookworm.model.BookUserData;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 
 public final class BookUtil {
@@ -59,4 +62,108 @@ public final class BookUtil {
       }
       return false;
    }
+
+   /**
+    * Record the identity keys of book in keys (ISBN-13 if it has one, and normalized title plus authors),
+    * return false if any of them was already there (book is a dupe of one seen before).
+    * 
+    * This is the hashed equivalent of comparing with each book seen before using areBooksEffectiveDupes
+    * (linear rather than quadratic for a list of books), and it also catches the same ISBN under a
+    * slightly different title.
+    * 
+    * @param keys
+    * @param book
+    * @return
+    */
+   public static boolean addIdentityKeys(final HashSet<String> keys, final Book book) {
+      if (book == null) {
+         return false;
+      }
+      // canonical ISBN-13, so a book with only its ISBN-10 matches one with only its ISBN-13
+      String isbnKey = null;
+      String isbn13 = IsbnUtil.toIsbn13(book.isbn13);
+      if (isbn13 == null) {
+         isbn13 = IsbnUtil.toIsbn13(book.isbn10);
+      }
+      if (isbn13 != null) {
+         isbnKey = "isbn:" + isbn13;
+      }
+      String titleKey = BookUtil.getTitleAuthorsKey(book);
+      if (((isbnKey != null) && keys.contains(isbnKey)) || keys.contains(titleKey)) {
+         return false;
+      }
+      if (isbnKey != null) {
+         keys.add(isbnKey);
+      }
+      keys.add(titleKey);
+      return true;
+   }
+
+   // normalized title plus (sorted, without sorting the book's own list) author names
+   static String getTitleAuthorsKey(final Book book) {
+      StringBuilder sb = new StringBuilder("ta:");
+      sb.append(BookUtil.normalize(book.title));
+      if (book.authors != null) {
+         String[] names = new String[book.authors.size()];
+         for (int i = 0; i < names.length; i++) {
+            Author a = book.authors.get(i);
+            names[i] = BookUtil.normalize(a != null ? a.name : null);
+         }
+         Arrays.sort(names);
+         for (int i = 0; i < names.length; i++) {
+            sb.append('|').append(names[i]);
+         }
+      }
+      return sb.toString();
+   }
+
+   private static String normalize(final String value) {
+      if (value == null) {
+         return "";
+      }
+      return value.trim().toLowerCase().replaceAll("\\s+", " ");
+   }
+
+   /**
+    * Copy of the book (ids, book data and user data, the authors and user data are copied too), with or
+    * without the (transient) cover image bitmap and data. Without, for holding on to books longer term
+    * without pinning their images. Images are never modified, so a copy with images shares them.
+    * 
+    * @param book
+    * @param withImages
+    * @return
+    */
+   public static Book copy(final Book book, final boolean withImages) {
+      if (book == null) {
+         return null;
+      }
+      Book copy = new Book();
+      copy.id = book.id;
+      copy.isbn10 = book.isbn10;
+      copy.isbn13 = book.isbn13;
+      copy.title = book.title;
+      copy.subTitle = book.subTitle;
+      copy.publisher = book.publisher;
+      copy.description = book.description;
+      copy.format = book.format;
+      copy.subject = book.subject;
+      copy.datePubStamp = book.datePubStamp;
+      for (Author author : book.authors) {
+         copy.authors.add(new Author(author.name));
+      }
+      if (book.bookUserData != null) {
+         BookUserData userData = book.bookUserData;
+         copy.bookUserData =
+                  new BookUserData(userData.bookId, userData.rating, userData.read, userData.blurb);
+         copy.bookUserData.id = userData.id;
+      } else {
+         copy.bookUserData = null;
+      }
+      if (withImages) {
+         copy.coverImage = book.coverImage;
+         copy.coverImageData = book.coverImageData;
+      }
+      copy.coverImageUrl = book.coverImageUrl;
+      return copy;
+   }
 }
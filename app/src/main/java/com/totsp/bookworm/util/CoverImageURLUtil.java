@@ -2,14 +2,17 @@ package com.totsp.bookworm.util;
 
 public final class CoverImageURLUtil {
 
-   private static final String AZ_URL_PREFIX = "http://images.amazon.com/images/P/";
+   private static final String AZ_HOST = "images.amazon.com";
+   private static final String AZ_URL_PREFIX = "http://" + CoverImageURLUtil.AZ_HOST + "/images/P/";
    private static final String AZ_URL_SUFFIX = ".01";
-   private static final String OL_URL_PREFIX = "http://covers.openlibrary.org/b/isbn/";
+   private static final String AZ_URL_SUFFIX_SMALL = ".01._SCTHUMBZZZ_.jpg";
+   private static final String AZ_URL_SUFFIX_LARGE = ".01._SCLZZZZZZZ_.jpg";
+   private static final String OL_HOST = "covers.openlibrary.org";
+   private static final String OL_URL_PREFIX = "http://" + CoverImageURLUtil.OL_HOST + "/b/isbn/";
    private static final String OL_URL_SUFFIX = ".jpg";
-   //private static final String SMALL = "-S";
+   private static final String SMALL = "-S";
    private static final String MED = "-M";
-
-   //private static final String LARGE = "-L";
+   private static final String LARGE = "-L";
 
    // Because google books seems to not allow cover links unauthenticated, use another source.
    // OpenLibrary seems great - http://openlibrary.org/ - make them an Android app too ;).
@@ -18,14 +21,66 @@ public final class CoverImageURLUtil {
    }
 
    public static final String getCoverUrlMedium(final String isbn, final int providerKey) {
+      return CoverImageURLUtil.getCoverUrl(isbn, providerKey, CoverImageUtil.COVER_IMAGE_SIZE_MEDIUM);
+   }
+
+   /**
+    * Get cover URL for the provider and size (one of the CoverImageUtil.COVER_IMAGE_SIZE_* constants).
+    * 
+    * @param isbn
+    * @param providerKey
+    * @param size
+    * @return
+    */
+   public static final String getCoverUrl(final String isbn, final int providerKey, final int size) {
       switch (providerKey) {
          case CoverImageUtil.COVER_IMAGE_PROVIDER_AMAZON:
-            return CoverImageURLUtil.AZ_URL_PREFIX + isbn + CoverImageURLUtil.AZ_URL_SUFFIX;
+            return CoverImageURLUtil.AZ_URL_PREFIX + isbn + CoverImageURLUtil.getAmazonSuffix(size);
          case CoverImageUtil.COVER_IMAGE_PROVIDER_OPENLIBRARY:
-            return CoverImageURLUtil.OL_URL_PREFIX + isbn + CoverImageURLUtil.MED + CoverImageURLUtil.OL_URL_SUFFIX;
+            return CoverImageURLUtil.OL_URL_PREFIX + isbn + CoverImageURLUtil.getOpenLibrarySize(size)
+                     + CoverImageURLUtil.OL_URL_SUFFIX;
          default:
             return null;
       }
    }
 
+   /**
+    * Get the host the provider's cover URLs are on (null if unknown).
+    * 
+    * @param providerKey
+    * @return
+    */
+   public static final String getCoverHost(final int providerKey) {
+      switch (providerKey) {
+         case CoverImageUtil.COVER_IMAGE_PROVIDER_AMAZON:
+            return CoverImageURLUtil.AZ_HOST;
+         case CoverImageUtil.COVER_IMAGE_PROVIDER_OPENLIBRARY:
+            return CoverImageURLUtil.OL_HOST;
+         default:
+            return null;
+      }
+   }
+
+   private static String getAmazonSuffix(final int size) {
+      switch (size) {
+         case CoverImageUtil.COVER_IMAGE_SIZE_SMALL:
+            return CoverImageURLUtil.AZ_URL_SUFFIX_SMALL;
+         case CoverImageUtil.COVER_IMAGE_SIZE_LARGE:
+            return CoverImageURLUtil.AZ_URL_SUFFIX_LARGE;
+         default:
+            return CoverImageURLUtil.AZ_URL_SUFFIX;
+      }
+   }
+
+   private static String getOpenLibrarySize(final int size) {
+      switch (size) {
+         case CoverImageUtil.COVER_IMAGE_SIZE_SMALL:
+            return CoverImageURLUtil.SMALL;
+         case CoverImageUtil.COVER_IMAGE_SIZE_LARGE:
+            return CoverImageURLUtil.LARGE;
+         default:
+            return CoverImageURLUtil.MED;
+      }
+   }
+
 }
@@ -2,16 +2,10 @@ package com.totsp.bookworm.util;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.util.Log;
 
-import com.totsp.bookworm.Constants;
-import com.totsp.bookworm.data.ImageManager;
+import com.totsp.bookworm.data.HttpHelper;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.URLConnection;
 
 public final class CoverImageUtil {
 
@@ -20,47 +14,73 @@ public final class CoverImageUtil {
    public static final int COVER_IMAGE_PROVIDER_OPENLIBRARY = 2;
    public static final int COVER_IMAGE_PROVIDER_AMAZON = 3;
 
+   // small is used for thumbnails (list), medium for full covers (detail/form), large is not used yet
+   public static final int COVER_IMAGE_SIZE_SMALL = 1;
+   public static final int COVER_IMAGE_SIZE_MEDIUM = 2;
+   public static final int COVER_IMAGE_SIZE_LARGE = 3;
+
+   private static final int TIMEOUT_MILLIS = 6000;
+
+   private static final HttpHelper httpHelper = new HttpHelper();
+
    private CoverImageUtil() {
    }
 
-   // FUTURE - pass in coverImageProvider key and use specified provider
-   // right now hard coded to us OL first and fall through to OZ
-   public static Bitmap getCoverImageFromNetwork(final String isbn, final int providerKey) {
-      Bitmap coverImageBitmap = null;
-      String imageUrl = CoverImageURLUtil.getCoverUrlMedium(isbn, providerKey);
+   /**
+    * Retrieve encoded (as served, typically JPEG) cover image data, return null if the provider 
+    * does not have a (valid) image, and throw IOException if the provider could not be reached 
+    * (so callers can tell a miss from an error).
+    * 
+    * The data is NOT decoded here, only the bounds are checked, so that it can be stored 
+    * as is when it's already small enough (see ImageManager.storeCoverImageData).
+    * 
+    * @param isbn
+    * @param providerKey
+    * @param size
+    * @return
+    * @throws IOException
+    */
+   public static byte[] fetchCoverImageData(final String isbn, final int providerKey, final int size)
+            throws IOException {
+      return CoverImageUtil.fetchCoverImageData(CoverImageURLUtil.getCoverUrl(isbn, providerKey, size));
+   }
 
-      // TODO implement via HttpHelper and not URLConnection
+   /**
+    * Retrieve encoded cover image data from imageUrl (a provider supplied link, see Book.coverImageUrl),
+    * same as fetchCoverImageData by ISBN, null for a miss, IOException for an error.
+    * 
+    * @param imageUrl
+    * @return
+    * @throws IOException
+    */
+   public static byte[] fetchCoverImageData(final String imageUrl) throws IOException {
+      byte[] data = null;
       // NOTE - make sure this is called outside UI Thread
-      BufferedInputStream bis = null;
+      // (uses the shared HttpHelper connection pool, and 404 is a miss, not an error)
       if (imageUrl != null && !imageUrl.equals("")) {
-         try {
-            URL url = new URL(imageUrl);
-            URLConnection conn = url.openConnection();
-            conn.setConnectTimeout(6000);
-            conn.setReadTimeout(6000);
-            conn.connect();
-            bis = new BufferedInputStream(conn.getInputStream(), 8192);            
-            coverImageBitmap = BitmapFactory.decodeStream(bis, null, ImageManager.options);
-            if ((coverImageBitmap != null) && (coverImageBitmap.getWidth() < 10)) {
-               coverImageBitmap = null;
-            }
-         } catch (IOException e) {
-            if (e instanceof SocketTimeoutException) {
-               Log.i(Constants.LOG_TAG, "SocketTimeoutException retrieving cover image for URL:" + imageUrl);
-            } else {
-               Log.e(Constants.LOG_TAG, " ", e);
-            }
-         } finally {
-            if (bis != null) {
-               try {
-                  bis.close();
-               } catch (IOException e) {
-                  // swallow
-               }
-            }
+         data = CoverImageUtil.httpHelper.performGetBytes(imageUrl, CoverImageUtil.TIMEOUT_MILLIS);
+         if (!CoverImageUtil.isValidCoverImage(data)) {
+            data = null;
          }
       }
-      return coverImageBitmap;
+      return data;
+   }
+
+   /**
+    * Check that data decodes as an image of some real size (some providers return 1x1 
+    * placeholders rather than 404 when they don't have an image). Only bounds are decoded.
+    * 
+    * @param data
+    * @return
+    */
+   public static boolean isValidCoverImage(final byte[] data) {
+      if ((data == null) || (data.length == 0)) {
+         return false;
+      }
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+      return bounds.outWidth >= 10;
    }
 
    // taken from apps-for-android examples (not sure if this is ideal or not) 
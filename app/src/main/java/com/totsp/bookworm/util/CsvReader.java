@@ -0,0 +1,119 @@
+package com.totsp.bookworm.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Single pass CSV (RFC 4180) tokenizer, reads records from a Reader through its own char buffer.
+ *
+ * Fields may be quoted, and quoted fields may contain commas, newlines, and quotes (doubled).
+ * Records end with CRLF, LF, or CR. Parsing is lenient, a quote inside an unquoted field is kept as is,
+ * and anything after a closing quote (up to the next comma) is appended to the field.
+ */
+public class CsvReader {
+
+   private static final int BUFFER_SIZE = 8192;
+   private static final char BOM = '\uFEFF';
+
+   private final Reader in;
+   private final char[] buffer = new char[CsvReader.BUFFER_SIZE];
+   // reused for every field, one String is created per field
+   private final StringBuilder field = new StringBuilder(128);
+   private int pos;
+   private int limit;
+   private boolean started;
+   private int recordNumber;
+
+   public CsvReader(final Reader in) {
+      this.in = in;
+   }
+
+   /**
+    * Read next record into fields (cleared first).
+    *
+    * @param fields
+    * @return false if there are no more records
+    * @throws IOException
+    */
+   public boolean readRecord(final ArrayList<String> fields) throws IOException {
+      fields.clear();
+      if (!started) {
+         started = true;
+         // skip byte order mark (files saved by spreadsheets often have one)
+         if (fill() && (buffer[pos] == CsvReader.BOM)) {
+            pos++;
+         }
+      }
+      if ((pos >= limit) && !fill()) {
+         return false;
+      }
+
+      field.setLength(0);
+      boolean quoted = false;
+      boolean inQuotes = false;
+      while (true) {
+         if ((pos >= limit) && !fill()) {
+            // end of input ends the record (and an unterminated quoted field)
+            fields.add(field.toString());
+            break;
+         }
+         char c = buffer[pos++];
+         if (inQuotes) {
+            if (c == '"') {
+               if (((pos < limit) || fill()) && (buffer[pos] == '"')) {
+                  field.append('"');
+                  pos++;
+               } else {
+                  inQuotes = false;
+               }
+            } else {
+               field.append(c);
+            }
+         } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+            quoted = false;
+         } else if ((c == '\n') || (c == '\r')) {
+            if ((c == '\r') && ((pos < limit) || fill()) && (buffer[pos] == '\n')) {
+               pos++;
+            }
+            fields.add(field.toString());
+            break;
+         } else if ((c == '"') && !quoted && (field.length() == 0)) {
+            quoted = true;
+            inQuotes = true;
+         } else {
+            field.append(c);
+         }
+      }
+      recordNumber++;
+      return true;
+   }
+
+   /**
+    * Get number of records read so far (the number of the last record read, including a header).
+    *
+    * @return
+    */
+   public int getRecordNumber() {
+      return recordNumber;
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+   private boolean fill() throws IOException {
+      if (pos < limit) {
+         return true;
+      }
+      int read = in.read(buffer, 0, buffer.length);
+      while (read == 0) {
+         read = in.read(buffer, 0, buffer.length);
+      }
+      pos = 0;
+      limit = read > 0 ? read : 0;
+      return limit > 0;
+   }
+}
@@ -0,0 +1,169 @@
+package com.totsp.bookworm.util;
+
+/**
+ * ISBN normalization and validation. Every ISBN form (ISBN-10, ISBN-13/Bookland EAN, with or
+ * without separators, or an "ISBN" prefix) is converted to one canonical form, the ISBN-13 digits,
+ * and check digits are verified, so invalid codes can be rejected before any lookup, and the same
+ * book is the same key (lookup cache, dedupe, local mirror) whichever form it came in as.
+ */
+public final class IsbnUtil {
+
+   private IsbnUtil() {
+   }
+
+   /**
+    * Get canonical ISBN-13 for code (ISBN-10 or ISBN-13), or null if code is not a valid ISBN
+    * (wrong length, bad check digit, or an EAN-13 that is not Bookland, 978/979).
+    *
+    * @param code
+    * @return
+    */
+   public static String toIsbn13(final String code) {
+      String digits = IsbnUtil.clean(code);
+      if (digits == null) {
+         return null;
+      }
+      if (digits.length() == 10) {
+         if (!IsbnUtil.isValidIsbn10(digits)) {
+            return null;
+         }
+         String body = "978" + digits.substring(0, 9);
+         return body + IsbnUtil.getEan13CheckDigit(body);
+      } else if ((digits.length() == 13) && (digits.startsWith("978") || digits.startsWith("979"))
+               && IsbnUtil.isValidEan13(digits)) {
+         return digits;
+      }
+      return null;
+   }
+
+   /**
+    * Get ISBN-10 for code (ISBN-10 or ISBN-13), or null if code is not a valid ISBN, or has no
+    * ISBN-10 form (979 prefix).
+    *
+    * @param code
+    * @return
+    */
+   public static String toIsbn10(final String code) {
+      String isbn13 = IsbnUtil.toIsbn13(code);
+      if ((isbn13 == null) || !isbn13.startsWith("978")) {
+         return null;
+      }
+      String body = isbn13.substring(3, 12);
+      return body + IsbnUtil.getIsbn10CheckDigit(body);
+   }
+
+   public static boolean isValid(final String code) {
+      return IsbnUtil.toIsbn13(code) != null;
+   }
+
+   /**
+    * Whether code is shaped like an ISBN (10 or 13 digits, and separators), valid or not, used to tell
+    * a mistyped or misread ISBN (reject) from a search term (title, etc).
+    *
+    * @param code
+    * @return
+    */
+   public static boolean looksLikeIsbn(final String code) {
+      String digits = IsbnUtil.clean(code);
+      return (digits != null) && ((digits.length() == 10) || (digits.length() == 13));
+   }
+
+   /**
+    * Get canonical ISBN-13 for a UPC-A scan, or null if no valid ISBN can be derived.
+    *
+    * Some books only carry a UPC, and there is no general mapping from UPC to ISBN, but for some the ISBN-10
+    * is embedded between a leading and trailing zero (for example 008819265580), that is only used if its
+    * check digit is valid.
+    *
+    * @param upc
+    * @return
+    */
+   public static String fromUpc(final String upc) {
+      String digits = IsbnUtil.clean(upc);
+      if (digits == null) {
+         return null;
+      }
+      if ((digits.length() == 12) && digits.startsWith("0") && digits.endsWith("0")) {
+         return IsbnUtil.toIsbn13(digits.substring(1, 11));
+      }
+      // also covers a Bookland EAN reported as UPC
+      return IsbnUtil.toIsbn13(digits);
+   }
+
+   /**
+    * Strip code down to digits (and X check digit, upper case), or null if code contains anything other than
+    * digits, separators (dashes and spaces), and an optional leading "ISBN", "ISBN:", "ISBN-13:", etc.
+    *
+    * @param code
+    * @return
+    */
+   public static String clean(final String code) {
+      if (code == null) {
+         return null;
+      }
+      String value = code.trim();
+      if ((value.length() > 4) && value.substring(0, 4).equalsIgnoreCase("ISBN")) {
+         value = value.substring(4);
+         if (value.startsWith("-10") || value.startsWith("-13")) {
+            value = value.substring(3);
+         }
+         if (value.startsWith(":")) {
+            value = value.substring(1);
+         }
+      }
+      StringBuilder sb = new StringBuilder(13);
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if ((c >= '0') && (c <= '9')) {
+            sb.append(c);
+         } else if ((c == 'x') || (c == 'X')) {
+            sb.append('X');
+         } else if ((c != '-') && (c != ' ')) {
+            return null;
+         }
+      }
+      // X is only valid as the ISBN-10 check digit
+      int x = sb.indexOf("X");
+      if ((x != -1) && ((x != sb.length() - 1) || (sb.length() != 10))) {
+         return null;
+      }
+      return sb.length() > 0 ? sb.toString() : null;
+   }
+
+   // weights 10 down to 1, sum must be divisible by 11 (X is 10)
+   private static boolean isValidIsbn10(final String digits) {
+      int sum = 0;
+      for (int i = 0; i < 10; i++) {
+         char c = digits.charAt(i);
+         int d = c == 'X' ? 10 : c - '0';
+         sum += (10 - i) * d;
+      }
+      return (sum % 11) == 0;
+   }
+
+   private static char getIsbn10CheckDigit(final String body) {
+      int sum = 0;
+      for (int i = 0; i < 9; i++) {
+         sum += (10 - i) * (body.charAt(i) - '0');
+      }
+      int check = (11 - (sum % 11)) % 11;
+      return check == 10 ? 'X' : (char) ('0' + check);
+   }
+
+   private static boolean isValidEan13(final String digits) {
+      if (digits.indexOf('X') != -1) {
+         return false;
+      }
+      return IsbnUtil.getEan13CheckDigit(digits.substring(0, 12)) == digits.charAt(12);
+   }
+
+   // weights alternate 1 and 3
+   private static char getEan13CheckDigit(final String body) {
+      int sum = 0;
+      for (int i = 0; i < 12; i++) {
+         int d = body.charAt(i) - '0';
+         sum += (i % 2) == 0 ? d : 3 * d;
+      }
+      return (char) ('0' + ((10 - (sum % 10)) % 10));
+   }
+}
@@ -0,0 +1,465 @@
+package com.totsp.bookworm.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Minimal streaming (pull) JSON tokenizer, reads one token at a time from a Reader,
+ * so a large response can be processed without holding all of it in memory
+ * (android.util.JsonReader is not available until API 11).
+ *
+ * Values of interest can be read into org.json objects one at a time (see readObject/readArray),
+ * or as plain Strings (see readString/readStrings), and everything else skipped (see skipValue).
+ */
+public class JsonStreamReader {
+
+   public static final int BEGIN_OBJECT = 1;
+   public static final int END_OBJECT = 2;
+   public static final int BEGIN_ARRAY = 3;
+   public static final int END_ARRAY = 4;
+   public static final int NAME = 5;
+   public static final int STRING = 6;
+   public static final int NUMBER = 7;
+   public static final int BOOLEAN = 8;
+   public static final int NULL = 9;
+   public static final int END_DOCUMENT = 10;
+
+   private static final int NONE = 0;
+
+   // scopes
+   private static final int EMPTY_DOCUMENT = 1;
+   private static final int NONEMPTY_DOCUMENT = 2;
+   private static final int EMPTY_OBJECT = 3;
+   private static final int DANGLING_NAME = 4;
+   private static final int NONEMPTY_OBJECT = 5;
+   private static final int EMPTY_ARRAY = 6;
+   private static final int NONEMPTY_ARRAY = 7;
+
+   private final Reader in;
+   private final char[] buffer = new char[4096];
+   private int pos;
+   private int limit;
+
+   private int[] stack = new int[16];
+   private int stackSize;
+
+   private int peeked = JsonStreamReader.NONE;
+   private final StringBuilder sb = new StringBuilder();
+
+   public JsonStreamReader(final Reader in) {
+      this.in = in;
+      stack[stackSize++] = JsonStreamReader.EMPTY_DOCUMENT;
+   }
+
+   /**
+    * Get the type of the next token, without consuming it.
+    *
+    * @return
+    * @throws IOException
+    */
+   public int peek() throws IOException {
+      if (peeked != JsonStreamReader.NONE) {
+         return peeked;
+      }
+
+      int scope = stack[stackSize - 1];
+      int c = 0;
+      switch (scope) {
+         case EMPTY_ARRAY:
+            stack[stackSize - 1] = JsonStreamReader.NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (c == ']') {
+               return peeked = JsonStreamReader.END_ARRAY;
+            }
+            if (c != -1) {
+               pos--;
+            }
+            break;
+         case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']') {
+               return peeked = JsonStreamReader.END_ARRAY;
+            } else if (c != ',') {
+               throw syntaxError("Expected , or ] in array");
+            }
+            break;
+         case EMPTY_OBJECT:
+         case NONEMPTY_OBJECT:
+            stack[stackSize - 1] = JsonStreamReader.DANGLING_NAME;
+            c = nextNonWhitespace();
+            if (c == '}') {
+               return peeked = JsonStreamReader.END_OBJECT;
+            }
+            if (scope == JsonStreamReader.NONEMPTY_OBJECT) {
+               if (c != ',') {
+                  throw syntaxError("Expected , or } in object");
+               }
+               c = nextNonWhitespace();
+            }
+            if (c != '"') {
+               throw syntaxError("Expected name");
+            }
+            return peeked = JsonStreamReader.NAME;
+         case DANGLING_NAME:
+            stack[stackSize - 1] = JsonStreamReader.NONEMPTY_OBJECT;
+            c = nextNonWhitespace();
+            if (c != ':') {
+               throw syntaxError("Expected :");
+            }
+            break;
+         case EMPTY_DOCUMENT:
+            stack[stackSize - 1] = JsonStreamReader.NONEMPTY_DOCUMENT;
+            break;
+         case NONEMPTY_DOCUMENT:
+            c = nextNonWhitespace();
+            if (c == -1) {
+               return peeked = JsonStreamReader.END_DOCUMENT;
+            }
+            throw syntaxError("Expected end of document");
+         default:
+            throw new IllegalStateException("Unknown scope " + scope);
+      }
+
+      // a value
+      c = nextNonWhitespace();
+      switch (c) {
+         case '{':
+            return peeked = JsonStreamReader.BEGIN_OBJECT;
+         case '[':
+            return peeked = JsonStreamReader.BEGIN_ARRAY;
+         case '"':
+            return peeked = JsonStreamReader.STRING;
+         case 't':
+         case 'f':
+            pos--;
+            return peeked = JsonStreamReader.BOOLEAN;
+         case 'n':
+            pos--;
+            return peeked = JsonStreamReader.NULL;
+         case -1:
+            throw syntaxError("Unexpected end of document");
+         default:
+            if ((c == '-') || ((c >= '0') && (c <= '9'))) {
+               pos--;
+               return peeked = JsonStreamReader.NUMBER;
+            }
+            throw syntaxError("Unexpected character " + (char) c);
+      }
+   }
+
+   public boolean hasNext() throws IOException {
+      int p = peek();
+      return (p != JsonStreamReader.END_OBJECT) && (p != JsonStreamReader.END_ARRAY)
+               && (p != JsonStreamReader.END_DOCUMENT);
+   }
+
+   public void beginObject() throws IOException {
+      expect(JsonStreamReader.BEGIN_OBJECT);
+      push(JsonStreamReader.EMPTY_OBJECT);
+   }
+
+   public void endObject() throws IOException {
+      expect(JsonStreamReader.END_OBJECT);
+      stackSize--;
+   }
+
+   public void beginArray() throws IOException {
+      expect(JsonStreamReader.BEGIN_ARRAY);
+      push(JsonStreamReader.EMPTY_ARRAY);
+   }
+
+   public void endArray() throws IOException {
+      expect(JsonStreamReader.END_ARRAY);
+      stackSize--;
+   }
+
+   public String nextName() throws IOException {
+      expect(JsonStreamReader.NAME);
+      return readString();
+   }
+
+   /**
+    * Get the next value as a String (numbers and booleans are returned as their literal text,
+    * and null as null).
+    *
+    * @return
+    * @throws IOException
+    */
+   public String nextString() throws IOException {
+      int p = peek();
+      peeked = JsonStreamReader.NONE;
+      switch (p) {
+         case STRING:
+            return readString();
+         case NUMBER:
+         case BOOLEAN:
+            return readLiteral();
+         case NULL:
+            readLiteral();
+            return null;
+         default:
+            throw syntaxError("Expected a value but was " + p);
+      }
+   }
+
+   /**
+    * Skip the next value (including all nested values, if it's an object or array).
+    *
+    * @throws IOException
+    */
+   public void skipValue() throws IOException {
+      int depth = 0;
+      do {
+         switch (peek()) {
+            case BEGIN_OBJECT:
+               beginObject();
+               depth++;
+               break;
+            case BEGIN_ARRAY:
+               beginArray();
+               depth++;
+               break;
+            case END_OBJECT:
+               endObject();
+               depth--;
+               break;
+            case END_ARRAY:
+               endArray();
+               depth--;
+               break;
+            case NAME:
+               nextName();
+               break;
+            default:
+               nextString();
+         }
+      } while (depth > 0);
+   }
+
+   /**
+    * Read the next value as a String if it's a scalar (see nextString), and skip it and return defaultValue
+    * if it's an object or array (or null).
+    *
+    * @param defaultValue
+    * @return
+    * @throws IOException
+    */
+   public String readString(final String defaultValue) throws IOException {
+      int p = peek();
+      if ((p == BEGIN_OBJECT) || (p == BEGIN_ARRAY)) {
+         skipValue();
+         return defaultValue;
+      }
+      String value = nextString();
+      return value != null ? value : defaultValue;
+   }
+
+   /**
+    * Read the next value, an array of scalars (or a single scalar), into values (objects, arrays
+    * and nulls are skipped).
+    *
+    * @param values
+    * @throws IOException
+    */
+   public void readStrings(final ArrayList<String> values) throws IOException {
+      if (peek() != BEGIN_ARRAY) {
+         String value = readString(null);
+         if (value != null) {
+            values.add(value);
+         }
+         return;
+      }
+      beginArray();
+      while (hasNext()) {
+         String value = readString(null);
+         if (value != null) {
+            values.add(value);
+         }
+      }
+      endArray();
+   }
+
+   /**
+    * Read the next value, which must be an object, fully into a JSONObject.
+    *
+    * @return
+    * @throws IOException
+    * @throws JSONException
+    */
+   public JSONObject readObject() throws IOException, JSONException {
+      JSONObject obj = new JSONObject();
+      beginObject();
+      while (hasNext()) {
+         String name = nextName();
+         obj.put(name, readValue());
+      }
+      endObject();
+      return obj;
+   }
+
+   /**
+    * Read the next value, which must be an array, fully into a JSONArray.
+    *
+    * @return
+    * @throws IOException
+    * @throws JSONException
+    */
+   public JSONArray readArray() throws IOException, JSONException {
+      JSONArray array = new JSONArray();
+      beginArray();
+      while (hasNext()) {
+         array.put(readValue());
+      }
+      endArray();
+      return array;
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+   private Object readValue() throws IOException, JSONException {
+      switch (peek()) {
+         case BEGIN_OBJECT:
+            return readObject();
+         case BEGIN_ARRAY:
+            return readArray();
+         case NUMBER:
+            String number = nextString();
+            try {
+               return Long.valueOf(number);
+            } catch (NumberFormatException e) {
+               return Double.valueOf(number);
+            }
+         case BOOLEAN:
+            return Boolean.valueOf(nextString());
+         case NULL:
+            nextString();
+            return JSONObject.NULL;
+         default:
+            return nextString();
+      }
+   }
+
+   private void expect(final int type) throws IOException {
+      int p = peek();
+      if (p != type) {
+         throw syntaxError("Expected token " + type + " but was " + p);
+      }
+      peeked = JsonStreamReader.NONE;
+   }
+
+   private void push(final int scope) {
+      if (stackSize == stack.length) {
+         int[] newStack = new int[stackSize * 2];
+         System.arraycopy(stack, 0, newStack, 0, stackSize);
+         stack = newStack;
+      }
+      stack[stackSize++] = scope;
+   }
+
+   // opening quote has already been consumed
+   private String readString() throws IOException {
+      sb.setLength(0);
+      while (true) {
+         int c = read();
+         if (c == '"') {
+            return sb.toString();
+         } else if (c == '\\') {
+            c = read();
+            switch (c) {
+               case 'b':
+                  sb.append('\b');
+                  break;
+               case 'f':
+                  sb.append('\f');
+                  break;
+               case 'n':
+                  sb.append('\n');
+                  break;
+               case 'r':
+                  sb.append('\r');
+                  break;
+               case 't':
+                  sb.append('\t');
+                  break;
+               case 'u':
+                  int value = 0;
+                  for (int i = 0; i < 4; i++) {
+                     int digit = Character.digit(read(), 16);
+                     if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                     }
+                     value = (value << 4) + digit;
+                  }
+                  sb.append((char) value);
+                  break;
+               case -1:
+                  throw syntaxError("Unterminated string");
+               default:
+                  // ", \, / (and anything else, leniently)
+                  sb.append((char) c);
+            }
+         } else if (c == -1) {
+            throw syntaxError("Unterminated string");
+         } else {
+            sb.append((char) c);
+         }
+      }
+   }
+
+   private String readLiteral() throws IOException {
+      sb.setLength(0);
+      while (true) {
+         int c = read();
+         switch (c) {
+            case -1:
+               return sb.toString();
+            case ',':
+            case ':':
+            case ']':
+            case '}':
+            case ' ':
+            case '\t':
+            case '\n':
+            case '\r':
+               pos--;
+               return sb.toString();
+            default:
+               sb.append((char) c);
+         }
+      }
+   }
+
+   private int nextNonWhitespace() throws IOException {
+      while (true) {
+         int c = read();
+         if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) {
+            return c;
+         }
+      }
+   }
+
+   // NOTE - after a char is read pos is always > 0, so the last char can be pushed back with pos--
+   // (except at EOF, where -1 is returned and pos is not advanced)
+   private int read() throws IOException {
+      if (pos == limit) {
+         int count = in.read(buffer, 0, buffer.length);
+         if (count <= 0) {
+            return -1;
+         }
+         pos = 0;
+         limit = count;
+      }
+      return buffer[pos++];
+   }
+
+   private IOException syntaxError(final String message) {
+      return new IOException("Malformed JSON: " + message);
+   }
+}
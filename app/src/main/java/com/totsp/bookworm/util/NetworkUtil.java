@@ -20,10 +20,29 @@ import java.util.Enumeration;
  */
 public final class NetworkUtil {
 
+   // enumerating interfaces is slow-ish, and the address only changes with connectivity
+   // (cached value is invalidated by a CONNECTIVITY_ACTION receiver, see BookWormApplication)
+   private static String cachedIpAddress;
+   private static boolean ipAddressCached;
+
    private NetworkUtil() {
    }
 
-   public static String getIpAddress() {
+   public static synchronized String getIpAddress() {
+      if (!NetworkUtil.ipAddressCached) {
+         NetworkUtil.cachedIpAddress = NetworkUtil.findIpAddress();
+         // don't cache "no address", could just be too early after a connectivity change
+         NetworkUtil.ipAddressCached = (NetworkUtil.cachedIpAddress != null);
+      }
+      return NetworkUtil.cachedIpAddress;
+   }
+
+   public static synchronized void invalidateIpAddress() {
+      NetworkUtil.cachedIpAddress = null;
+      NetworkUtil.ipAddressCached = false;
+   }
+
+   private static String findIpAddress() {
       try {
          for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
             NetworkInterface intf = en.nextElement();
@@ -0,0 +1,109 @@
+package com.totsp.bookworm.util;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Request coalescing, concurrent callers asking for the same key share one in-flight load
+ * (the first caller runs it, on its own thread, the others wait for and get its result).
+ *
+ * Nothing is cached, once the load completes the next call for the key starts a new one.
+ * @param <K>
+ * @param <V>
+ */
+public class SingleFlight<K, V> {
+
+   /**
+    * The load to run for a key (exceptions should be handled inside, a RuntimeException
+    * is passed on to all waiting callers).
+    *
+    * @param <V>
+    */
+   public interface Loader<V> {
+      V load();
+   }
+
+   private final HashMap<K, FutureTask<V>> inFlight = new HashMap<K, FutureTask<V>>();
+   private int calls;
+   private int deduplicated;
+
+   /**
+    * Get the value for key, from the in-flight load for it if there is one, else by running the loader.
+    *
+    * @param key
+    * @param loader
+    * @return
+    */
+   public V get(final K key, final Loader<V> loader) {
+      FutureTask<V> task = null;
+      boolean owner = false;
+      synchronized (this) {
+         calls++;
+         task = inFlight.get(key);
+         if (task == null) {
+            task = new FutureTask<V>(new Callable<V>() {
+               public V call() {
+                  return loader.load();
+               }
+            });
+            inFlight.put(key, task);
+            owner = true;
+         } else {
+            deduplicated++;
+         }
+      }
+
+      if (owner) {
+         try {
+            task.run();
+         } finally {
+            synchronized (this) {
+               inFlight.remove(key);
+            }
+         }
+      }
+
+      try {
+         V value = task.get();
+         return owner ? value : share(value);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   /**
+    * Hook for the value handed to the callers that waited on another caller's load
+    * (override to give them a copy, if values are mutable). Default returns the value as is.
+    *
+    * @param value
+    * @return
+    */
+   protected V share(final V value) {
+      return value;
+   }
+
+   public synchronized int getCallCount() {
+      return calls;
+   }
+
+   /**
+    * Get the number of calls that were served by another caller's in-flight load.
+    *
+    * @return
+    */
+   public synchronized int getDeduplicatedCount() {
+      return deduplicated;
+   }
+
+   public synchronized String getStatsSummary() {
+      return deduplicated + "/" + calls + " deduplicated";
+   }
+}
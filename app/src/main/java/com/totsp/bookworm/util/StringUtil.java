@@ -69,4 +69,15 @@ public final class StringUtil {
       }
       return sb.toString();
    }
+
+   public static String join(final ArrayList<String> values, final String separator) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < values.size(); i++) {
+         if (i > 0) {
+            sb.append(separator);
+         }
+         sb.append(values.get(i));
+      }
+      return sb.toString();
+   }
 }
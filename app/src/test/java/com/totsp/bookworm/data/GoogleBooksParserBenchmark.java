@@ -0,0 +1,81 @@
+package com.totsp.bookworm.data;
+
+import com.totsp.bookworm.model.Book;
+
+import org.kxml2.io.KXmlParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Plain JVM benchmark for the Google Books feed parsers, GoogleBooksHandler (SAX) against
+ * GoogleBooksPullParser (kxml, the XmlPullParser impl Android ships), over a saved search response.
+ *
+ * The JVM SAX parser is not the platform one (expat on Android), so this compares the two mappings
+ * and parser styles, not absolute on device times.
+ *
+ * Run with: java com.totsp.bookworm.data.GoogleBooksParserBenchmark [file] [parses] [runs]
+ * (defaults docs/book_search_mult_response.xml, 2000 parses, 5 runs, the first runs are JIT warm up).
+ */
+public final class GoogleBooksParserBenchmark {
+
+   private GoogleBooksParserBenchmark() {
+   }
+
+   public static void main(final String[] args) throws Exception {
+      String file = args.length > 0 ? args[0] : "docs/book_search_mult_response.xml";
+      int parses = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+      int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+      byte[] data = GoogleBooksParserBenchmark.read(file);
+      System.out.println("file: " + file + ", " + data.length + " bytes, " + parses + " parses per run");
+
+      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setNamespaceAware(true);
+      SAXParser saxParser = factory.newSAXParser();
+
+      for (int i = 0; i < runs; i++) {
+         int saxBooks = 0;
+         long start = System.nanoTime();
+         for (int j = 0; j < parses; j++) {
+            GoogleBooksHandler handler = new GoogleBooksHandler();
+            saxParser.parse(new ByteArrayInputStream(data), handler);
+            saxBooks += handler.getBooks().size();
+         }
+         long saxMicros = (System.nanoTime() - start) / 1000L / parses;
+
+         int pullBooks = 0;
+         start = System.nanoTime();
+         for (int j = 0; j < parses; j++) {
+            ArrayList<Book> books =
+                     new GoogleBooksPullParser().parse(new KXmlParser(), new ByteArrayInputStream(data));
+            pullBooks += books.size();
+         }
+         long pullMicros = (System.nanoTime() - start) / 1000L / parses;
+
+         System.out.println("run " + (i + 1) + ": SAX " + saxMicros + " us/parse (" + saxBooks + " books), pull "
+                  + pullMicros + " us/parse (" + pullBooks + " books)");
+      }
+   }
+
+   private static byte[] read(final String file) throws Exception {
+      InputStream in = new FileInputStream(file);
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         int n;
+         while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+         }
+         return out.toByteArray();
+      } finally {
+         in.close();
+      }
+   }
+}
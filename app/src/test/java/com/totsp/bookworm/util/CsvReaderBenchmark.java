@@ -0,0 +1,98 @@
+package com.totsp.bookworm.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/**
+ * Plain JVM benchmark (src/test, not in the APK) for CsvReader, against the regex split import used before it
+ * (a Scanner line at a time, split on commas outside quotes), over a generated export format file.
+ *
+ * Run with: java com.totsp.bookworm.util.CsvReaderBenchmark [lines] [runs]
+ * (defaults 50000 lines, 5 runs, the first runs are JIT warm up).
+ */
+public final class CsvReaderBenchmark {
+
+   private static final String HEADER =
+            "Title,Subtitle,Authors(pipe|separated),ISBN10,ISBN13,Description,Format,Subject,Publisher,"
+                     + "Published Date,User Rating,User Read Status,User Note\n";
+
+   private CsvReaderBenchmark() {
+   }
+
+   public static void main(final String[] args) throws IOException {
+      int lines = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+      int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+      File f = File.createTempFile("bookworm-csvbench", ".csv");
+      f.deleteOnExit();
+      CsvReaderBenchmark.writeFile(f, lines);
+      System.out.println("file: " + lines + " lines, " + f.length() + " bytes");
+
+      for (int i = 0; i < runs; i++) {
+         long start = System.nanoTime();
+         int regexFields = CsvReaderBenchmark.regexSplit(f);
+         long regexMillis = (System.nanoTime() - start) / 1000000L;
+
+         start = System.nanoTime();
+         int csvFields = CsvReaderBenchmark.csvReader(f);
+         long csvMillis = (System.nanoTime() - start) / 1000000L;
+
+         System.out.println("run " + (i + 1) + ": regex split " + regexMillis + " ms (" + regexFields
+                  + " fields), CsvReader " + csvMillis + " ms (" + csvFields + " fields)");
+      }
+   }
+
+   // export format (see CsvManager), quoted fields with commas, like real titles and descriptions
+   private static void writeFile(final File f, final int lines) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"), 65536);
+      try {
+         out.write(CsvReaderBenchmark.HEADER);
+         for (int i = 0; i < lines; i++) {
+            out.write("\"Title " + i + ", Volume " + (i % 7) + "\",Subtitle,Author A|Author B,0306406152,"
+                     + "9780306406157,\"A fairly long description of book " + i
+                     + ", with commas, as descriptions usually have\",Paperback,Fiction,Publisher,2001-01-01,"
+                     + (i % 6) + "," + ((i % 2) == 0) + ",note\n");
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   private static int regexSplit(final File f) throws IOException {
+      int fields = 0;
+      Scanner scanner = new Scanner(f, "UTF-8");
+      try {
+         while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            fields += line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)", -1).length;
+         }
+      } finally {
+         scanner.close();
+      }
+      return fields;
+   }
+
+   private static int csvReader(final File f) throws IOException {
+      int fields = 0;
+      ArrayList<String> record = new ArrayList<String>(13);
+      CsvReader reader =
+               new CsvReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(f)), "UTF-8"));
+      try {
+         while (reader.readRecord(record)) {
+            fields += record.size();
+         }
+      } finally {
+         reader.close();
+      }
+      return fields;
+   }
+}